@@ -0,0 +1,437 @@
+package com.braintreepayments.apollo_tracing_uploader.collector;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.braintreepayments.apollo_tracing_uploader.FullTracesReportBuilder;
+import com.braintreepayments.apollo_tracing_uploader.Uploader;
+import com.braintreepayments.apollo_tracing_uploader.impl.CollectorProtocol;
+import com.braintreepayments.apollo_tracing_uploader.impl.CollectorTraceProducer;
+import com.braintreepayments.apollo_tracing_uploader.impl.HttpTracingUploader;
+import com.braintreepayments.apollo_tracing_uploader.impl.TracingExecutors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * Accepts traces from many {@link CollectorTraceProducer}s over TCP and uploads them to Apollo as fewer, larger
+ * reports, so each process doesn't need its own connections to Apollo. See {@link CollectorProtocol} for the wire
+ * format.
+ * <p>
+ * Traces are grouped by report header and uploaded every {@code reportInterval}, or as soon as the pending traces
+ * reach {@code maxReportBytes}. Traces waiting or being uploaded are held to {@code maxPendingBytes}, and traces
+ * received beyond that are dropped and counted.
+ * <p>
+ * Connections aren't authenticated, and anything received is uploaded with the collector's API key, so it listens on
+ * the loopback address unless given another {@code host}.
+ * <p>
+ * To run it standalone: {@code TraceCollector [port] [ingressUrl] [host]}, with the Apollo API key in the
+ * {@code APOLLO_KEY} environment variable.
+ */
+public class TraceCollector implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(TraceCollector.class);
+
+  private final FullTracesReportBuilder reportBuilder = new FullTracesReportBuilder();
+  private final InetSocketAddress address;
+  private final Uploader uploader;
+  private final long maxReportBytes;
+  private final long maxPendingBytes;
+  private final Duration reportInterval;
+  private final ExecutorService connectionExecutor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "apollo-tracing-collector");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  private final Set<CompletableFuture<Void>> pendingUploads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  private final AtomicLong receivedTraceCount = new AtomicLong();
+  private final AtomicLong droppedTraceCount = new AtomicLong();
+  private Map<Reports.ReportHeader, List<Reports.Trace>> pending = new LinkedHashMap<>();
+  private long pendingBytes;
+  private long uploadingBytes;
+  private ServerSocket serverSocket;
+  private ScheduledFuture<?> reportTask;
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public TraceCollector(InetSocketAddress address, Uploader uploader, long maxReportBytes, Duration reportInterval) {
+    this(address, uploader, maxReportBytes, Long.MAX_VALUE, reportInterval);
+  }
+
+  public TraceCollector(InetSocketAddress address,
+                        Uploader uploader,
+                        long maxReportBytes,
+                        long maxPendingBytes,
+                        Duration reportInterval) {
+    this.address = address;
+    this.uploader = uploader;
+    this.maxReportBytes = maxReportBytes;
+    this.maxPendingBytes = maxPendingBytes;
+    this.reportInterval = reportInterval;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (System.getenv("APOLLO_KEY") == null) {
+      System.err.println("Usage: APOLLO_KEY=<key> TraceCollector [port] [ingressUrl] [host]");
+      System.exit(1);
+    }
+
+    HttpTracingUploader.Builder uploader = HttpTracingUploader.newBuilder().apiKey(System.getenv("APOLLO_KEY"));
+
+    if (args.length > 1) {
+      uploader.url(args[1]);
+    }
+
+    TraceCollector.Builder builder = TraceCollector.newBuilder()
+      .port(args.length > 0 ? Integer.parseInt(args[0]) : CollectorProtocol.DEFAULT_PORT)
+      .uploader(uploader.build());
+
+    if (args.length > 2) {
+      builder.host(args[2]);
+    }
+
+    TraceCollector collector = builder.build();
+
+    Runtime.getRuntime().addShutdownHook(new Thread(collector::close));
+    collector.start();
+
+    Thread.currentThread().join();
+  }
+
+  /**
+   * Start listening for connections.
+   *
+   * @throws IOException If the address can't be bound.
+   */
+  public synchronized void start() throws IOException {
+    serverSocket = new ServerSocket();
+    serverSocket.bind(address);
+
+    connectionExecutor.execute(this::acceptConnections);
+    reportTask = TracingExecutors.sharedScheduler()
+      .scheduleAtFixedRate(() -> TracingExecutors.workerExecutor().execute(this::safeFlush),
+                           reportInterval.toMillis(),
+                           reportInterval.toMillis(),
+                           TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return The address being listened on.
+   */
+  public synchronized InetAddress getAddress() {
+    return serverSocket.getInetAddress();
+  }
+
+  /**
+   * @return The port being listened on, which is useful when started on port 0.
+   */
+  public synchronized int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * @return The number of traces received since starting, including those inside reports.
+   */
+  public long getReceivedTraceCount() {
+    return receivedTraceCount.get();
+  }
+
+  /**
+   * @return The number of traces dropped because {@code maxPendingBytes} were already waiting or being uploaded, or
+   * because their upload couldn't be started.
+   */
+  public long getDroppedTraceCount() {
+    return droppedTraceCount.get();
+  }
+
+  /**
+   * Upload every pending trace.
+   *
+   * @return A {@link CompletableFuture} that completes when those uploads, and any already in flight, finish.
+   */
+  public CompletableFuture<Void> flush() {
+    Map<Reports.ReportHeader, List<Reports.Trace>> traces;
+
+    synchronized (this) {
+      traces = pending;
+      pending = new LinkedHashMap<>();
+      uploadingBytes += pendingBytes;
+      pendingBytes = 0;
+    }
+
+    traces.forEach(this::upload);
+
+    return CompletableFuture.allOf(pendingUploads.toArray(new CompletableFuture<?>[0]));
+  }
+
+  /**
+   * Stop accepting traces, close every connection and upload the traces already received.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (reportTask != null) {
+        reportTask.cancel(false);
+      }
+
+      closeQuietly(serverSocket);
+    }
+
+    connections.forEach(TraceCollector::closeQuietly);
+    connectionExecutor.shutdown();
+
+    try {
+      connectionExecutor.awaitTermination(5, TimeUnit.SECONDS);
+      flush().get(30, TimeUnit.SECONDS);
+    } catch (Exception e) {
+      logger.error("Error uploading traces during shutdown", e);
+    }
+  }
+
+  private void acceptConnections() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        connections.add(socket);
+        connectionExecutor.execute(() -> handle(socket));
+      } catch (SocketException e) {
+        logger.debug("Collector socket closed", e);
+      } catch (Exception e) {
+        logger.error("Exception accepting collector connection", e);
+      }
+    }
+  }
+
+  private void handle(Socket socket) {
+    Reports.ReportHeader header = Reports.ReportHeader.getDefaultInstance();
+
+    try (InputStream in = new BufferedInputStream(socket.getInputStream())) {
+      int type;
+
+      while ((type = in.read()) != -1) {
+        switch (type) {
+          case CollectorProtocol.HEADER:
+            header = complete(Reports.ReportHeader.parseDelimitedFrom(in));
+            break;
+          case CollectorProtocol.TRACE:
+            add(header, Collections.singletonList(complete(Reports.Trace.parseDelimitedFrom(in))));
+            break;
+          case CollectorProtocol.REPORT:
+            Reports.FullTracesReport report = complete(Reports.FullTracesReport.parseDelimitedFrom(in));
+            List<Reports.Trace> traces = new ArrayList<>();
+            report.getTracesPerQueryMap().values().forEach(perQuery -> traces.addAll(perQuery.getTraceList()));
+            add(report.getHeader(), traces);
+            break;
+          default:
+            throw new IOException("Unknown frame type " + type);
+        }
+      }
+    } catch (Exception e) {
+      if (!socket.isClosed()) {
+        logger.error("Exception reading from collector connection " + socket.getRemoteSocketAddress(), e);
+      }
+    } finally {
+      connections.remove(socket);
+      closeQuietly(socket);
+    }
+  }
+
+  private static <T> T complete(T message) throws EOFException {
+    if (message == null) {
+      throw new EOFException("Connection closed mid-frame");
+    }
+
+    return message;
+  }
+
+  private void add(Reports.ReportHeader header, List<Reports.Trace> traces) {
+    long bytes = serializedSize(traces);
+    boolean accepted;
+    boolean full;
+
+    synchronized (this) {
+      accepted = pendingBytes + uploadingBytes + bytes <= maxPendingBytes;
+
+      if (accepted) {
+        pending.computeIfAbsent(header, h -> new ArrayList<>()).addAll(traces);
+        pendingBytes += bytes;
+      }
+
+      full = pendingBytes >= maxReportBytes;
+    }
+
+    if (!accepted) {
+      droppedTraceCount.addAndGet(traces.size());
+      logger.warn("Collector's pending traces exceed " + maxPendingBytes + " bytes (dropping " + traces.size()
+                    + " traces)");
+    }
+
+    receivedTraceCount.addAndGet(traces.size());
+
+    if (accepted && full) {
+      flush();
+    }
+  }
+
+  private void upload(Reports.ReportHeader header, List<Reports.Trace> traces) {
+    long bytes = serializedSize(traces);
+    CompletableFuture<Void> upload;
+
+    try {
+      upload = uploader.uploadAsync(reportBuilder.build(traces, builder -> builder.mergeFrom(header)));
+    } catch (Exception e) {
+      logger.error("Error during upload", e);
+      droppedTraceCount.addAndGet(traces.size());
+      uploaded(bytes);
+      return;
+    }
+
+    pendingUploads.add(upload);
+    upload.whenComplete((result, e) -> {
+      pendingUploads.remove(upload);
+      uploaded(bytes);
+    });
+  }
+
+  private synchronized void uploaded(long bytes) {
+    uploadingBytes -= bytes;
+  }
+
+  private static long serializedSize(List<Reports.Trace> traces) {
+    long bytes = 0;
+
+    for (Reports.Trace trace : traces) {
+      bytes += trace.getSerializedSize();
+    }
+
+    return bytes;
+  }
+
+  private void safeFlush() {
+    try {
+      flush();
+    } catch (Exception e) {
+      logger.error("Error during flush", e);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      logger.debug("Exception closing collector socket", e);
+    }
+  }
+
+  public static class Builder {
+    private String _host;
+    private int _port = CollectorProtocol.DEFAULT_PORT;
+    private Uploader _uploader;
+    private long _maxReportBytes = 4 * 1024 * 1024;
+    private long _maxPendingBytes = 64 * 1024 * 1024;
+    private Duration _reportInterval = Duration.ofSeconds(10);
+
+    public TraceCollector build() {
+      assert _uploader != null : "Missing uploader(Uploader)";
+
+      InetSocketAddress address = _host == null
+        ? new InetSocketAddress(InetAddress.getLoopbackAddress(), _port)
+        : new InetSocketAddress(_host, _port);
+
+      return new TraceCollector(address, _uploader, _maxReportBytes, _maxPendingBytes, _reportInterval);
+    }
+
+    /**
+     * Set the address to listen on, such as "0.0.0.0" for every local address. Defaults to the loopback address, as
+     * anything received is uploaded with the collector's API key; only listen more widely on a trusted network.
+     *
+     * @param host A host name or address.
+     * @return {@link Builder}
+     */
+    public Builder host(String host) {
+      this._host = host;
+      return this;
+    }
+
+    /**
+     * Set the port to listen on, or 0 to pick a free port. Defaults to {@value CollectorProtocol#DEFAULT_PORT}.
+     *
+     * @param port A TCP port.
+     * @return {@link Builder}
+     */
+    public Builder port(int port) {
+      this._port = port;
+      return this;
+    }
+
+    public Builder uploader(Uploader uploader) {
+      this._uploader = uploader;
+      return this;
+    }
+
+    /**
+     * Set the size of pending traces at which they're uploaded without waiting for the report interval. Defaults to
+     * 4 MiB.
+     *
+     * @param maxReportBytes A size in bytes.
+     * @return {@link Builder}
+     */
+    public Builder maxReportBytes(long maxReportBytes) {
+      this._maxReportBytes = maxReportBytes;
+      return this;
+    }
+
+    /**
+     * Set how many bytes of traces may be waiting or being uploaded before further traces are dropped. Defaults to
+     * 64 MiB.
+     *
+     * @param maxPendingBytes A size in bytes.
+     * @return {@link Builder}
+     */
+    public Builder maxPendingBytes(long maxPendingBytes) {
+      this._maxPendingBytes = maxPendingBytes;
+      return this;
+    }
+
+    /**
+     * Set how often pending traces are uploaded. Defaults to 10 seconds.
+     *
+     * @param reportInterval A {@link Duration}.
+     * @return {@link Builder}
+     */
+    public Builder reportInterval(Duration reportInterval) {
+      this._reportInterval = reportInterval;
+      return this;
+    }
+  }
+}
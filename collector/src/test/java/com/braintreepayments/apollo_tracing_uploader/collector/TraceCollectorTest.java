@@ -0,0 +1,221 @@
+package com.braintreepayments.apollo_tracing_uploader.collector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import com.braintreepayments.apollo_tracing_uploader.FullTracesReportBuilder;
+import com.braintreepayments.apollo_tracing_uploader.impl.CollectorProtocol;
+import com.braintreepayments.apollo_tracing_uploader.impl.CollectorTraceProducer;
+import com.braintreepayments.apollo_tracing_uploader.impl.HttpTracingUploader;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TraceCollectorTest {
+  private HttpServer ingress;
+  private List<Reports.FullTracesReport> ingressReports;
+  private TraceCollector collector;
+
+  @Before
+  public void setup() throws IOException {
+    ingressReports = new CopyOnWriteArrayList<>();
+    ingress = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    ingress.createContext("/api/ingress/traces", exchange -> {
+      ingressReports.add(Reports.FullTracesReport.parseFrom(new GZIPInputStream(exchange.getRequestBody())));
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    });
+    ingress.start();
+
+    HttpTracingUploader uploader = HttpTracingUploader.newBuilder()
+      .apiKey("key")
+      .url("http://localhost:" + ingress.getAddress().getPort() + "/api/ingress/traces")
+      .build();
+
+    collector = TraceCollector.newBuilder()
+      .host("localhost")
+      .port(0)
+      .uploader(uploader)
+      .reportInterval(Duration.ofMinutes(1))
+      .build();
+    collector.start();
+  }
+
+  @After
+  public void teardown() {
+    collector.close();
+    ingress.stop(0);
+  }
+
+  @Test
+  public void mergesTracesFromManyProducers() throws Exception {
+    CollectorTraceProducer first = newProducer("service-a");
+    CollectorTraceProducer second = newProducer("service-a");
+
+    for (int i = 0; i < 5; i++) {
+      first.submit(trace("query A"));
+      second.submit(trace("query B"));
+    }
+
+    first.shutdown();
+    second.shutdown();
+    awaitReceived(10);
+    collector.flush().get(10, TimeUnit.SECONDS);
+
+    assertEquals(1, ingressReports.size());
+
+    Reports.FullTracesReport report = ingressReports.get(0);
+
+    assertEquals("service-a", report.getHeader().getService());
+    assertEquals(5, report.getTracesPerQueryOrThrow("# -\nquery A").getTraceCount());
+    assertEquals(5, report.getTracesPerQueryOrThrow("# -\nquery B").getTraceCount());
+  }
+
+  @Test
+  public void acceptsReportBatchesWithTheirOwnHeaders() throws Exception {
+    Reports.FullTracesReport batch = new FullTracesReportBuilder()
+      .build(Arrays.asList(trace("query A"), trace("query A")), header -> header.setService("service-b"));
+
+    try (Socket socket = new Socket("localhost", collector.getPort())) {
+      OutputStream out = socket.getOutputStream();
+      CollectorProtocol.writeFrame(out, CollectorProtocol.HEADER, header("service-a"));
+      CollectorProtocol.writeFrame(out, CollectorProtocol.TRACE, trace("query B"));
+      CollectorProtocol.writeFrame(out, CollectorProtocol.REPORT, batch);
+      out.flush();
+      awaitReceived(3);
+    }
+
+    collector.flush().get(10, TimeUnit.SECONDS);
+
+    assertEquals(2, ingressReports.size());
+    assertTrue(ingressReports.stream().anyMatch(report -> report.getHeader().getService().equals("service-b")
+      && report.getTracesPerQueryOrThrow("# -\nquery A").getTraceCount() == 2));
+    assertTrue(ingressReports.stream().anyMatch(report -> report.getHeader().getService().equals("service-a")
+      && report.getTracesPerQueryOrThrow("# -\nquery B").getTraceCount() == 1));
+  }
+
+  @Test
+  public void listensOnLoopbackByDefault() throws Exception {
+    TraceCollector defaultCollector = TraceCollector.newBuilder().port(0).uploader(report -> { }).build();
+    defaultCollector.start();
+
+    try {
+      assertTrue(defaultCollector.getAddress().isLoopbackAddress());
+    } finally {
+      defaultCollector.close();
+    }
+  }
+
+  @Test
+  public void dropsTracesBeyondMaxPendingBytes() throws Exception {
+    List<Reports.FullTracesReport> uploadedReports = new CopyOnWriteArrayList<>();
+    TraceCollector boundedCollector = TraceCollector.newBuilder()
+      .port(0)
+      .uploader(uploadedReports::add)
+      .maxPendingBytes(trace("query A").getSerializedSize() * 2)
+      .reportInterval(Duration.ofMinutes(1))
+      .build();
+    boundedCollector.start();
+
+    try (Socket socket = new Socket(boundedCollector.getAddress(), boundedCollector.getPort())) {
+      OutputStream out = socket.getOutputStream();
+
+      for (int i = 0; i < 3; i++) {
+        CollectorProtocol.writeFrame(out, CollectorProtocol.TRACE, trace("query A"));
+      }
+
+      out.flush();
+      awaitReceived(boundedCollector, 3);
+    }
+
+    boundedCollector.flush().get(10, TimeUnit.SECONDS);
+    boundedCollector.close();
+
+    assertEquals(1, boundedCollector.getDroppedTraceCount());
+    assertEquals(2, uploadedReports.get(0).getTracesPerQueryOrThrow("# -\nquery A").getTraceCount());
+  }
+
+  @Test
+  public void producerResendsBatchesAfterReconnecting() throws Exception {
+    int port;
+
+    try (ServerSocket unused = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+      port = unused.getLocalPort();
+    }
+
+    CollectorTraceProducer producer = CollectorTraceProducer.newBuilder()
+      .port(port)
+      .connections(1)
+      .reconnectDelay(Duration.ofMillis(200))
+      .sendAttempts(50)
+      .customizeHeader(header -> header.setService("service-a"))
+      .build();
+
+    for (int i = 0; i < 5; i++) {
+      producer.submit(trace("query A"));
+    }
+
+    Thread.sleep(300);
+
+    TraceCollector lateCollector = TraceCollector.newBuilder()
+      .port(port)
+      .uploader(report -> { })
+      .reportInterval(Duration.ofMinutes(1))
+      .build();
+    lateCollector.start();
+
+    try {
+      producer.shutdown();
+      awaitReceived(lateCollector, 5);
+      assertEquals(0, producer.getDroppedTraceCount());
+    } finally {
+      lateCollector.close();
+    }
+  }
+
+  private CollectorTraceProducer newProducer(String service) {
+    return CollectorTraceProducer.newBuilder()
+      .port(collector.getPort())
+      .customizeHeader(header -> header.setService(service))
+      .build();
+  }
+
+  private void awaitReceived(long count) throws InterruptedException {
+    awaitReceived(collector, count);
+  }
+
+  private static void awaitReceived(TraceCollector collector, long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10_000;
+
+    while (collector.getReceivedTraceCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    assertEquals(count, collector.getReceivedTraceCount());
+  }
+
+  private static Reports.ReportHeader header(String service) {
+    return Reports.ReportHeader.newBuilder().setService(service).build();
+  }
+
+  private static Reports.Trace trace(String signature) {
+    return Reports.Trace.newBuilder().setSignature(signature).setDurationNs(1_000_000).build();
+  }
+}
@@ -0,0 +1,60 @@
+package com.braintreepayments.apollo_tracing_uploader.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * Compares report throughput between the full and lite protobuf runtimes. Run it from both builds and compare:
+ * <pre>
+ * ./gradlew jmh -PjmhInclude=ProtobufRuntime
+ * ./gradlew :lite:jmh -PjmhInclude=ProtobufRuntime
+ * </pre>
+ * See {@link ProtobufStartupBenchmark} for the cost of loading each runtime.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProtobufRuntimeBenchmark {
+  private Reports.FullTracesReport report;
+  private byte[] serialized;
+
+  @Setup
+  public void setup() {
+    report = SampleReports.report(100, 20);
+    serialized = report.toByteArray();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public Reports.FullTracesReport build() {
+    return SampleReports.report(100, 20);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public byte[] serialize() {
+    return report.toByteArray();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public Reports.FullTracesReport parse() throws InvalidProtocolBufferException {
+    return Reports.FullTracesReport.parseFrom(serialized);
+  }
+}
@@ -0,0 +1,33 @@
+package com.braintreepayments.apollo_tracing_uploader.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times building and serializing the first report in a fresh JVM, which includes loading the protobuf runtime and
+ * the generated {@code Reports} classes. Run it from both builds and compare:
+ * <pre>
+ * ./gradlew jmh -PjmhInclude=ProtobufStartup
+ * ./gradlew :lite:jmh -PjmhInclude=ProtobufStartup
+ * </pre>
+ * Add {@code -prof cl} to the JMH arguments for the number of classes loaded, and {@code -prof gc} for heap
+ * allocated.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(20)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class ProtobufStartupBenchmark {
+  @Benchmark
+  public byte[] firstReport() {
+    return SampleReports.report(1, 1).toByteArray();
+  }
+}
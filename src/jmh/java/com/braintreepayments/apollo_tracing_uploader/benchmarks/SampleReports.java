@@ -0,0 +1,61 @@
+package com.braintreepayments.apollo_tracing_uploader.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.braintreepayments.apollo_tracing_uploader.FullTracesReportBuilder;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * Builds reports shaped like those from a typical service, using only APIs available in both protobuf runtimes.
+ */
+final class SampleReports {
+  private SampleReports() {
+  }
+
+  static Reports.FullTracesReport report(int traceCount, int itemsPerTrace) {
+    List<Reports.Trace> traces = new ArrayList<>();
+
+    for (int i = 0; i < traceCount; i++) {
+      traces.add(trace("query Users" + i % 10 + " {users {id name}}", itemsPerTrace));
+    }
+
+    return new FullTracesReportBuilder().build(traces, header -> header
+      .setHostname("host-01.example.com")
+      .setAgentVersion("apollo-tracing-uploader-java")
+      .setSchemaTag("current"));
+  }
+
+  static Reports.Trace trace(String signature, int items) {
+    Reports.Trace.Node.Builder users = Reports.Trace.Node.newBuilder()
+      .setResponseName("users")
+      .setType("[User]")
+      .setParentType("Query")
+      .setStartTime(1_000)
+      .setEndTime(50_000);
+
+    for (int i = 0; i < items; i++) {
+      users.addChild(Reports.Trace.Node.newBuilder()
+                       .setIndex(i)
+                       .addChild(field("id", "ID", i))
+                       .addChild(field("name", "String", i)));
+    }
+
+    return Reports.Trace.newBuilder()
+      .setSignature(signature)
+      .setDurationNs(60_000)
+      .setDetails(Reports.Trace.Details.newBuilder().putVariablesJson("first", "10"))
+      .setRoot(Reports.Trace.Node.newBuilder().addChild(users))
+      .build();
+  }
+
+  private static Reports.Trace.Node.Builder field(String name, String type, int index) {
+    return Reports.Trace.Node.newBuilder()
+      .setResponseName(name)
+      .setType(type)
+      .setParentType("User")
+      .setStartTime(50_000 + index * 100)
+      .setEndTime(50_050 + index * 100);
+  }
+}
@@ -0,0 +1,100 @@
+package com.braintreepayments.apollo_tracing_uploader.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.braintreepayments.apollo_tracing_uploader.TracingUploadInstrumentation;
+import com.braintreepayments.apollo_tracing_uploader.TracingWarmup;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.RuntimeWiring;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import mdg.engine.proto.Reports;
+
+/**
+ * Measures the first request served by a fresh JVM, as seen by a newly started pod. Each fork runs a single request:
+ * <ul>
+ *   <li>{@code untraced}: without the instrumentation, as a baseline.</li>
+ *   <li>{@code cold}: with the instrumentation, timing until the first trace reaches the producer.</li>
+ *   <li>{@code warm}: as {@code cold}, after {@link TracingWarmup} has run, as it would before a readiness check.</li>
+ * </ul>
+ * First-request overhead is the difference between {@code cold} and {@code untraced}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(20)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+  private static final String SCHEMA = "type Query { users: [User] } type User { id: ID name: String }";
+  private static final String QUERY = "query Users { users { id name } }";
+
+  @Param({"untraced", "cold", "warm"})
+  public String mode;
+
+  private GraphQLSchema schema;
+
+  @Setup
+  public void setup() {
+    if (mode.equals("warm")) {
+      TracingWarmup.warmUpAsync().join();
+    }
+
+    RuntimeWiring wiring = RuntimeWiring.newRuntimeWiring()
+      .type("Query", type -> type.dataFetcher("users", env -> Arrays.asList(new User("1", "a"), new User("2", "b"))))
+      .build();
+
+    schema = new SchemaGenerator().makeExecutableSchema(new SchemaParser().parse(SCHEMA), wiring);
+  }
+
+  @Benchmark
+  public Object timeToFirstTrace() {
+    GraphQL.Builder graphQL = GraphQL.newGraphQL(schema);
+
+    if (mode.equals("untraced")) {
+      return graphQL.build().execute(QUERY);
+    }
+
+    CompletableFuture<Reports.Trace> firstTrace = new CompletableFuture<>();
+
+    graphQL.instrumentation(TracingUploadInstrumentation.newBuilder().producer(firstTrace::complete).build());
+
+    ExecutionResult result = graphQL.build().execute(QUERY);
+    return firstTrace.join().getSerializedSize() + result.getErrors().size();
+  }
+
+  public static class User {
+    private final String id;
+    private final String name;
+
+    User(String id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package com.braintreepayments.apollo_tracing_uploader.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.braintreepayments.apollo_tracing_uploader.impl.OffHeapTraceBuffer;
+import com.braintreepayments.apollo_tracing_uploader.impl.ScheduledBatchingTraceProducer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * Compares holding a batching window's worth of traces as objects on the heap with holding them serialized in an
+ * {@link OffHeapTraceBuffer}, as the queue of a {@link ScheduledBatchingTraceProducer}. Each operation submits a trace
+ * to the producer with {@code submitDeferred}, as the instrumentation does, so it's built and queued on the producer's
+ * worker threads, and takes the oldest queued trace. The queue stays at about {@code backlog} traces, as it does
+ * between batches under steady load.
+ * <p>
+ * Each fork logs its collections with {@code -verbose:gc} and prints the heap retained by the filled queue at the
+ * end of the trial. For allocation rates and GC counts, add JMH's GC profiler:
+ * <pre>
+ * ./gradlew jmh -PjmhInclude=TraceQueueGc -PjmhProfilers=gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 2, jvmArgsAppend = {"-Xmx512m", "-verbose:gc"})
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TraceQueueGcBenchmark {
+  private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+  @Param({"onHeap", "offHeap"})
+  public String queueType;
+
+  @Param({"10000"})
+  public int backlog;
+
+  private BlockingQueue<Reports.Trace> queue;
+  private ScheduledBatchingTraceProducer producer;
+  private long retainedBytes;
+  private int sequence;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    long heapBefore = usedHeapAfterGc();
+
+    queue = queueType.equals("offHeap") ? OffHeapTraceBuffer.ofSize(256L * 1024 * 1024) : new LinkedBlockingQueue<>();
+    producer = ScheduledBatchingTraceProducer.newBuilder()
+      .customizeHeader(header -> header.setService("benchmark"))
+      .uploader(report -> {
+      })
+      .batchingWindow(Duration.ofHours(1))
+      .queue(queue)
+      .build();
+
+    for (int i = 0; i < backlog; i++) {
+      producer.submit(nextTrace());
+    }
+
+    retainedBytes = usedHeapAfterGc() - heapBefore;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    producer.shutdown();
+    System.out.printf("%n%s queue of %d traces retained %d KiB of heap%n", queueType, backlog, retainedBytes / 1024);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public Reports.Trace submitAndTake() {
+    producer.submitDeferred(this::nextTrace);
+    return queue.poll();
+  }
+
+  private Reports.Trace nextTrace() {
+    return SampleReports.trace("query Users" + Math.floorMod(sequence++, 10) + " {users {id name}}", 20);
+  }
+
+  private static long usedHeapAfterGc() {
+    System.gc();
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+}
@@ -0,0 +1,38 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * Accumulates resolver calls that were left out of a trace, for a single {@link
+ * mdg.engine.proto.Reports.Trace.ElidedNodes} message.
+ */
+class ElidedNodesSummary {
+  private int firstItemIndex = Integer.MAX_VALUE;
+  private int lastItemIndex = -1;
+  private long nodeCount;
+  private long minDurationNs = Long.MAX_VALUE;
+  private long maxDurationNs;
+  private long totalDurationNs;
+
+  synchronized void record(int itemIndex, long durationNs) {
+    if (itemIndex >= 0) {
+      firstItemIndex = Math.min(firstItemIndex, itemIndex);
+      lastItemIndex = Math.max(lastItemIndex, itemIndex);
+    }
+
+    nodeCount++;
+    minDurationNs = Math.min(minDurationNs, durationNs);
+    maxDurationNs = Math.max(maxDurationNs, durationNs);
+    totalDurationNs += durationNs;
+  }
+
+  synchronized Reports.Trace.ElidedNodes toProto() {
+    return Reports.Trace.ElidedNodes.newBuilder()
+      .setItemCount(lastItemIndex < 0 ? 0 : lastItemIndex - firstItemIndex + 1)
+      .setNodeCount(nodeCount)
+      .setMinDurationNs(minDurationNs)
+      .setMaxDurationNs(maxDurationNs)
+      .setTotalDurationNs(totalDurationNs)
+      .build();
+  }
+}
@@ -0,0 +1,74 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * A {@link mdg.engine.proto.Reports.FullTracesReport} serialized and gzip-compressed once, in the form Apollo's trace
+ * ingress accepts, so that it can be sent to several {@link ReportSink}s or retried without encoding it again.
+ * Immutable.
+ */
+public final class EncodedReport {
+  private final byte[] gzipped;
+  private final int uncompressedSize;
+
+  private EncodedReport(byte[] gzipped, int uncompressedSize) {
+    this.gzipped = gzipped;
+    this.uncompressedSize = uncompressedSize;
+  }
+
+  /**
+   * @param report A {@link mdg.engine.proto.Reports.FullTracesReport}.
+   * @return The report, serialized and gzip-compressed.
+   */
+  public static EncodedReport encode(Reports.FullTracesReport report) {
+    int uncompressedSize = report.getSerializedSize();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, uncompressedSize / 4));
+
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      report.writeTo(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    return new EncodedReport(compressed.toByteArray(), uncompressedSize);
+  }
+
+  /**
+   * @return The size of the compressed report in bytes.
+   */
+  public int size() {
+    return gzipped.length;
+  }
+
+  /**
+   * @return The size of the serialized report before compression, in bytes.
+   */
+  public int getUncompressedSize() {
+    return uncompressedSize;
+  }
+
+  /**
+   * Write the compressed report.
+   *
+   * @param out The stream to write to. It's not closed.
+   * @throws IOException If writing fails.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(gzipped);
+  }
+
+  /**
+   * @return A new stream over the compressed report.
+   */
+  public InputStream newInputStream() {
+    return new ByteArrayInputStream(gzipped);
+  }
+}
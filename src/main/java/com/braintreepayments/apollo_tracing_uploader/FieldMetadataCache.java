@@ -0,0 +1,89 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import graphql.execution.ExecutionStepInfo;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLType;
+import graphql.schema.GraphQLTypeUtil;
+import mdg.engine.proto.Reports;
+
+/**
+ * Caches the parts of a trace node that depend only on the schema: the field name, its type and its parent type. Each
+ * fetched field then costs a lookup instead of printing both types.
+ * <p>
+ * Entries are kept for one schema at a time, and are discarded as soon as a field from a different schema is fetched.
+ * Thread-safe, and meant to be shared by every request.
+ */
+public final class FieldMetadataCache {
+  private volatile SchemaFields current = new SchemaFields(null);
+
+  /**
+   * @param schema The schema being executed against.
+   * @param stepInfo The field being fetched.
+   * @return A node with the field's name, type and parent type set, and nothing else.
+   */
+  public Reports.Trace.Node template(GraphQLSchema schema, ExecutionStepInfo stepInfo) {
+    SchemaFields fields = current;
+
+    if (fields.schema != schema) {
+      fields = new SchemaFields(schema);
+      current = fields;
+    }
+
+    GraphQLType parentType = stepInfo.getParent().getUnwrappedNonNullType();
+    GraphQLFieldDefinition field = stepInfo.getFieldDefinition();
+    Key key = new Key(parentType, field);
+    Reports.Trace.Node template = fields.templates.get(key);
+
+    if (template == null) {
+      template = Reports.Trace.Node.newBuilder()
+        .setOriginalFieldName(field.getName())
+        .setType(stepInfo.simplePrint())
+        .setParentType(GraphQLTypeUtil.simplePrint(parentType))
+        .build();
+      fields.templates.put(key, template);
+    }
+
+    return template;
+  }
+
+  private static final class SchemaFields {
+    private final GraphQLSchema schema;
+    private final Map<Key, Reports.Trace.Node> templates = new ConcurrentHashMap<>();
+
+    SchemaFields(GraphQLSchema schema) {
+      this.schema = schema;
+    }
+  }
+
+  /**
+   * Compares types and field definitions by identity, since they're immutable and owned by a single schema.
+   */
+  private static final class Key {
+    private final GraphQLType parentType;
+    private final GraphQLFieldDefinition field;
+
+    Key(GraphQLType parentType, GraphQLFieldDefinition field) {
+      this.parentType = parentType;
+      this.field = field;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key other = (Key) o;
+      return parentType == other.parentType && field == other.field;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(parentType) + System.identityHashCode(field);
+    }
+  }
+}
@@ -3,7 +3,6 @@ package com.braintreepayments.apollo_tracing_uploader;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -14,18 +13,10 @@ public class FullTracesReportBuilder {
                                         Consumer<Reports.ReportHeader.Builder> customizeReportHeader) {
     Map<String, Reports.Traces.Builder> tracesPerQuery = new HashMap<>();
 
-    traceList.forEach(trace -> {
-      String operationName = Optional.ofNullable(trace.getDetails().getOperationName())
-        .filter(s -> !s.isEmpty())
-        .orElse("-");
-
-      String key = "# " + operationName + "\n" + trace.getSignature();
-
-      tracesPerQuery.compute(key, (k, v) -> {
-        Reports.Traces.Builder tracesBuilder = v == null ? Reports.Traces.newBuilder() : v;
-        return tracesBuilder.addTrace(trace);
-      });
-    });
+    traceList.forEach(trace -> tracesPerQuery.compute(TraceUtil.queryKey(trace), (k, v) -> {
+      Reports.Traces.Builder tracesBuilder = v == null ? Reports.Traces.newBuilder() : v;
+      return tracesBuilder.addTrace(trace);
+    }));
 
     Map<String, Reports.Traces> traces = tracesPerQuery
       .entrySet()
@@ -0,0 +1,182 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A sampling function for {@link TracingUploadInstrumentation.Builder#sendTracesIf} that lowers the share of traced
+ * requests while the pipeline is under pressure, so shed requests skip field instrumentation entirely.
+ * <p>
+ * Once per adjustment interval, the highest pressure among its {@link PipelinePressure} sources is compared with a
+ * threshold. Above it, the target rate falls linearly to {@code minRate} at full pressure. The rate drops to the target
+ * immediately and recovers towards it by {@code recoveryStep} per interval, so it doesn't oscillate as pressure clears.
+ */
+public class LoadSheddingSampler implements Supplier<Boolean> {
+  private final List<PipelinePressure> sources;
+  private final Supplier<Boolean> sampleIf;
+  private final double pressureThreshold;
+  private final double minRate;
+  private final double recoveryStep;
+  private final long adjustIntervalNs;
+  private final LongSupplier clockNs;
+  private final AtomicLong nextAdjustNs;
+  private volatile double rate = 1;
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public LoadSheddingSampler(List<PipelinePressure> sources,
+                             Supplier<Boolean> sampleIf,
+                             double pressureThreshold,
+                             double minRate,
+                             double recoveryStep,
+                             Duration adjustInterval) {
+    this(sources, sampleIf, pressureThreshold, minRate, recoveryStep, adjustInterval, System::nanoTime);
+  }
+
+  LoadSheddingSampler(List<PipelinePressure> sources,
+                      Supplier<Boolean> sampleIf,
+                      double pressureThreshold,
+                      double minRate,
+                      double recoveryStep,
+                      Duration adjustInterval,
+                      LongSupplier clockNs) {
+    this.sources = sources;
+    this.sampleIf = sampleIf;
+    this.pressureThreshold = pressureThreshold;
+    this.minRate = minRate;
+    this.recoveryStep = recoveryStep;
+    this.adjustIntervalNs = adjustInterval.toNanos();
+    this.clockNs = clockNs;
+    this.nextAdjustNs = new AtomicLong(clockNs.getAsLong());
+  }
+
+  @Override
+  public Boolean get() {
+    long now = clockNs.getAsLong();
+    long next = nextAdjustNs.get();
+
+    if (now - next >= 0 && nextAdjustNs.compareAndSet(next, now + adjustIntervalNs)) {
+      adjust();
+    }
+
+    double currentRate = rate;
+    return (currentRate >= 1 || ThreadLocalRandom.current().nextDouble() < currentRate) && sampleIf.get();
+  }
+
+  /**
+   * @return The share of requests currently being traced, before applying {@code sampleIf}.
+   */
+  public double getSamplingRate() {
+    return rate;
+  }
+
+  private void adjust() {
+    double pressure = 0;
+
+    for (PipelinePressure source : sources) {
+      pressure = Math.max(pressure, source.getPressure());
+    }
+
+    double target = pressure <= pressureThreshold
+                    ? 1
+                    : 1 - (1 - minRate) * Math.min(1, (pressure - pressureThreshold) / (1 - pressureThreshold));
+
+    rate = target < rate ? target : Math.min(target, rate + recoveryStep);
+  }
+
+  public static class Builder {
+    private final List<PipelinePressure> _sources = new ArrayList<>();
+    private Supplier<Boolean> _sampleIf = () -> true;
+    private double _pressureThreshold = 0.5;
+    private double _minRate = 0.01;
+    private double _recoveryStep = 0.1;
+    private Duration _adjustInterval = Duration.ofSeconds(1);
+
+    public LoadSheddingSampler build() {
+      assert !_sources.isEmpty() : "Missing pressure(PipelinePressure)";
+
+      return new LoadSheddingSampler(new ArrayList<>(_sources),
+                                     _sampleIf,
+                                     _pressureThreshold,
+                                     _minRate,
+                                     _recoveryStep,
+                                     _adjustInterval);
+    }
+
+    /**
+     * Add a stage whose pressure should reduce the sampling rate, such as a
+     * {@link com.braintreepayments.apollo_tracing_uploader.impl.ScheduledBatchingTraceProducer} or
+     * {@link com.braintreepayments.apollo_tracing_uploader.impl.HttpTracingUploader}.
+     *
+     * @param source A {@link PipelinePressure}.
+     * @return {@link Builder}
+     */
+    public Builder pressure(PipelinePressure source) {
+      this._sources.add(source);
+      return this;
+    }
+
+    /**
+     * Register the sampling function to apply when the pipeline isn't shedding load. Traces 100% by default.
+     *
+     * @param sampleIf A {@link Supplier} function.
+     * @return {@link Builder}
+     */
+    public Builder sampleIf(Supplier<Boolean> sampleIf) {
+      this._sampleIf = sampleIf;
+      return this;
+    }
+
+    /**
+     * Set the pressure above which load is shed. Defaults to 0.5.
+     *
+     * @param pressureThreshold A value between 0 and 1.
+     * @return {@link Builder}
+     */
+    public Builder pressureThreshold(double pressureThreshold) {
+      this._pressureThreshold = pressureThreshold;
+      return this;
+    }
+
+    /**
+     * Set the sampling rate at full pressure, which keeps some traces flowing so recovery can be observed. Defaults
+     * to 0.01.
+     *
+     * @param minRate A value between 0 and 1.
+     * @return {@link Builder}
+     */
+    public Builder minRate(double minRate) {
+      this._minRate = minRate;
+      return this;
+    }
+
+    /**
+     * Set how much the sampling rate may rise per adjustment interval once pressure clears. Defaults to 0.1.
+     *
+     * @param recoveryStep A value between 0 and 1.
+     * @return {@link Builder}
+     */
+    public Builder recoveryStep(double recoveryStep) {
+      this._recoveryStep = recoveryStep;
+      return this;
+    }
+
+    /**
+     * Set how often pressure is sampled. Defaults to 1 second.
+     *
+     * @param adjustInterval A {@link Duration}.
+     * @return {@link Builder}
+     */
+    public Builder adjustInterval(Duration adjustInterval) {
+      this._adjustInterval = adjustInterval;
+      return this;
+    }
+  }
+}
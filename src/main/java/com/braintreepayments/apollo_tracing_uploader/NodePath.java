@@ -20,29 +20,47 @@ class NodePath {
 
   static <T> NodePath fromList(List<T> objects) {
     List<Segment> segments = objects.stream()
-      .map(Object::toString)
-      .map(Segment::parse)
+      .map(Segment::of)
       .collect(Collectors.toList());
 
     return new NodePath(segments);
   }
 
-  Reports.Trace.Node.Builder getChild(Reports.Trace.Node.Builder node) {
-    return getChild(node, segments);
+  List<Segment> getSegments() {
+    return segments;
   }
 
-  Reports.Trace.Node.Builder getChild(Reports.Trace.Node.Builder node, List<Segment> segments) {
-    if (segments.isEmpty()) {
-      return node;
-    }
+  /**
+   * @return This path with every list index replaced by the same placeholder, so paths through different items of the
+   * same lists are equal.
+   */
+  NodePath template() {
+    List<Segment> template = segments.stream()
+      .map(segment -> segment instanceof ListIndex ? ListIndex.ANY : segment)
+      .collect(Collectors.toList());
 
-    Segment head = segments.get(0);
-    List<Segment> tail = segments.subList(1, segments.size());
+    return new NodePath(template);
+  }
 
-    return getChild(head.getChild(node), tail);
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof NodePath && segments.equals(((NodePath) o).segments);
+  }
+
+  @Override
+  public int hashCode() {
+    return segments.hashCode();
   }
 
   interface Segment {
+    static Segment of(Object obj) {
+      if (obj instanceof Integer) {
+        return new ListIndex((Integer) obj);
+      } else {
+        return parse(obj.toString());
+      }
+    }
+
     static Segment parse(String str) {
       if (str.matches("^\\d+$")) {
         return new ListIndex(Integer.parseInt(str));
@@ -51,20 +69,12 @@ class NodePath {
       }
     }
 
-    default Reports.Trace.Node.Builder getChild(Reports.Trace.Node.Builder parent) {
-      return parent
-        .getChildBuilderList()
-        .stream()
-        .filter(this::matchesNode)
-        .findFirst()
-        .orElseGet(() -> initializeNode(parent.addChildBuilder()));
-    }
-
-    boolean matchesNode(Reports.Trace.Node.Builder node);
-    Reports.Trace.Node.Builder initializeNode(Reports.Trace.Node.Builder parent);
+    Reports.Trace.Node.Builder initializeNode(Reports.Trace.Node.Builder node);
   }
 
   private static class ListIndex implements Segment {
+    private static final ListIndex ANY = new ListIndex(-1);
+
     private final int index;
 
     ListIndex(int index) {
@@ -72,13 +82,18 @@ class NodePath {
     }
 
     @Override
-    public boolean matchesNode(Reports.Trace.Node.Builder node) {
-      return Objects.equals(node.getIndex(), index);
+    public Reports.Trace.Node.Builder initializeNode(Reports.Trace.Node.Builder node) {
+      return node.setIndex(index);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof ListIndex && index == ((ListIndex) o).index;
     }
 
     @Override
-    public Reports.Trace.Node.Builder initializeNode(Reports.Trace.Node.Builder node) {
-      return node.setIndex(index);
+    public int hashCode() {
+      return index;
     }
   }
 
@@ -90,13 +105,18 @@ class NodePath {
     }
 
     @Override
-    public boolean matchesNode(Reports.Trace.Node.Builder node) {
-      return Objects.equals(node.getResponseName(), name);
+    public Reports.Trace.Node.Builder initializeNode(Reports.Trace.Node.Builder node) {
+      return node.setResponseName(name);
     }
 
     @Override
-    public Reports.Trace.Node.Builder initializeNode(Reports.Trace.Node.Builder node) {
-      return node.setResponseName(name);
+    public boolean equals(Object o) {
+      return o instanceof FieldName && Objects.equals(name, ((FieldName) o).name);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(name);
     }
   }
 }
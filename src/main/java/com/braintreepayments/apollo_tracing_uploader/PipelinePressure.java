@@ -0,0 +1,12 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+/**
+ * A stage of the tracing pipeline that can report how close it is to being overloaded.
+ */
+@FunctionalInterface
+public interface PipelinePressure {
+  /**
+   * @return A value from 0, when the stage is idle, to 1, when it is saturated and dropping work.
+   */
+  double getPressure();
+}
@@ -0,0 +1,19 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A destination for reports that have already been encoded, such as Apollo or an archive. Several sinks can share one
+ * {@link EncodedReport}; see {@link com.braintreepayments.apollo_tracing_uploader.impl.FanOutUploader}.
+ */
+@FunctionalInterface
+public interface ReportSink {
+  /**
+   * Send a report. Sinks that deliver in the background should return before delivery finishes.
+   *
+   * @param report An {@link EncodedReport}, which may be shared with other sinks.
+   * @return A {@link CompletableFuture} that completes once the report is accepted, or exceptionally once the sink
+   * gives up on it. Cancelling it should stop any further attempts.
+   */
+  CompletableFuture<Void> send(EncodedReport report);
+}
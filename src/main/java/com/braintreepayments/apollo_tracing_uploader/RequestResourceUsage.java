@@ -0,0 +1,89 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * Accumulates the CPU time and heap allocation of one request, read from the platform {@link ThreadMXBean}.
+ * <p>
+ * The request thread is measured from creation until {@link #finish()}. Data fetchers that run on other threads are
+ * measured separately, for the work done before they return. Work that can't be measured this way, such as a fetcher
+ * that returns a future still running on another thread, or a request that finishes off its thread, makes the
+ * measurement incomplete, and no usage is reported for it rather than an undercount. Allocation is only measured on
+ * JVMs that provide {@code com.sun.management.ThreadMXBean}, such as HotSpot.
+ */
+final class RequestResourceUsage {
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private static final boolean cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported();
+  private static final com.sun.management.ThreadMXBean allocations = allocationBean();
+
+  private final Thread requestThread = Thread.currentThread();
+  private final long requestCpuTimeNs = cpuTimeNs();
+  private final long requestAllocatedBytes = allocatedBytes();
+  private final AtomicLong otherCpuTimeNs = new AtomicLong();
+  private final AtomicLong otherAllocatedBytes = new AtomicLong();
+  private volatile boolean incomplete;
+
+  /**
+   * Start measuring a data fetcher.
+   *
+   * @return A {@link Consumer} to call with the fetcher's result as soon as it returns.
+   */
+  Consumer<CompletableFuture<?>> beginFetch() {
+    Thread fetchThread = Thread.currentThread();
+    long cpuTimeNs = fetchThread == requestThread ? 0 : cpuTimeNs();
+    long allocatedBytes = fetchThread == requestThread ? 0 : allocatedBytes();
+
+    return result -> {
+      if (!result.isDone() || Thread.currentThread() != fetchThread) {
+        incomplete = true;
+      } else if (fetchThread != requestThread) {
+        otherCpuTimeNs.addAndGet(cpuTimeNs() - cpuTimeNs);
+        otherAllocatedBytes.addAndGet(allocatedBytes() - allocatedBytes);
+      }
+    };
+  }
+
+  /**
+   * @return The request's usage, or {@code null} if some of its work couldn't be measured.
+   */
+  Reports.Trace.ResourceUsage finish() {
+    if (incomplete || Thread.currentThread() != requestThread) {
+      return null;
+    }
+
+    long cpuTimeNs = otherCpuTimeNs.get() + cpuTimeNs() - requestCpuTimeNs;
+    long allocatedBytes = otherAllocatedBytes.get() + allocatedBytes() - requestAllocatedBytes;
+
+    return Reports.Trace.ResourceUsage.newBuilder()
+      .setCpuTimeNs(cpuTimeNs)
+      .setAllocatedBytes(allocatedBytes)
+      .build();
+  }
+
+  private static long cpuTimeNs() {
+    return cpuTimeSupported ? threads.getCurrentThreadCpuTime() : 0;
+  }
+
+  private static long allocatedBytes() {
+    return allocations != null ? allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+  }
+
+  private static com.sun.management.ThreadMXBean allocationBean() {
+    try {
+      if (threads instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+        return bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled() ? bean : null;
+      }
+    } catch (LinkageError e) {
+      // com.sun.management is not available on this JVM
+    }
+
+    return null;
+  }
+}
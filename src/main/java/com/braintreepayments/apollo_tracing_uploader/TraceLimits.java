@@ -0,0 +1,73 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+/**
+ * Bounds on the size of a single trace. Resolver calls beyond these limits are folded into a
+ * {@link mdg.engine.proto.Reports.Trace.ElidedNodes} summary rather than traced individually, and errors beyond them
+ * are counted rather than recorded. Apollo does not read the summary, so elided calls are missing from its per-field
+ * statistics.
+ */
+public class TraceLimits {
+  private static final int DEFAULT_MAX_ERRORS = Integer.MAX_VALUE;
+
+  private final int maxNodes;
+  private final int maxListItems;
+  private final int maxErrors;
+
+  public TraceLimits(int maxNodes, int maxListItems) {
+    this(maxNodes, maxListItems, DEFAULT_MAX_ERRORS);
+  }
+
+  public TraceLimits(int maxNodes, int maxListItems, int maxErrors) {
+    this.maxNodes = maxNodes;
+    this.maxListItems = maxListItems;
+    this.maxErrors = maxErrors;
+  }
+
+  /**
+   * @return No limit on resolver calls, list items or errors, so every field reaches Apollo's per-field statistics and
+   * every error is recorded as reported.
+   */
+  public static TraceLimits defaults() {
+    return new TraceLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, DEFAULT_MAX_ERRORS);
+  }
+
+  public static TraceLimits unlimited() {
+    return new TraceLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return The maximum number of resolver calls traced individually. Further calls are summarized on the root node.
+   */
+  public int getMaxNodes() {
+    return maxNodes;
+  }
+
+  /**
+   * @return The maximum number of items traced individually per list. Calls under further items are summarized on
+   * the list's node.
+   */
+  public int getMaxListItems() {
+    return maxListItems;
+  }
+
+  /**
+   * @return The maximum number of distinct errors recorded per trace. Unless it's {@link Integer#MAX_VALUE}, errors
+   * with the same message at the same path, ignoring list indices, count as one and are recorded once with a repeat
+   * count. Further errors are only counted.
+   */
+  public int getMaxErrors() {
+    return maxErrors;
+  }
+
+  public TraceLimits withMaxNodes(int maxNodes) {
+    return new TraceLimits(maxNodes, maxListItems, maxErrors);
+  }
+
+  public TraceLimits withMaxListItems(int maxListItems) {
+    return new TraceLimits(maxNodes, maxListItems, maxErrors);
+  }
+
+  public TraceLimits withMaxErrors(int maxErrors) {
+    return new TraceLimits(maxNodes, maxListItems, maxErrors);
+  }
+}
@@ -0,0 +1,61 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * A mutable tree of trace nodes indexed by path segment, used to assemble a {@link mdg.engine.proto.Reports.Trace.Node}
+ * hierarchy without searching protobuf child lists. Not thread-safe.
+ */
+class TraceNodeTree {
+  private final Map<NodePath.Segment, TraceNodeTree> children = new LinkedHashMap<>();
+  private final List<Reports.Trace.Error> errors = new ArrayList<>();
+  private Reports.Trace.Node field;
+  private long startTime;
+  private long endTime;
+  private Reports.Trace.ElidedNodes elided;
+
+  TraceNodeTree get(NodePath path) {
+    TraceNodeTree tree = this;
+
+    for (NodePath.Segment segment : path.getSegments()) {
+      tree = tree.children.computeIfAbsent(segment, s -> new TraceNodeTree());
+    }
+
+    return tree;
+  }
+
+  void setField(Reports.Trace.Node field, long startTime, long endTime) {
+    this.field = field;
+    this.startTime = startTime;
+    this.endTime = endTime;
+  }
+
+  void addError(Reports.Trace.Error error) {
+    errors.add(error);
+  }
+
+  void setElided(Reports.Trace.ElidedNodes elided) {
+    this.elided = elided;
+  }
+
+  Reports.Trace.Node.Builder toProto() {
+    Reports.Trace.Node.Builder node = field == null
+      ? Reports.Trace.Node.newBuilder()
+      : field.toBuilder().setStartTime(startTime).setEndTime(endTime);
+
+    node.addAllError(errors);
+
+    if (elided != null) {
+      node.setElided(elided);
+    }
+
+    children.forEach((segment, child) -> node.addChild(segment.initializeNode(child.toProto())));
+
+    return node;
+  }
+}
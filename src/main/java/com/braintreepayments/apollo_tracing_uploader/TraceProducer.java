@@ -1,7 +1,22 @@
 package com.braintreepayments.apollo_tracing_uploader;
 
+import java.util.function.Supplier;
+
 import mdg.engine.proto.Reports;
 
 public interface TraceProducer {
   void submit(Reports.Trace trace);
+
+  /**
+   * Submit a trace that hasn't been assembled yet, letting the producer build it off the request thread. The
+   * {@link Supplier} is called at most once, from any thread, and must not depend on state owned by the request.
+   * <p>
+   * By default, the trace is built immediately on the calling thread and passed to {@link #submit}. Producers that
+   * build it elsewhere override this.
+   *
+   * @param trace Builds the trace.
+   */
+  default void submitDeferred(Supplier<Reports.Trace> trace) {
+    submit(trace.get());
+  }
 }
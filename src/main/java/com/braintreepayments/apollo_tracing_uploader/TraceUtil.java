@@ -0,0 +1,49 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import java.util.Optional;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * Static helpers for inspecting {@link mdg.engine.proto.Reports.Trace} messages.
+ */
+public final class TraceUtil {
+  private TraceUtil() {
+  }
+
+  /**
+   * The key under which a trace is grouped in {@link mdg.engine.proto.Reports.FullTracesReport#getTracesPerQueryMap()}.
+   *
+   * @param trace A {@link mdg.engine.proto.Reports.Trace}.
+   * @return The operation name and signature, in the format expected by Apollo.
+   */
+  public static String queryKey(Reports.Trace trace) {
+    String operationName = Optional.ofNullable(trace.getDetails().getOperationName())
+      .filter(s -> !s.isEmpty())
+      .orElse("-");
+
+    return "# " + operationName + "\n" + trace.getSignature();
+  }
+
+  /**
+   * @param trace A {@link mdg.engine.proto.Reports.Trace}.
+   * @return Whether any node in the trace recorded an error.
+   */
+  public static boolean hasErrors(Reports.Trace trace) {
+    return hasErrors(trace.getRoot());
+  }
+
+  private static boolean hasErrors(Reports.Trace.Node node) {
+    if (node.getErrorCount() > 0) {
+      return true;
+    }
+
+    for (Reports.Trace.Node child : node.getChildList()) {
+      if (hasErrors(child)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
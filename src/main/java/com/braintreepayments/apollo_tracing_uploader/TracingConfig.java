@@ -0,0 +1,208 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Settings that can be changed while the application is running, through this class or over JMX once
+ * {@link #registerMBean(String) registered}. Share one instance between the
+ * {@link com.braintreepayments.apollo_tracing_uploader.impl.ScheduledBatchingTraceProducer},
+ * {@link com.braintreepayments.apollo_tracing_uploader.impl.HttpTracingUploader} and
+ * {@link TracingUploadInstrumentation} it should tune, by passing it to each of their builders.
+ * <p>
+ * Each setting is read when it's next needed: the sampling rate and resource capture for each request, queue capacity
+ * for each trace, the batching window and worker count at the end of each window, and upload settings for each
+ * request attempt.
+ * Changes never drop traces that are already queued.
+ */
+public class TracingConfig implements TracingConfigMXBean {
+  private volatile long batchingWindowMillis = Duration.ofSeconds(10).toMillis();
+  private volatile int workerCount = 1;
+  private volatile int maxQueuedTraces = 4096;
+  private volatile int retries = 2;
+  private volatile long retryDelayMillis = Duration.ofSeconds(1).toMillis();
+  private volatile long readTimeoutMillis = Duration.ofSeconds(3).toMillis();
+  private volatile long connectTimeoutMillis = 500;
+  private volatile double samplingRate = 1;
+  private volatile boolean captureResourceUsage;
+
+  /**
+   * Register this config with the platform MBean server, as
+   * {@code com.braintreepayments.apollo_tracing_uploader:type=TracingConfig,name=<name>}.
+   *
+   * @param name A name distinguishing this config from others in the same JVM.
+   * @throws JMException If the name is invalid or already registered.
+   */
+  public void registerMBean(String name) throws JMException {
+    ObjectName objectName =
+      new ObjectName("com.braintreepayments.apollo_tracing_uploader:type=TracingConfig,name=" + ObjectName.quote(name));
+
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+  }
+
+  /**
+   * @return Whether a request should be traced, according to the current sampling rate.
+   */
+  public boolean sample() {
+    double rate = samplingRate;
+    return rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate;
+  }
+
+  public Duration getBatchingWindow() {
+    return Duration.ofMillis(batchingWindowMillis);
+  }
+
+  public void setBatchingWindow(Duration batchingWindow) {
+    setBatchingWindowMillis(batchingWindow.toMillis());
+  }
+
+  @Override
+  public long getBatchingWindowMillis() {
+    return batchingWindowMillis;
+  }
+
+  @Override
+  public void setBatchingWindowMillis(long batchingWindowMillis) {
+    requirePositive("batchingWindowMillis", batchingWindowMillis);
+    this.batchingWindowMillis = batchingWindowMillis;
+  }
+
+  @Override
+  public int getWorkerCount() {
+    return workerCount;
+  }
+
+  @Override
+  public void setWorkerCount(int workerCount) {
+    requirePositive("workerCount", workerCount);
+    this.workerCount = workerCount;
+  }
+
+  @Override
+  public int getMaxQueuedTraces() {
+    return maxQueuedTraces;
+  }
+
+  @Override
+  public void setMaxQueuedTraces(int maxQueuedTraces) {
+    requireNonNegative("maxQueuedTraces", maxQueuedTraces);
+    this.maxQueuedTraces = maxQueuedTraces;
+  }
+
+  @Override
+  public int getRetries() {
+    return retries;
+  }
+
+  @Override
+  public void setRetries(int retries) {
+    requireNonNegative("retries", retries);
+    this.retries = retries;
+  }
+
+  public Duration getRetryDelay() {
+    return Duration.ofMillis(retryDelayMillis);
+  }
+
+  public void setRetryDelay(Duration retryDelay) {
+    setRetryDelayMillis(retryDelay.toMillis());
+  }
+
+  @Override
+  public long getRetryDelayMillis() {
+    return retryDelayMillis;
+  }
+
+  @Override
+  public void setRetryDelayMillis(long retryDelayMillis) {
+    requireNonNegative("retryDelayMillis", retryDelayMillis);
+    this.retryDelayMillis = retryDelayMillis;
+  }
+
+  public Duration getReadTimeout() {
+    return Duration.ofMillis(readTimeoutMillis);
+  }
+
+  public void setReadTimeout(Duration readTimeout) {
+    setReadTimeoutMillis(readTimeout.toMillis());
+  }
+
+  @Override
+  public long getReadTimeoutMillis() {
+    return readTimeoutMillis;
+  }
+
+  @Override
+  public void setReadTimeoutMillis(long readTimeoutMillis) {
+    requirePositive("readTimeoutMillis", readTimeoutMillis);
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  public Duration getConnectTimeout() {
+    return Duration.ofMillis(connectTimeoutMillis);
+  }
+
+  public void setConnectTimeout(Duration connectTimeout) {
+    setConnectTimeoutMillis(connectTimeout.toMillis());
+  }
+
+  @Override
+  public long getConnectTimeoutMillis() {
+    return connectTimeoutMillis;
+  }
+
+  @Override
+  public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+    requirePositive("connectTimeoutMillis", connectTimeoutMillis);
+    this.connectTimeoutMillis = connectTimeoutMillis;
+  }
+
+  @Override
+  public double getSamplingRate() {
+    return samplingRate;
+  }
+
+  @Override
+  public void setSamplingRate(double samplingRate) {
+    if (!(samplingRate >= 0 && samplingRate <= 1)) {
+      throw new IllegalArgumentException("samplingRate must be between 0 and 1, was " + samplingRate);
+    }
+
+    this.samplingRate = samplingRate;
+  }
+
+  @Override
+  public boolean isCaptureResourceUsage() {
+    return captureResourceUsage;
+  }
+
+  /**
+   * Record the CPU time and heap allocation of each traced request in
+   * {@link mdg.engine.proto.Reports.Trace#getResourceUsage()}. This costs a few {@link
+   * java.lang.management.ThreadMXBean} reads per request, and per data fetcher run off the request thread. Requests
+   * with work that can't be measured, such as data fetchers that complete asynchronously, are left without it.
+   * Disabled by default.
+   *
+   * @param captureResourceUsage Whether to capture resource usage.
+   */
+  @Override
+  public void setCaptureResourceUsage(boolean captureResourceUsage) {
+    this.captureResourceUsage = captureResourceUsage;
+  }
+
+  private static void requirePositive(String name, long value) {
+    if (value <= 0) {
+      throw new IllegalArgumentException(name + " must be positive, was " + value);
+    }
+  }
+
+  private static void requireNonNegative(String name, long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException(name + " must not be negative, was " + value);
+    }
+  }
+}
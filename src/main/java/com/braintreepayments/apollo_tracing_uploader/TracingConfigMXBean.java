@@ -0,0 +1,42 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+/**
+ * The JMX view of a {@link TracingConfig}. Durations are in milliseconds.
+ */
+public interface TracingConfigMXBean {
+  long getBatchingWindowMillis();
+
+  void setBatchingWindowMillis(long batchingWindowMillis);
+
+  int getWorkerCount();
+
+  void setWorkerCount(int workerCount);
+
+  int getMaxQueuedTraces();
+
+  void setMaxQueuedTraces(int maxQueuedTraces);
+
+  int getRetries();
+
+  void setRetries(int retries);
+
+  long getRetryDelayMillis();
+
+  void setRetryDelayMillis(long retryDelayMillis);
+
+  long getReadTimeoutMillis();
+
+  void setReadTimeoutMillis(long readTimeoutMillis);
+
+  long getConnectTimeoutMillis();
+
+  void setConnectTimeoutMillis(long connectTimeoutMillis);
+
+  double getSamplingRate();
+
+  void setSamplingRate(double samplingRate);
+
+  boolean isCaptureResourceUsage();
+
+  void setCaptureResourceUsage(boolean captureResourceUsage);
+}
@@ -1,5 +1,6 @@
 package com.braintreepayments.apollo_tracing_uploader;
 
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
@@ -17,6 +18,10 @@ import graphql.execution.instrumentation.SimpleInstrumentationContext;
 import graphql.execution.instrumentation.parameters.InstrumentationExecuteOperationParameters;
 import graphql.execution.instrumentation.parameters.InstrumentationExecutionParameters;
 import graphql.execution.instrumentation.parameters.InstrumentationFieldFetchParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationFieldParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationValidationParameters;
+import graphql.language.Document;
+import graphql.validation.ValidationError;
 import mdg.engine.proto.Reports;
 
 /**
@@ -31,17 +36,52 @@ public class TracingUploadInstrumentation extends SimpleInstrumentation {
   private final VariablesSanitizer sanitizeVariables;
   private final TraceProducer producer;
   private final Supplier<Boolean> sendTracesIf;
+  private final TraceLimits traceLimits;
+  private final TracingConfig config;
+  private final FieldMetadataCache fieldMetadata = new FieldMetadataCache();
 
   public TracingUploadInstrumentation(BiConsumer<Reports.Trace.Builder, Object> customizeTrace,
                                       BiConsumer<Reports.Trace.Builder, GraphQLContext> customizeTraceGraphQLContext,
                                       VariablesSanitizer sanitizeVariables,
                                       TraceProducer producer,
                                       Supplier<Boolean> sendTracesIf) {
+    this(customizeTrace,
+         customizeTraceGraphQLContext,
+         sanitizeVariables,
+         producer,
+         sendTracesIf,
+         TraceLimits.defaults());
+  }
+
+  public TracingUploadInstrumentation(BiConsumer<Reports.Trace.Builder, Object> customizeTrace,
+                                      BiConsumer<Reports.Trace.Builder, GraphQLContext> customizeTraceGraphQLContext,
+                                      VariablesSanitizer sanitizeVariables,
+                                      TraceProducer producer,
+                                      Supplier<Boolean> sendTracesIf,
+                                      TraceLimits traceLimits) {
+    this(customizeTrace,
+         customizeTraceGraphQLContext,
+         sanitizeVariables,
+         producer,
+         sendTracesIf,
+         traceLimits,
+         new TracingConfig());
+  }
+
+  public TracingUploadInstrumentation(BiConsumer<Reports.Trace.Builder, Object> customizeTrace,
+                                      BiConsumer<Reports.Trace.Builder, GraphQLContext> customizeTraceGraphQLContext,
+                                      VariablesSanitizer sanitizeVariables,
+                                      TraceProducer producer,
+                                      Supplier<Boolean> sendTracesIf,
+                                      TraceLimits traceLimits,
+                                      TracingConfig config) {
     this.customizeTrace = customizeTrace;
     this.customizeTraceGraphQLContext = customizeTraceGraphQLContext;
     this.sanitizeVariables = sanitizeVariables;
     this.producer = producer;
     this.sendTracesIf = sendTracesIf;
+    this.traceLimits = traceLimits;
+    this.config = config;
   }
 
   public static Builder newBuilder() {
@@ -50,11 +90,14 @@ public class TracingUploadInstrumentation extends SimpleInstrumentation {
 
   @Override
   public TracingUploadInstrumentationState createState() {
-    boolean noop = !sendTracesIf.get();
+    boolean noop = !config.sample() || !sendTracesIf.get();
     return new TracingUploadInstrumentationState(producer,
                                                  customizeTrace,
                                                  customizeTraceGraphQLContext,
                                                  sanitizeVariables,
+                                                 traceLimits,
+                                                 fieldMetadata,
+                                                 config.isCaptureResourceUsage(),
                                                  noop);
   }
 
@@ -71,6 +114,18 @@ public class TracingUploadInstrumentation extends SimpleInstrumentation {
     return wrapHook(state, state::beginExecution, params, SimpleInstrumentationContext.noOp());
   }
 
+  @Override
+  public InstrumentationContext<Document> beginParse(InstrumentationExecutionParameters params) {
+    TracingUploadInstrumentationState state = params.getInstrumentationState();
+    return wrapHook(state, state::beginParse, params, SimpleInstrumentationContext.noOp());
+  }
+
+  @Override
+  public InstrumentationContext<List<ValidationError>> beginValidation(InstrumentationValidationParameters params) {
+    TracingUploadInstrumentationState state = params.getInstrumentationState();
+    return wrapHook(state, state::beginValidation, params, SimpleInstrumentationContext.noOp());
+  }
+
   @Override
   public InstrumentationContext<ExecutionResult> beginExecuteOperation(InstrumentationExecuteOperationParameters params) {
     TracingUploadInstrumentationState state = params.getInstrumentationState();
@@ -83,6 +138,12 @@ public class TracingUploadInstrumentation extends SimpleInstrumentation {
     return wrapHook(state, state::beginFieldFetch, params, SimpleInstrumentationContext.noOp());
   }
 
+  @Override
+  public InstrumentationContext<ExecutionResult> beginSubscribedFieldEvent(InstrumentationFieldParameters params) {
+    TracingUploadInstrumentationState state = params.getInstrumentationState();
+    return wrapHook(state, state::beginSubscribedFieldEvent, params, SimpleInstrumentationContext.noOp());
+  }
+
   @Override
   public CompletableFuture<ExecutionResult> instrumentExecutionResult(ExecutionResult executionResult,
                                                                       InstrumentationExecutionParameters params) {
@@ -113,15 +174,24 @@ public class TracingUploadInstrumentation extends SimpleInstrumentation {
     private VariablesSanitizer _sanitizeVariables = VariablesSanitizer.valuesTo("[FILTERED]");
     private TraceProducer _producer;
     private Supplier<Boolean> _sendTracesIf = () -> true;
+    private TraceLimits _traceLimits = TraceLimits.defaults();
+    private boolean _warmUp = false;
+    private TracingConfig _config = new TracingConfig();
 
     public TracingUploadInstrumentation build() {
       assert _producer != null : "Missing producer(TraceProducer)";
 
+      if (_warmUp) {
+        TracingWarmup.warmUpAsync();
+      }
+
       return new TracingUploadInstrumentation(_customizeTrace,
                                               _customizeTraceGraphQL,
                                               _sanitizeVariables,
                                               _producer,
-                                              _sendTracesIf);
+                                              _sendTracesIf,
+                                              _traceLimits,
+                                              _config);
     }
 
     /**
@@ -129,7 +199,8 @@ public class TracingUploadInstrumentation extends SimpleInstrumentation {
      *
      * @param traceConsumer A {@link BiConsumer} that accepts a {@link mdg.engine.proto.Reports.Trace.Builder} and
      *                      context object. This should be used to set fields such as `clientName`, `clientVersion`, and
-     *                      details about the HTTP request.
+     *                      details about the HTTP request. It's called on the request thread as the request
+     *                      completes, before the trace's node tree and errors are added.
      * @return {@link Builder}
      * @deprecated Deprecated in graphql-java, use {@link #customizeTraceGraphQLContext} instead.
      */
@@ -144,7 +215,8 @@ public class TracingUploadInstrumentation extends SimpleInstrumentation {
      *
      * @param traceConsumer A {@link BiConsumer} that accepts a {@link mdg.engine.proto.Reports.Trace.Builder} and
      *                      {@link GraphQLContext} object. This should be used to set fields such as `clientName`,
-     *                      `clientVersion`, and details about the HTTP request.
+     *                      `clientVersion`, and details about the HTTP request. It's called on the request thread as
+     *                      the request completes, before the trace's node tree and errors are added.
      * @return {@link Builder}
      */
     public Builder customizeTraceWithGraphQLContext(BiConsumer<Reports.Trace.Builder, GraphQLContext> traceConsumer) {
@@ -187,5 +259,70 @@ public class TracingUploadInstrumentation extends SimpleInstrumentation {
       this._sendTracesIf = sendTracesIf;
       return this;
     }
+
+    /**
+     * Register a {@link TracingConfig} whose sampling rate, which can be changed while the application is running, is
+     * applied before {@link #sendTracesIf}. Traces 100% of requests by default.
+     *
+     * @param config A {@link TracingConfig}.
+     * @return {@link Builder}
+     */
+    public Builder config(TracingConfig config) {
+      this._config = config;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of resolver calls traced individually per trace. Further calls are summarized in
+     * {@link mdg.engine.proto.Reports.Trace.Node#getElided()} on the root node, which Apollo ignores, so elided calls
+     * are missing from its per-field statistics. Unlimited by default.
+     *
+     * @param maxNodes The maximum number of nodes.
+     * @return {@link Builder}
+     */
+    public Builder maxNodesPerTrace(int maxNodes) {
+      this._traceLimits = _traceLimits.withMaxNodes(maxNodes);
+      return this;
+    }
+
+    /**
+     * Set the maximum number of items traced individually per list. Resolver calls under further items are summarized
+     * in {@link mdg.engine.proto.Reports.Trace.Node#getElided()} on the list's node, which Apollo ignores, so elided
+     * calls are missing from its per-field statistics. Unlimited by default.
+     *
+     * @param maxListItems The maximum number of items.
+     * @return {@link Builder}
+     */
+    public Builder maxListItemsPerList(int maxListItems) {
+      this._traceLimits = _traceLimits.withMaxListItems(maxListItems);
+      return this;
+    }
+
+    /**
+     * Set the maximum number of distinct errors recorded per trace. Errors with the same message at the same path,
+     * ignoring list indices, are recorded once with {@link mdg.engine.proto.Reports.Trace.Error#getRepeatCount()}, and
+     * further errors are counted in {@link mdg.engine.proto.Reports.Trace#getOmittedErrorCount()}. Apollo counts a
+     * merged or omitted error once or not at all, so set this only to bound traces of requests with many errors. By
+     * default, every error is recorded as reported.
+     *
+     * @param maxErrors The maximum number of distinct errors.
+     * @return {@link Builder}
+     */
+    public Builder maxErrorsPerTrace(int maxErrors) {
+      this._traceLimits = _traceLimits.withMaxErrors(maxErrors);
+      return this;
+    }
+
+    /**
+     * Run {@link TracingWarmup} in a background thread when the instrumentation is built, so the first traced request
+     * doesn't pay for class loading and initialization. Disabled by default.
+     *
+     * @param warmUp Whether to warm up.
+     * @return {@link Builder}
+     */
+    public Builder warmUp(boolean warmUp) {
+      this._warmUp = warmUp;
+      return this;
+    }
   }
 }
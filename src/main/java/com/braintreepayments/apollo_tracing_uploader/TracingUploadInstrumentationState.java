@@ -2,13 +2,21 @@ package com.braintreepayments.apollo_tracing_uploader;
 
 import java.time.Instant;
 import java.time.temporal.ChronoField;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import com.google.gson.Gson;
@@ -17,6 +25,8 @@ import com.google.protobuf.Timestamp;
 import graphql.ExecutionInput;
 import graphql.ExecutionResult;
 import graphql.GraphQLContext;
+import graphql.GraphQLError;
+import graphql.execution.ExecutionContext;
 import graphql.execution.ExecutionStepInfo;
 import graphql.execution.instrumentation.InstrumentationContext;
 import graphql.execution.instrumentation.InstrumentationState;
@@ -24,22 +34,39 @@ import graphql.execution.instrumentation.SimpleInstrumentationContext;
 import graphql.execution.instrumentation.parameters.InstrumentationExecuteOperationParameters;
 import graphql.execution.instrumentation.parameters.InstrumentationExecutionParameters;
 import graphql.execution.instrumentation.parameters.InstrumentationFieldFetchParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationFieldParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationValidationParameters;
 import graphql.language.AstPrinter;
 import graphql.language.AstSignature;
-import graphql.schema.GraphQLTypeUtil;
+import graphql.language.Document;
+import graphql.language.OperationDefinition;
+import graphql.schema.GraphQLSchema;
+import graphql.validation.ValidationError;
 import mdg.engine.proto.Reports;
 
 public class TracingUploadInstrumentationState implements InstrumentationState {
-  private final Gson gson = new Gson();
+  private static final Gson gson = new Gson();
   private final TraceProducer producer;
   private final BiConsumer<Reports.Trace.Builder, Object> customizeTrace;
   private final BiConsumer<Reports.Trace.Builder, GraphQLContext> customizeTraceGraphQLContext;
   private final VariablesSanitizer sanitizeVariables;
+  private final TraceLimits limits;
+  private final FieldMetadataCache fieldMetadata;
   private final Reports.Trace.Builder proto;
-  private final Map<NodePath, Reports.Trace.Node> nodePathsToNodes;
+  private final FetchedFields operationFields;
   private final long startRequestNs;
+  private final AtomicBoolean submitted = new AtomicBoolean();
+  private final Map<ExecutionContext, SubscriptionEvent> subscriptionEvents = new ConcurrentHashMap<>();
+  private final Map<Thread, SubscriptionEvent> startingEvents = new ConcurrentHashMap<>();
+  private final List<SubscriptionEvent> earlyEvents = new ArrayList<>();
+  private final AtomicLong eventCount = new AtomicLong();
+  private volatile boolean subscription;
+  private volatile Reports.Trace eventTemplate;
   private Object context;
   private GraphQLContext graphQLContext;
+  private List<GraphQLError> errors = Collections.emptyList();
+  private final boolean captureResourceUsage;
+  private volatile RequestResourceUsage resourceUsage;
   public final boolean noop;
 
   public TracingUploadInstrumentationState(TraceProducer producer,
@@ -47,15 +74,61 @@ public class TracingUploadInstrumentationState implements InstrumentationState {
                                            BiConsumer<Reports.Trace.Builder, GraphQLContext> customizeTraceGraphQLContext,
                                            VariablesSanitizer sanitizeVariables,
                                            boolean noop) {
+    this(producer, customizeTrace, customizeTraceGraphQLContext, sanitizeVariables, TraceLimits.defaults(), noop);
+  }
+
+  public TracingUploadInstrumentationState(TraceProducer producer,
+                                           BiConsumer<Reports.Trace.Builder, Object> customizeTrace,
+                                           BiConsumer<Reports.Trace.Builder, GraphQLContext> customizeTraceGraphQLContext,
+                                           VariablesSanitizer sanitizeVariables,
+                                           TraceLimits limits,
+                                           boolean noop) {
+    this(producer,
+         customizeTrace,
+         customizeTraceGraphQLContext,
+         sanitizeVariables,
+         limits,
+         new FieldMetadataCache(),
+         noop);
+  }
+
+  public TracingUploadInstrumentationState(TraceProducer producer,
+                                           BiConsumer<Reports.Trace.Builder, Object> customizeTrace,
+                                           BiConsumer<Reports.Trace.Builder, GraphQLContext> customizeTraceGraphQLContext,
+                                           VariablesSanitizer sanitizeVariables,
+                                           TraceLimits limits,
+                                           FieldMetadataCache fieldMetadata,
+                                           boolean noop) {
+    this(producer,
+         customizeTrace,
+         customizeTraceGraphQLContext,
+         sanitizeVariables,
+         limits,
+         fieldMetadata,
+         false,
+         noop);
+  }
+
+  public TracingUploadInstrumentationState(TraceProducer producer,
+                                           BiConsumer<Reports.Trace.Builder, Object> customizeTrace,
+                                           BiConsumer<Reports.Trace.Builder, GraphQLContext> customizeTraceGraphQLContext,
+                                           VariablesSanitizer sanitizeVariables,
+                                           TraceLimits limits,
+                                           FieldMetadataCache fieldMetadata,
+                                           boolean captureResourceUsage,
+                                           boolean noop) {
     this.producer = producer;
     this.customizeTrace = customizeTrace;
     this.customizeTraceGraphQLContext = customizeTraceGraphQLContext;
     this.sanitizeVariables = sanitizeVariables;
+    this.limits = limits;
+    this.fieldMetadata = fieldMetadata;
     this.proto = Reports.Trace.newBuilder();
     this.startRequestNs = System.nanoTime();
+    this.operationFields = new FetchedFields(startRequestNs);
     this.context = null;
     this.graphQLContext = null;
-    this.nodePathsToNodes = new ConcurrentHashMap<>();
+    this.captureResourceUsage = captureResourceUsage && !noop;
     this.noop = noop;
   }
 
@@ -72,7 +145,7 @@ public class TracingUploadInstrumentationState implements InstrumentationState {
       .map(Map::entrySet)
       .map(Collection::stream)
       .map(stream -> stream.collect(Collectors.toMap(Map.Entry::getKey, entry -> gson.toJson(entry.getValue()))))
-      .ifPresent(proto.getDetailsBuilder()::putAllVariablesJson);
+      .ifPresent(variablesJson -> proto.setDetails(proto.getDetails().toBuilder().putAllVariablesJson(variablesJson)));
 
     return executionInput;
   }
@@ -80,79 +153,407 @@ public class TracingUploadInstrumentationState implements InstrumentationState {
   public InstrumentationContext<ExecutionResult> beginExecution(InstrumentationExecutionParameters parameters) {
     proto.setStartTime(protoTimestamp(Instant.now()));
 
+    if (captureResourceUsage) {
+      resourceUsage = new RequestResourceUsage();
+    }
+
     return SimpleInstrumentationContext.whenCompleted((executionResult, e) -> {
       long nowNs = System.nanoTime();
       Instant nowInstant = Instant.now();
 
       proto.setEndTime(protoTimestamp(nowInstant)).setDurationNs(nowNs - startRequestNs);
 
-      Optional.ofNullable(executionResult.getErrors())
-        .orElseGet(Collections::emptyList)
-        .forEach(graphQLError -> {
-          NodePath path = Optional.ofNullable(graphQLError.getPath()).map(NodePath::fromList).orElseGet(NodePath::root);
-          Reports.Trace.Node.Builder node = path.getChild(proto.getRootBuilder());
-
-          Reports.Trace.Error.Builder error = node.addErrorBuilder()
-            .setMessage(graphQLError.getMessage())
-            .setJson(gson.toJson(graphQLError.toSpecification()));
-
-          Optional.ofNullable(graphQLError.getLocations())
-            .orElseGet(Collections::emptyList)
-            .forEach(location -> error.addLocationBuilder()
-              .setColumn(location.getColumn())
-              .setLine(location.getLine()));
-        });
+      Reports.Trace.ResourceUsage usage = resourceUsage != null ? resourceUsage.finish() : null;
+
+      if (usage != null) {
+        proto.setResourceUsage(usage);
+      }
+
+      errors = Optional.ofNullable(executionResult.getErrors()).orElseGet(Collections::emptyList);
     });
   }
 
+  public InstrumentationContext<Document> beginParse(InstrumentationExecutionParameters parameters) {
+    return timePhase(proto::setParse);
+  }
+
+  public InstrumentationContext<List<ValidationError>> beginValidation(InstrumentationValidationParameters parameters) {
+    return timePhase(proto::setValidation);
+  }
+
   public InstrumentationContext<ExecutionResult> beginExecuteOperation(InstrumentationExecuteOperationParameters parameters) {
-    String operationName = parameters.getExecutionContext().getOperationDefinition().getName();
+    OperationDefinition operation = parameters.getExecutionContext().getOperationDefinition();
+    String operationName = operation.getName();
+    subscription = operation.getOperation() == OperationDefinition.Operation.SUBSCRIPTION;
 
-    Optional.ofNullable(operationName).ifPresent(proto.getDetailsBuilder()::setOperationName);
+    Optional.ofNullable(operationName)
+      .ifPresent(name -> proto.setDetails(proto.getDetails().toBuilder().setOperationName(name)));
 
     Optional.ofNullable(parameters.getExecutionContext().getDocument())
       .map(doc -> new AstSignature().signatureQuery(doc, operationName))
       .map(AstPrinter::printAstCompact)
       .ifPresent(proto::setSignature);
 
-    return SimpleInstrumentationContext.noOp();
+    return timePhase(proto::setExecution);
   }
 
   public InstrumentationContext<Object> beginFieldFetch(InstrumentationFieldFetchParameters parameters) {
     long startFieldFetchNs = System.nanoTime();
-    long offsetNs = startFieldFetchNs - startRequestNs;
     ExecutionStepInfo stepInfo = parameters.getExecutionStepInfo();
+    GraphQLSchema schema = parameters.getExecutionContext().getGraphQLSchema();
+    SubscriptionEvent event = subscription ? subscriptionEvent(parameters.getExecutionContext()) : null;
+
+    if (subscription && event == null && submitted.get()) {
+      return SimpleInstrumentationContext.noOp();
+    }
+
+    FetchedFields fields = event != null ? event.fields : operationFields;
+    Consumer<CompletableFuture<?>> endFetchResourceUsage =
+      resourceUsage != null && event == null ? resourceUsage.beginFetch() : null;
 
-    return SimpleInstrumentationContext.whenCompleted((obj, e) -> {
+    BiConsumer<Object, Throwable> fetched = (obj, e) -> {
       long now = System.nanoTime();
       long durationNs = now - startFieldFetchNs;
 
-      NodePath path = NodePath.fromList(stepInfo.getPath().toList());
+      List<Object> pathList = stepInfo.getPath().toList();
+      int elidedItemSegment = findElidedListItem(pathList);
 
-      Reports.Trace.Node childNode = Reports.Trace.Node.newBuilder()
-        .setOriginalFieldName(stepInfo.getFieldDefinition().getName())
-        .setType(stepInfo.simplePrint())
-        .setParentType(GraphQLTypeUtil.simplePrint(stepInfo.getParent().getUnwrappedNonNullType()))
-        .setStartTime(offsetNs)
-        .setEndTime(offsetNs + durationNs)
-        .build();
+      if (elidedItemSegment >= 0) {
+        NodePath listPath = NodePath.fromList(pathList.subList(0, elidedItemSegment));
+        fields.elide(listPath, (Integer) pathList.get(elidedItemSegment), durationNs);
+        return;
+      }
 
-      nodePathsToNodes.put(path, childNode);
-    });
+      if (fields.nodeCount.incrementAndGet() > limits.getMaxNodes()) {
+        fields.elide(NodePath.root(), -1, durationNs);
+        return;
+      }
+
+      NodePath path = NodePath.fromList(pathList);
+      Reports.Trace.Node template = fieldMetadata.template(schema, stepInfo);
+      long offsetNs = startFieldFetchNs - fields.startNs;
+
+      fields.fetched.put(path, new FetchedField(template, offsetNs, offsetNs + durationNs));
+    };
+
+    if (endFetchResourceUsage == null) {
+      return SimpleInstrumentationContext.whenCompleted(fetched);
+    }
+
+    return new SimpleInstrumentationContext<Object>() {
+      @Override
+      public void onDispatched(CompletableFuture<Object> result) {
+        endFetchResourceUsage.accept(result);
+      }
+
+      @Override
+      public void onCompleted(Object result, Throwable t) {
+        fetched.accept(result, t);
+      }
+    };
+  }
+
+  /**
+   * Start tracing one event delivered to a subscription. Its trace is submitted once the event's result is complete,
+   * and is made from a copy of the subscription's trace, so the per-event cost doesn't grow with the life of the
+   * subscription. Events that complete before the subscription's own trace is submitted wait for it.
+   */
+  public InstrumentationContext<ExecutionResult> beginSubscribedFieldEvent(InstrumentationFieldParameters parameters) {
+    ExecutionStepInfo stepInfo = parameters.getExecutionStepInfo();
+    Reports.Trace.Node template = fieldMetadata.template(parameters.getExecutionContext().getGraphQLSchema(), stepInfo);
+    SubscriptionEvent event = new SubscriptionEvent(eventCount.incrementAndGet(),
+                                                    NodePath.fromList(stepInfo.getPath().toList()),
+                                                    template);
+    Thread startingThread = Thread.currentThread();
+    startingEvents.put(startingThread, event);
+
+    return new SimpleInstrumentationContext<ExecutionResult>() {
+      @Override
+      public void onDispatched(CompletableFuture<ExecutionResult> result) {
+        startingEvents.remove(startingThread, event);
+      }
+
+      @Override
+      public void onCompleted(ExecutionResult result, Throwable t) {
+        event.finish(result);
+        startingEvents.remove(startingThread, event);
+
+        if (event.context != null) {
+          subscriptionEvents.remove(event.context);
+        }
+
+        Reports.Trace eventBase;
+
+        synchronized (earlyEvents) {
+          eventBase = eventTemplate;
+
+          if (eventBase == null) {
+            earlyEvents.add(event);
+            return;
+          }
+        }
+
+        producer.submitDeferred(() -> assembleEvent(eventBase, event));
+      }
+    };
   }
 
+  /**
+   * Run the customize callbacks, which may read request state, then hand the trace to the producer to add its node
+   * tree and errors, which may happen on another thread after the request completes.
+   * <p>
+   * For subscriptions, this is called again with the result of each event, which is traced separately, so only the
+   * first call submits a trace. A subscription's trace is assembled straight away, as its events are traced from a copy
+   * of it.
+   */
   public CompletableFuture<ExecutionResult> instrumentExecutionResult(ExecutionResult executionResult) {
-    populateRootNode();
+    if (!submitted.compareAndSet(false, true)) {
+      return CompletableFuture.completedFuture(executionResult);
+    }
+
     customizeTrace.accept(proto, context);
     customizeTraceGraphQLContext.accept(proto, graphQLContext);
-    producer.submit(proto.build());
+
+    if (subscription) {
+      Reports.Trace trace = assemble();
+      Reports.Trace eventBase = trace.toBuilder()
+        .clearStartTime()
+        .clearEndTime()
+        .clearDurationNs()
+        .clearParse()
+        .clearValidation()
+        .clearExecution()
+        .clearResourceUsage()
+        .clearRoot()
+        .clearOmittedErrorCount()
+        .build();
+
+      synchronized (earlyEvents) {
+        eventTemplate = eventBase;
+      }
+
+      producer.submit(trace);
+      earlyEvents.forEach(event -> producer.submitDeferred(() -> assembleEvent(eventBase, event)));
+      earlyEvents.clear();
+    } else {
+      producer.submitDeferred(this::assemble);
+    }
 
     return CompletableFuture.completedFuture(executionResult);
   }
 
-  private void populateRootNode() {
-    Reports.Trace.Node.Builder rootNode = proto.getRootBuilder();
-    nodePathsToNodes.forEach((path, node) -> path.getChild(rootNode).mergeFrom(node));
+  private Reports.Trace assemble() {
+    TraceNodeTree root = new TraceNodeTree();
+
+    addErrors(proto, root, errors);
+    populate(root, operationFields);
+
+    return proto.setRoot(root.toProto()).build();
+  }
+
+  private Reports.Trace assembleEvent(Reports.Trace base, SubscriptionEvent event) {
+    Reports.Trace.Builder trace = base.toBuilder()
+      .setSubscriptionEvent(event.sequence)
+      .setStartTime(protoTimestamp(event.start))
+      .setEndTime(protoTimestamp(event.end))
+      .setDurationNs(event.durationNs);
+    TraceNodeTree root = new TraceNodeTree();
+
+    root.get(event.path).setField(event.template, 0, event.durationNs);
+    addErrors(trace, root, event.errors);
+    populate(root, event.fields);
+
+    return trace.setRoot(root.toProto()).build();
+  }
+
+  /**
+   * Record each error, up to the limit. When errors are limited, each distinct error is recorded once with a count of
+   * its repeats. Only recorded errors are encoded as JSON.
+   */
+  private void addErrors(Reports.Trace.Builder trace, TraceNodeTree root, List<GraphQLError> graphQLErrors) {
+    boolean merge = limits.getMaxErrors() < Integer.MAX_VALUE;
+    Map<ErrorKey, RepeatedError> distinct = new HashMap<>();
+    List<RepeatedError> recorded = new ArrayList<>();
+    int omitted = 0;
+
+    for (GraphQLError graphQLError : graphQLErrors) {
+      NodePath path = Optional.ofNullable(graphQLError.getPath()).map(NodePath::fromList).orElseGet(NodePath::root);
+      ErrorKey key = merge ? new ErrorKey(graphQLError.getMessage(), path.template()) : null;
+      RepeatedError repeated = merge ? distinct.get(key) : null;
+
+      if (repeated != null) {
+        repeated.repeatCount++;
+      } else if (recorded.size() < limits.getMaxErrors()) {
+        repeated = new RepeatedError(graphQLError, path);
+        recorded.add(repeated);
+
+        if (merge) {
+          distinct.put(key, repeated);
+        }
+      } else {
+        omitted++;
+      }
+    }
+
+    recorded.forEach(repeated -> addError(root, repeated));
+
+    if (omitted > 0) {
+      trace.setOmittedErrorCount(omitted);
+    }
+  }
+
+  private void addError(TraceNodeTree root, RepeatedError repeated) {
+    GraphQLError graphQLError = repeated.error;
+
+    Reports.Trace.Error.Builder error = Reports.Trace.Error.newBuilder()
+      .setMessage(graphQLError.getMessage())
+      .setJson(gson.toJson(graphQLError.toSpecification()))
+      .setRepeatCount(repeated.repeatCount);
+
+    Optional.ofNullable(graphQLError.getLocations())
+      .orElseGet(Collections::emptyList)
+      .forEach(location -> error.addLocation(Reports.Trace.Location.newBuilder()
+                                               .setColumn(location.getColumn())
+                                               .setLine(location.getLine())));
+
+    root.get(repeated.path).addError(error.build());
+  }
+
+  private static void populate(TraceNodeTree root, FetchedFields fields) {
+    fields.fetched.forEach((path, field) -> root.get(path).setField(field.template, field.startNs, field.endNs));
+    fields.elided.forEach((path, summary) -> root.get(path).setElided(summary.toProto()));
+  }
+
+  /**
+   * Find the event a field fetched during a subscription belongs to. Each event is executed with its own
+   * {@link ExecutionContext}, but the event is started before that context is available. graphql-java starts fetching
+   * an event's fields on the thread that started the event, before the event is dispatched, so the first fetch made
+   * with a new context claims the event being started on its thread.
+   *
+   * @return The event, or {@code null} for fetches made while subscribing.
+   */
+  private SubscriptionEvent subscriptionEvent(ExecutionContext executionContext) {
+    SubscriptionEvent event = subscriptionEvents.get(executionContext);
+
+    if (event == null) {
+      event = startingEvents.remove(Thread.currentThread());
+
+      if (event != null) {
+        event.context = executionContext;
+        subscriptionEvents.put(executionContext, event);
+      }
+    }
+
+    return event;
+  }
+
+  private int findElidedListItem(List<Object> pathList) {
+    for (int i = 0; i < pathList.size(); i++) {
+      Object segment = pathList.get(i);
+
+      if (segment instanceof Integer && (Integer) segment >= limits.getMaxListItems()) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  private static final class FetchedField {
+    private final Reports.Trace.Node template;
+    private final long startNs;
+    private final long endNs;
+
+    FetchedField(Reports.Trace.Node template, long startNs, long endNs) {
+      this.template = template;
+      this.startNs = startNs;
+      this.endNs = endNs;
+    }
+  }
+
+  /**
+   * The fields fetched for one trace, timed from {@code startNs}.
+   */
+  private static final class FetchedFields {
+    private final long startNs;
+    private final Map<NodePath, FetchedField> fetched = new ConcurrentHashMap<>();
+    private final Map<NodePath, ElidedNodesSummary> elided = new ConcurrentHashMap<>();
+    private final AtomicInteger nodeCount = new AtomicInteger();
+
+    FetchedFields(long startNs) {
+      this.startNs = startNs;
+    }
+
+    void elide(NodePath path, int itemIndex, long durationNs) {
+      elided.computeIfAbsent(path, p -> new ElidedNodesSummary()).record(itemIndex, durationNs);
+    }
+  }
+
+  private static final class SubscriptionEvent {
+    private final long sequence;
+    private final NodePath path;
+    private final Reports.Trace.Node template;
+    private final Instant start = Instant.now();
+    private final FetchedFields fields = new FetchedFields(System.nanoTime());
+    private volatile ExecutionContext context;
+    private Instant end;
+    private long durationNs;
+    private List<GraphQLError> errors = Collections.emptyList();
+
+    SubscriptionEvent(long sequence, NodePath path, Reports.Trace.Node template) {
+      this.sequence = sequence;
+      this.path = path;
+      this.template = template;
+    }
+
+    void finish(ExecutionResult result) {
+      durationNs = System.nanoTime() - fields.startNs;
+      end = Instant.now();
+
+      if (result != null && result.getErrors() != null) {
+        errors = result.getErrors();
+      }
+    }
+  }
+
+  private static final class ErrorKey {
+    private final String message;
+    private final NodePath pathTemplate;
+
+    ErrorKey(String message, NodePath pathTemplate) {
+      this.message = message;
+      this.pathTemplate = pathTemplate;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof ErrorKey
+        && Objects.equals(message, ((ErrorKey) o).message)
+        && pathTemplate.equals(((ErrorKey) o).pathTemplate);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Objects.hashCode(message) + pathTemplate.hashCode();
+    }
+  }
+
+  private static final class RepeatedError {
+    private final GraphQLError error;
+    private final NodePath path;
+    private int repeatCount;
+
+    RepeatedError(GraphQLError error, NodePath path) {
+      this.error = error;
+      this.path = path;
+    }
+  }
+
+  private <T> InstrumentationContext<T> timePhase(Consumer<Reports.Trace.Phase> setPhase) {
+    long startNs = System.nanoTime() - startRequestNs;
+
+    return SimpleInstrumentationContext.whenCompleted((result, e) -> setPhase.accept(
+      Reports.Trace.Phase.newBuilder().setStartTime(startNs).setEndTime(System.nanoTime() - startRequestNs).build()));
   }
 
   private Timestamp protoTimestamp(Instant instant) {
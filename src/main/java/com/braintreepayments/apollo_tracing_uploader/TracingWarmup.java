@@ -0,0 +1,100 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import graphql.ExecutionInput;
+import graphql.GraphQL;
+import graphql.GraphqlErrorBuilder;
+import graphql.execution.DataFetcherResult;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.RuntimeWiring;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import mdg.engine.proto.Reports;
+
+/**
+ * Loads and exercises the code a traced request goes through, so the first real request after startup doesn't pay
+ * for class loading and initialization in protobuf, graphql-java signature printing, Gson and gzip.
+ * <p>
+ * This traces a query against a small schema of its own, then builds, serializes and compresses a report from the
+ * trace. Nothing is sent anywhere, and no tracing threads are started.
+ */
+public final class TracingWarmup {
+  private static final Logger logger = LoggerFactory.getLogger(TracingWarmup.class);
+  private static final String SCHEMA = "type Query { items(first: Int): [Item] failing: String } "
+    + "type Item { id: ID name: String }";
+  private static final String QUERY = "query Warmup($first: Int) { items(first: $first) { id name } failing }";
+
+  private TracingWarmup() {
+  }
+
+  /**
+   * Warm up in the calling thread. Failures are logged rather than thrown.
+   */
+  public static void warmUp() {
+    try {
+      List<Reports.Trace> traces = new ArrayList<>();
+
+      TracingUploadInstrumentation instrumentation = TracingUploadInstrumentation.newBuilder()
+        .producer(traces::add)
+        .build();
+
+      GraphQL.newGraphQL(schema())
+        .instrumentation(instrumentation)
+        .build()
+        .execute(ExecutionInput.newExecutionInput(QUERY).variables(Collections.singletonMap("first", 2)));
+
+      Reports.FullTracesReport report = new FullTracesReportBuilder().build(traces, header -> {
+      });
+      EncodedReport.encode(report);
+
+      Reports.FullTracesReport.parseFrom(report.toByteString());
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Tracing warm-up failed", e);
+    }
+  }
+
+  /**
+   * Warm up in a new daemon thread.
+   *
+   * @return A {@link CompletableFuture} that completes once warm-up has finished.
+   */
+  public static CompletableFuture<Void> warmUpAsync() {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+
+    Thread thread = new Thread(() -> {
+      warmUp();
+      future.complete(null);
+    }, "apollo-tracing-warmup");
+    thread.setDaemon(true);
+    thread.start();
+
+    return future;
+  }
+
+  private static GraphQLSchema schema() {
+    Map<String, Object> item = new HashMap<>();
+    item.put("id", "1");
+    item.put("name", "warmup");
+
+    RuntimeWiring wiring = RuntimeWiring.newRuntimeWiring()
+      .type("Query", type -> type
+        .dataFetcher("items", env -> Arrays.asList(item, item))
+        .dataFetcher("failing", env -> DataFetcherResult.newResult()
+          .error(GraphqlErrorBuilder.newError(env).message("warm-up error").build())
+          .build()))
+      .build();
+
+    return new SchemaGenerator().makeExecutableSchema(new SchemaParser().parse(SCHEMA), wiring);
+  }
+}
@@ -1,8 +1,23 @@
 package com.braintreepayments.apollo_tracing_uploader;
 
+import java.util.concurrent.CompletableFuture;
+
 import mdg.engine.proto.Reports;
 
 @FunctionalInterface
 public interface Uploader {
   void upload(Reports.FullTracesReport report);
+
+  /**
+   * Upload a report and track its delivery. Uploaders that deliver in the background should override this so the
+   * returned future completes once the report is accepted, or exceptionally once they give up on it. Cancelling the
+   * future should stop any further attempts.
+   *
+   * @param report A {@link mdg.engine.proto.Reports.FullTracesReport}.
+   * @return A {@link CompletableFuture} that completes when the upload is finished.
+   */
+  default CompletableFuture<Void> uploadAsync(Reports.FullTracesReport report) {
+    upload(report);
+    return CompletableFuture.completedFuture(null);
+  }
 }
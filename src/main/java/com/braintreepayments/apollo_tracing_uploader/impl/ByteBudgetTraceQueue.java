@@ -0,0 +1,418 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import com.braintreepayments.apollo_tracing_uploader.PipelinePressure;
+import com.braintreepayments.apollo_tracing_uploader.TraceUtil;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * A trace queue bounded by the total serialized size of the traces it holds, rather than by their number, so memory
+ * held by queued traces has a hard upper bound.
+ * <p>
+ * When a trace doesn't fit, queued traces that are cheaper to lose are evicted to make room for it: traces without
+ * errors before traces with errors, and faster traces before slower ones. If the new trace is the cheapest, it's
+ * rejected instead. Traces are otherwise taken in the order they were added.
+ * <p>
+ * Its {@link PipelinePressure} is the share of the budget in use.
+ */
+public class ByteBudgetTraceQueue extends AbstractQueue<Reports.Trace>
+  implements BlockingQueue<Reports.Trace>, PipelinePressure {
+  private static final Comparator<Entry> DROP_ORDER = Comparator
+    .comparing((Entry entry) -> entry.hasErrors)
+    .thenComparingLong(entry -> entry.trace.getDurationNs())
+    .thenComparingLong(entry -> entry.sequence);
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final ArrayDeque<Entry> arrivalOrder = new ArrayDeque<>();
+  private final TreeSet<Entry> dropOrder = new TreeSet<>(DROP_ORDER);
+  private final AtomicLong droppedTraceCount = new AtomicLong();
+  private final AtomicLong droppedBytes = new AtomicLong();
+  private volatile long maxBytes;
+  private long usedBytes;
+  private long nextSequence;
+
+  public ByteBudgetTraceQueue(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  @Override
+  public boolean offer(Reports.Trace trace) {
+    Entry entry = new Entry(trace);
+
+    lock.lock();
+    try {
+      if (admit(entry)) {
+        return true;
+      }
+
+      recordDrop(entry);
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void put(Reports.Trace trace) throws InterruptedException {
+    Entry entry = new Entry(trace);
+
+    lock.lockInterruptibly();
+    try {
+      while (!admit(entry)) {
+        notFull.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(Reports.Trace trace, long timeout, TimeUnit unit) throws InterruptedException {
+    Entry entry = new Entry(trace);
+    long remainingNs = unit.toNanos(timeout);
+
+    lock.lockInterruptibly();
+    try {
+      while (!admit(entry)) {
+        if (remainingNs <= 0) {
+          recordDrop(entry);
+          return false;
+        }
+
+        remainingNs = notFull.awaitNanos(remainingNs);
+      }
+
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Reports.Trace poll() {
+    lock.lock();
+    try {
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Reports.Trace take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (dropOrder.isEmpty()) {
+        notEmpty.await();
+      }
+
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Reports.Trace poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long remainingNs = unit.toNanos(timeout);
+
+    lock.lockInterruptibly();
+    try {
+      while (dropOrder.isEmpty()) {
+        if (remainingNs <= 0) {
+          return null;
+        }
+
+        remainingNs = notEmpty.awaitNanos(remainingNs);
+      }
+
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Reports.Trace peek() {
+    lock.lock();
+    try {
+      skipRemoved();
+      return arrivalOrder.isEmpty() ? null : arrivalOrder.peekFirst().trace;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int drainTo(Collection<? super Reports.Trace> collection) {
+    return drainTo(collection, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super Reports.Trace> collection, int maxElements) {
+    lock.lock();
+    try {
+      int drained = 0;
+
+      while (drained < maxElements && !dropOrder.isEmpty()) {
+        collection.add(dequeue());
+        drained++;
+      }
+
+      return drained;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return dropOrder.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return {@link Integer#MAX_VALUE}, since capacity depends on the size of the traces offered.
+   */
+  @Override
+  public int remainingCapacity() {
+    return Integer.MAX_VALUE;
+  }
+
+  @Override
+  public boolean remove(Object trace) {
+    lock.lock();
+    try {
+      for (Iterator<Entry> entries = arrivalOrder.iterator(); entries.hasNext(); ) {
+        Entry entry = entries.next();
+
+        if (!entry.removed && entry.trace.equals(trace)) {
+          entries.remove();
+          unlink(entry);
+          notFull.signalAll();
+          return true;
+        }
+      }
+
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean removeIf(Predicate<? super Reports.Trace> filter) {
+    lock.lock();
+    try {
+      boolean removed = false;
+
+      for (Iterator<Entry> entries = arrivalOrder.iterator(); entries.hasNext(); ) {
+        Entry entry = entries.next();
+
+        if (entry.removed) {
+          entries.remove();
+        } else if (filter.test(entry.trace)) {
+          entries.remove();
+          unlink(entry);
+          removed = true;
+        }
+      }
+
+      if (removed) {
+        notFull.signalAll();
+      }
+
+      return removed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean removeAll(Collection<?> traces) {
+    return removeIf(traces::contains);
+  }
+
+  @Override
+  public boolean retainAll(Collection<?> traces) {
+    return removeIf(trace -> !traces.contains(trace));
+  }
+
+  /**
+   * @return A snapshot of the queued traces, in the order they were added. Remove traces through the queue instead.
+   */
+  @Override
+  public Iterator<Reports.Trace> iterator() {
+    lock.lock();
+    try {
+      List<Reports.Trace> traces = new ArrayList<>(dropOrder.size());
+
+      for (Entry entry : arrivalOrder) {
+        if (!entry.removed) {
+          traces.add(entry.trace);
+        }
+      }
+
+      return Collections.unmodifiableList(traces).iterator();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public double getPressure() {
+    return Math.min(1, (double) getUsedBytes() / maxBytes);
+  }
+
+  public long getUsedBytes() {
+    lock.lock();
+    try {
+      return usedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Change the budget. Lowering it doesn't evict queued traces by itself; they're evicted as new traces need room.
+   *
+   * @param maxBytes The new budget, in serialized bytes.
+   */
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+
+    lock.lock();
+    try {
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of traces rejected or evicted to stay within the budget.
+   */
+  public long getDroppedTraceCount() {
+    return droppedTraceCount.get();
+  }
+
+  /**
+   * @return The serialized size of traces rejected or evicted to stay within the budget.
+   */
+  public long getDroppedBytes() {
+    return droppedBytes.get();
+  }
+
+  private boolean admit(Entry entry) {
+    long budget = maxBytes;
+
+    if (entry.bytes > budget) {
+      return false;
+    }
+
+    long neededBytes = usedBytes + entry.bytes - budget;
+
+    if (neededBytes > 0) {
+      List<Entry> evicted = new ArrayList<>();
+      long freedBytes = 0;
+
+      for (Entry queued : dropOrder) {
+        if (freedBytes >= neededBytes || DROP_ORDER.compare(queued, entry) > 0) {
+          break;
+        }
+
+        evicted.add(queued);
+        freedBytes += queued.bytes;
+      }
+
+      if (freedBytes < neededBytes) {
+        return false;
+      }
+
+      for (Entry queued : evicted) {
+        unlink(queued);
+        recordDrop(queued);
+      }
+    }
+
+    entry.sequence = nextSequence++;
+    arrivalOrder.addLast(entry);
+    dropOrder.add(entry);
+    usedBytes += entry.bytes;
+    notEmpty.signal();
+
+    return true;
+  }
+
+  private Reports.Trace dequeue() {
+    skipRemoved();
+
+    Entry entry = arrivalOrder.pollFirst();
+
+    if (entry == null) {
+      return null;
+    }
+
+    unlink(entry);
+    notFull.signalAll();
+
+    return entry.trace;
+  }
+
+  private void unlink(Entry entry) {
+    entry.removed = true;
+    dropOrder.remove(entry);
+    usedBytes -= entry.bytes;
+  }
+
+  private void skipRemoved() {
+    while (!arrivalOrder.isEmpty() && arrivalOrder.peekFirst().removed) {
+      arrivalOrder.pollFirst();
+    }
+  }
+
+  private void recordDrop(Entry entry) {
+    droppedTraceCount.incrementAndGet();
+    droppedBytes.addAndGet(entry.bytes);
+  }
+
+  private static class Entry {
+    private final Reports.Trace trace;
+    private final boolean hasErrors;
+    private final int bytes;
+    private long sequence = Long.MAX_VALUE;
+    private boolean removed;
+
+    Entry(Reports.Trace trace) {
+      this.trace = trace;
+      this.hasErrors = TraceUtil.hasErrors(trace);
+      this.bytes = trace.getSerializedSize();
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.google.protobuf.MessageLite;
+
+/**
+ * The wire format spoken between {@link CollectorTraceProducer} and the trace collector.
+ * <p>
+ * A connection carries a sequence of frames, each a one-byte type followed by a length-delimited protobuf message.
+ * A {@link #HEADER} frame sets the {@link mdg.engine.proto.Reports.ReportHeader} for the {@link #TRACE} frames that
+ * follow it on the same connection. A {@link #REPORT} frame carries a whole
+ * {@link mdg.engine.proto.Reports.FullTracesReport} with its own header. The collector never replies, so a client may
+ * write any number of frames without waiting.
+ */
+public final class CollectorProtocol {
+  public static final int DEFAULT_PORT = 7411;
+  public static final int HEADER = 1;
+  public static final int TRACE = 2;
+  public static final int REPORT = 3;
+
+  private CollectorProtocol() {
+  }
+
+  public static void writeFrame(OutputStream out, int type, MessageLite message) throws IOException {
+    out.write(type);
+    message.writeDelimitedTo(out);
+  }
+}
@@ -0,0 +1,366 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.braintreepayments.apollo_tracing_uploader.TraceProducer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * A {@link TraceProducer} that streams traces to a trace collector over TCP, which merges traces from many processes
+ * into fewer, larger reports for Apollo. See {@link CollectorProtocol} for the wire format.
+ * <p>
+ * Each of {@code connections} workers, started when the first trace is submitted, keeps its own connection open and
+ * writes batches of queued traces back to back, flushing once per batch. Traces are dropped when the queue is full.
+ * When a connection fails, the worker reconnects after {@code reconnectDelay} and sends the batch again, so the
+ * collector may receive part of it twice; a batch is dropped after {@code sendAttempts} failures. Deferred traces are
+ * built on {@link TracingExecutors#workerExecutor()} before being queued.
+ * <p>
+ * {@link CollectorTraceProducer#shutdown} should be called at application shutdown to send any queued traces.
+ */
+public class CollectorTraceProducer implements TraceProducer {
+  private static final Duration SHUTDOWN_DEADLINE = Duration.ofSeconds(30);
+  private static final long POLL_MILLIS = 100;
+  private static final Logger logger = LoggerFactory.getLogger(CollectorTraceProducer.class);
+
+  private final Consumer<Reports.ReportHeader.Builder> customizeReportHeader;
+  private final InetSocketAddress address;
+  private final BlockingQueue<Reports.Trace> queue;
+  private final int maxBatchSize;
+  private final Duration connectTimeout;
+  private final Duration reconnectDelay;
+  private final int sendAttempts;
+  private final int connections;
+  private volatile List<Thread> workers;
+  private final AtomicLong droppedTraceCount = new AtomicLong();
+  private final DeferredTraceAssembler assembler;
+  private volatile boolean closed;
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public CollectorTraceProducer(Consumer<Reports.ReportHeader.Builder> customizeReportHeader,
+                                InetSocketAddress address,
+                                int connections,
+                                BlockingQueue<Reports.Trace> queue,
+                                int maxBatchSize,
+                                Duration connectTimeout,
+                                Duration reconnectDelay) {
+    this(customizeReportHeader, address, connections, queue, maxBatchSize, connectTimeout, reconnectDelay, 1);
+  }
+
+  public CollectorTraceProducer(Consumer<Reports.ReportHeader.Builder> customizeReportHeader,
+                                InetSocketAddress address,
+                                int connections,
+                                BlockingQueue<Reports.Trace> queue,
+                                int maxBatchSize,
+                                Duration connectTimeout,
+                                Duration reconnectDelay,
+                                int sendAttempts) {
+    this.customizeReportHeader = customizeReportHeader;
+    this.address = address;
+    this.queue = queue;
+    this.maxBatchSize = maxBatchSize;
+    this.connectTimeout = connectTimeout;
+    this.reconnectDelay = reconnectDelay;
+    this.sendAttempts = sendAttempts;
+    this.connections = connections;
+    this.assembler = new DeferredTraceAssembler(TracingExecutors.workerExecutor(),
+                                                DeferredTraceAssembler.DEFAULT_MAX_PENDING,
+                                                this::submit);
+  }
+
+  @Override
+  public void submit(Reports.Trace trace) {
+    if (workers == null) {
+      startWorkers();
+    }
+
+    if (closed || !queue.offer(trace)) {
+      droppedTraceCount.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void submitDeferred(Supplier<Reports.Trace> trace) {
+    if (closed || !assembler.assemble(trace)) {
+      droppedTraceCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return The number of traces dropped because the queue, or the traces waiting to be built, were full, or because
+   * their batch failed {@code sendAttempts} times.
+   */
+  public long getDroppedTraceCount() {
+    return droppedTraceCount.get();
+  }
+
+  /**
+   * Wait for deferred traces to be built, then stop accepting traces and wait for the workers to send those already
+   * queued.
+   */
+  public void shutdown() {
+    List<Thread> workers;
+
+    try {
+      assembler.pending().get(SHUTDOWN_DEADLINE.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (Exception e) {
+      logger.error("Error waiting for deferred traces during shutdown", e);
+    }
+
+    synchronized (this) {
+      closed = true;
+      workers = this.workers != null ? this.workers : Collections.emptyList();
+    }
+
+    long deadlineNs = System.nanoTime() + SHUTDOWN_DEADLINE.toNanos();
+
+    try {
+      for (Thread worker : workers) {
+        worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNs - System.nanoTime())));
+      }
+    } catch (InterruptedException e) {
+      logger.error("Interrupted during shutdown", e);
+    }
+
+    workers.forEach(Thread::interrupt);
+  }
+
+  private synchronized void startWorkers() {
+    if (workers != null || closed) {
+      return;
+    }
+
+    ThreadFactory threadFactory = TracingExecutors.daemonThreadFactory("apollo-tracing-collector-client");
+
+    workers = IntStream.range(0, connections)
+      .mapToObj(i -> threadFactory.newThread(this::run))
+      .collect(Collectors.toList());
+    workers.forEach(Thread::start);
+  }
+
+  private void run() {
+    List<Reports.Trace> batch = new ArrayList<>();
+    Socket socket = null;
+    OutputStream out = null;
+    int attempts = 0;
+
+    while (!closed || !queue.isEmpty() || !batch.isEmpty()) {
+      try {
+        if (batch.isEmpty()) {
+          Reports.Trace first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+          if (first == null) {
+            continue;
+          }
+
+          batch.add(first);
+          queue.drainTo(batch, maxBatchSize - 1);
+        }
+
+        if (socket == null) {
+          socket = connect();
+          out = new BufferedOutputStream(socket.getOutputStream());
+          CollectorProtocol.writeFrame(out, CollectorProtocol.HEADER, buildHeader());
+        }
+
+        for (Reports.Trace trace : batch) {
+          CollectorProtocol.writeFrame(out, CollectorProtocol.TRACE, trace);
+        }
+
+        out.flush();
+        batch.clear();
+        attempts = 0;
+      } catch (IOException e) {
+        closeQuietly(socket);
+        socket = null;
+
+        if (++attempts >= sendAttempts) {
+          logger.error("Exception sending traces to collector (dropping " + batch.size() + " traces)", e);
+          droppedTraceCount.addAndGet(batch.size());
+          batch.clear();
+          attempts = 0;
+        } else {
+          logger.warn("Exception sending traces to collector (will retry " + batch.size() + " traces)", e);
+        }
+
+        if (!closed && !sleep(reconnectDelay)) {
+          break;
+        }
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+
+    droppedTraceCount.addAndGet(batch.size());
+    closeQuietly(socket);
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket();
+
+    try {
+      socket.setTcpNoDelay(true);
+      socket.connect(address, (int) connectTimeout.toMillis());
+      return socket;
+    } catch (IOException e) {
+      closeQuietly(socket);
+      throw e;
+    }
+  }
+
+  private Reports.ReportHeader buildHeader() {
+    Reports.ReportHeader.Builder header = Reports.ReportHeader.newBuilder();
+    customizeReportHeader.accept(header);
+    return header.build();
+  }
+
+  private static boolean sleep(Duration duration) {
+    try {
+      Thread.sleep(duration.toMillis());
+      return true;
+    } catch (InterruptedException e) {
+      return false;
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    if (socket == null) {
+      return;
+    }
+
+    try {
+      socket.close();
+    } catch (IOException e) {
+      logger.debug("Exception closing collector connection", e);
+    }
+  }
+
+  public static class Builder {
+    private Consumer<Reports.ReportHeader.Builder> _customizeReportHeader;
+    private String _host = "localhost";
+    private int _port = CollectorProtocol.DEFAULT_PORT;
+    private int _connections = 2;
+    private BlockingQueue<Reports.Trace> _queue = new ArrayBlockingQueue<>(4096);
+    private int _maxBatchSize = 256;
+    private Duration _connectTimeout = Duration.ofMillis(500);
+    private Duration _reconnectDelay = Duration.ofSeconds(1);
+    private int _sendAttempts = 3;
+
+    public CollectorTraceProducer build() {
+      assert _customizeReportHeader != null : "Missing customizeHeader(Consumer)";
+
+      return new CollectorTraceProducer(_customizeReportHeader,
+                                        new InetSocketAddress(_host, _port),
+                                        _connections,
+                                        _queue,
+                                        _maxBatchSize,
+                                        _connectTimeout,
+                                        _reconnectDelay,
+                                        _sendAttempts);
+    }
+
+    public Builder customizeHeader(Consumer<Reports.ReportHeader.Builder> customizeReportHeader) {
+      this._customizeReportHeader = customizeReportHeader;
+      return this;
+    }
+
+    /**
+     * Set the host the collector listens on. Defaults to "localhost".
+     *
+     * @param host A host name or address.
+     * @return {@link Builder}
+     */
+    public Builder host(String host) {
+      this._host = host;
+      return this;
+    }
+
+    /**
+     * Set the port the collector listens on. Defaults to {@value CollectorProtocol#DEFAULT_PORT}.
+     *
+     * @param port A TCP port.
+     * @return {@link Builder}
+     */
+    public Builder port(int port) {
+      this._port = port;
+      return this;
+    }
+
+    /**
+     * Set the number of connections to the collector, each with its own worker thread. Defaults to 2.
+     *
+     * @param connections The number of connections.
+     * @return {@link Builder}
+     */
+    public Builder connections(int connections) {
+      this._connections = connections;
+      return this;
+    }
+
+    public Builder queue(BlockingQueue<Reports.Trace> queue) {
+      this._queue = queue;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of traces written between flushes of a connection. Defaults to 256.
+     *
+     * @param maxBatchSize The maximum number of traces.
+     * @return {@link Builder}
+     */
+    public Builder maxBatchSize(int maxBatchSize) {
+      this._maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    public Builder connectTimeout(Duration connectTimeout) {
+      this._connectTimeout = connectTimeout;
+      return this;
+    }
+
+    /**
+     * Set how long a worker waits before reconnecting after a connection fails. Defaults to 1 second.
+     *
+     * @param reconnectDelay A {@link Duration}.
+     * @return {@link Builder}
+     */
+    public Builder reconnectDelay(Duration reconnectDelay) {
+      this._reconnectDelay = reconnectDelay;
+      return this;
+    }
+
+    /**
+     * Set how many times a batch is sent, reconnecting in between, before its traces are dropped. Defaults to 3.
+     *
+     * @param sendAttempts The number of attempts.
+     * @return {@link Builder}
+     */
+    public Builder sendAttempts(int sendAttempts) {
+      this._sendAttempts = sendAttempts;
+      return this;
+    }
+  }
+}
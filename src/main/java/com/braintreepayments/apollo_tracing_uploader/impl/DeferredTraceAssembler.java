@@ -0,0 +1,87 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * Builds traces passed to {@link com.braintreepayments.apollo_tracing_uploader.TraceProducer#submitDeferred} on an
+ * executor as soon as they're submitted, and hands each one to its producer's {@code submit}, so built traces go
+ * through the same admission as any other. A trace waiting to be built holds on to its request's state, so at most
+ * {@code maxPending} may wait at once; further traces are rejected. If the executor rejects a trace, it is built on
+ * the calling thread instead.
+ */
+class DeferredTraceAssembler {
+  static final int DEFAULT_MAX_PENDING = 1024;
+  private static final Logger logger = LoggerFactory.getLogger(DeferredTraceAssembler.class);
+
+  private final Executor executor;
+  private final int maxPending;
+  private final Consumer<Reports.Trace> submit;
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private final Set<CompletableFuture<Void>> pending = ConcurrentHashMap.newKeySet();
+
+  DeferredTraceAssembler(Executor executor, int maxPending, Consumer<Reports.Trace> submit) {
+    this.executor = executor;
+    this.maxPending = maxPending;
+    this.submit = submit;
+  }
+
+  /**
+   * @return Whether the trace was accepted, rather than rejected because {@code maxPending} traces are waiting.
+   */
+  boolean assemble(Supplier<Reports.Trace> trace) {
+    if (pendingCount.incrementAndGet() > maxPending) {
+      pendingCount.decrementAndGet();
+      return false;
+    }
+
+    CompletableFuture<Void> assembled = new CompletableFuture<>();
+    pending.add(assembled);
+
+    Runnable task = () -> {
+      try {
+        submit.accept(trace.get());
+      } catch (Exception e) {
+        logger.error("Error assembling deferred trace", e);
+      } finally {
+        pending.remove(assembled);
+        pendingCount.decrementAndGet();
+        assembled.complete(null);
+      }
+    };
+
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.run();
+    }
+
+    return true;
+  }
+
+  /**
+   * @return A {@link CompletableFuture} that completes once the traces now waiting have been built and submitted.
+   */
+  CompletableFuture<Void> pending() {
+    return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]));
+  }
+
+  int getPendingCount() {
+    return pendingCount.get();
+  }
+
+  int getMaxPending() {
+    return maxPending;
+  }
+}
@@ -0,0 +1,83 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size histogram of durations, using the same logarithmic bucketing as Apollo's duration histograms: bucket
+ * {@code i} counts durations in {@code (1.1^(i-1), 1.1^i]} microseconds.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class DurationHistogram {
+  public static final int BUCKET_COUNT = 384;
+  private static final double LOG_BASE = Math.log(1.1);
+
+  private final long[] buckets = new long[BUCKET_COUNT];
+  private long count;
+
+  public static int bucketFor(long durationNs) {
+    double durationUs = durationNs / 1000.0;
+
+    if (durationUs <= 1) {
+      return 0;
+    }
+
+    return (int) Math.min(BUCKET_COUNT - 1, Math.ceil(Math.log(durationUs) / LOG_BASE));
+  }
+
+  public static long bucketUpperBoundNs(int bucket) {
+    return (long) (Math.pow(1.1, bucket) * 1000);
+  }
+
+  public void record(long durationNs) {
+    add(bucketFor(durationNs), 1);
+  }
+
+  public void add(int bucket, long n) {
+    buckets[bucket] += n;
+    count += n;
+  }
+
+  public void merge(DurationHistogram other) {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      buckets[i] += other.buckets[i];
+    }
+    count += other.count;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getBucketCount(int bucket) {
+    return buckets[bucket];
+  }
+
+  /**
+   * @param percentile A value between 0 and 1.
+   * @return The upper bound of the bucket containing the given percentile, in nanoseconds, or 0 if empty.
+   */
+  public long percentileNs(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(percentile * count));
+    long seen = 0;
+
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += buckets[i];
+
+      if (seen >= rank) {
+        return bucketUpperBoundNs(i);
+      }
+    }
+
+    return bucketUpperBoundNs(BUCKET_COUNT - 1);
+  }
+
+  public void clear() {
+    Arrays.fill(buckets, 0);
+    count = 0;
+  }
+}
@@ -0,0 +1,285 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.braintreepayments.apollo_tracing_uploader.EncodedReport;
+import com.braintreepayments.apollo_tracing_uploader.PipelinePressure;
+import com.braintreepayments.apollo_tracing_uploader.ReportSink;
+import com.braintreepayments.apollo_tracing_uploader.Uploader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * An {@link Uploader} that encodes each report once and sends the same {@link EncodedReport} to several
+ * {@link ReportSink}s, such as an {@link HttpTracingUploader} and an archive.
+ * <p>
+ * Each sink is called in its own task on {@code executor}, so a sink that blocks or fails doesn't hold up the others.
+ * Sinks can be given their own retries when added. The future returned by {@link #uploadAsync} completes once every
+ * sink has finished, and completes exceptionally only if every sink failed. Cancelling it cancels each sink's send.
+ * <p>
+ * Its {@link PipelinePressure} is the highest pressure reported by its sinks.
+ */
+public class FanOutUploader implements Uploader, PipelinePressure {
+  private static final Logger logger = LoggerFactory.getLogger(FanOutUploader.class);
+
+  private final List<ReportSink> sinks;
+  private final Executor executor;
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public FanOutUploader(List<ReportSink> sinks, Executor executor) {
+    this.sinks = new ArrayList<>(sinks);
+    this.executor = executor;
+  }
+
+  @Override
+  public void upload(Reports.FullTracesReport report) {
+    uploadAsync(report);
+  }
+
+  @Override
+  public CompletableFuture<Void> uploadAsync(Reports.FullTracesReport report) {
+    EncodedReport encoded = EncodedReport.encode(report);
+    List<CompletableFuture<Void>> sends = new ArrayList<>();
+
+    for (ReportSink sink : sinks) {
+      sends.add(sendAsync(sink, encoded));
+    }
+
+    CompletableFuture<Void> all = CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0]))
+      .handle((result, e) -> {
+        long failures = sends.stream().filter(CompletableFuture::isCompletedExceptionally).count();
+
+        if (failures == sends.size() && e != null) {
+          throw new SinksFailedException(e);
+        }
+
+        if (failures > 0) {
+          logger.warn("{} of {} report sinks failed", failures, sends.size());
+        }
+
+        return null;
+      });
+
+    all.whenComplete((result, e) -> {
+      if (all.isCancelled()) {
+        sends.forEach(send -> send.cancel(false));
+      }
+    });
+
+    return all;
+  }
+
+  private CompletableFuture<Void> sendAsync(ReportSink sink, EncodedReport encoded) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+
+    try {
+      executor.execute(() -> {
+        if (!future.isDone()) {
+          forward(sink, encoded, future).whenComplete((result, e) -> {
+            if (e == null) {
+              future.complete(null);
+            } else {
+              future.completeExceptionally(e);
+            }
+          });
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+
+    return future;
+  }
+
+  /**
+   * Complete {@code future} with the result of sending {@code report} to {@code sink}, and cancel the send if
+   * {@code future} is cancelled first.
+   */
+  private static CompletableFuture<Void> forward(ReportSink sink, EncodedReport report, CompletableFuture<Void> future) {
+    CompletableFuture<Void> send;
+
+    try {
+      send = sink.send(report);
+    } catch (Throwable e) {
+      send = new CompletableFuture<>();
+      send.completeExceptionally(e);
+    }
+
+    CompletableFuture<Void> sent = send;
+    future.whenComplete((result, e) -> {
+      if (future.isCancelled()) {
+        sent.cancel(false);
+      }
+    });
+
+    return sent;
+  }
+
+  @Override
+  public double getPressure() {
+    double pressure = 0;
+
+    for (ReportSink sink : sinks) {
+      if (sink instanceof PipelinePressure) {
+        pressure = Math.max(pressure, ((PipelinePressure) sink).getPressure());
+      }
+    }
+
+    return pressure;
+  }
+
+  /**
+   * Wrap a sink so that a failed send is retried with the same {@link EncodedReport}. Retries are sent on
+   * {@link TracingExecutors#uploadExecutor()}. Cancelling the returned future cancels the send in flight.
+   *
+   * @param sink A {@link ReportSink}.
+   * @param retries How many times to retry a failed send.
+   * @param retryDelay How long to wait before each retry.
+   * @param scheduler The scheduler that delays retries.
+   * @return The wrapped {@link ReportSink}.
+   */
+  public static ReportSink retrying(ReportSink sink,
+                                    int retries,
+                                    Duration retryDelay,
+                                    ScheduledExecutorService scheduler) {
+    return retrying(sink, retries, retryDelay, scheduler, TracingExecutors.uploadExecutor());
+  }
+
+  /**
+   * Wrap a sink so that a failed send is retried with the same {@link EncodedReport}. Cancelling the returned future
+   * cancels the send in flight.
+   *
+   * @param sink A {@link ReportSink}.
+   * @param retries How many times to retry a failed send.
+   * @param retryDelay How long to wait before each retry.
+   * @param scheduler The scheduler that delays retries. Retries are only timed on it, not sent.
+   * @param executor The executor retries are sent on, which may block.
+   * @return The wrapped {@link ReportSink}.
+   */
+  public static ReportSink retrying(ReportSink sink,
+                                    int retries,
+                                    Duration retryDelay,
+                                    ScheduledExecutorService scheduler,
+                                    Executor executor) {
+    return report -> {
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      trySend(sink, report, future, retries, retryDelay.toMillis(), scheduler, executor);
+      return future;
+    };
+  }
+
+  private static void trySend(ReportSink sink,
+                              EncodedReport report,
+                              CompletableFuture<Void> future,
+                              int retriesLeft,
+                              long retryDelayMillis,
+                              ScheduledExecutorService scheduler,
+                              Executor executor) {
+    if (future.isDone()) {
+      return;
+    }
+
+    forward(sink, report, future).whenComplete((result, e) -> {
+      if (future.isDone()) {
+        return;
+      } else if (e == null) {
+        future.complete(null);
+      } else if (retriesLeft <= 0) {
+        future.completeExceptionally(e);
+      } else {
+        logger.info("Exception sending report (will retry)", e);
+        Runnable retry = () -> trySend(sink, report, future, retriesLeft - 1, retryDelayMillis, scheduler, executor);
+        scheduleRetry(future, retry, retryDelayMillis, scheduler, executor);
+      }
+    });
+  }
+
+  /**
+   * Send a retry on {@code executor} after a delay, failing the send if either executor rejects it, so the future
+   * always completes.
+   */
+  private static void scheduleRetry(CompletableFuture<Void> future,
+                                    Runnable retry,
+                                    long retryDelayMillis,
+                                    ScheduledExecutorService scheduler,
+                                    Executor executor) {
+    try {
+      scheduler.schedule(() -> {
+        try {
+          executor.execute(retry);
+        } catch (RejectedExecutionException e) {
+          future.completeExceptionally(e);
+        }
+      }, retryDelayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  public static class Builder {
+    private final List<ReportSink> _sinks = new ArrayList<>();
+    private Executor _executor;
+
+    public FanOutUploader build() {
+      assert !_sinks.isEmpty() : "Missing sink(ReportSink)";
+
+      return new FanOutUploader(_sinks, _executor != null ? _executor : TracingExecutors.uploadExecutor());
+    }
+
+    /**
+     * Add a sink that handles its own retries, such as an {@link HttpTracingUploader}.
+     *
+     * @param sink A {@link ReportSink}.
+     * @return {@link Builder}
+     */
+    public Builder sink(ReportSink sink) {
+      this._sinks.add(sink);
+      return this;
+    }
+
+    /**
+     * Add a sink, retrying failed sends after a delay.
+     *
+     * @param sink A {@link ReportSink}.
+     * @param retries How many times to retry a failed send.
+     * @param retryDelay How long to wait before each retry.
+     * @return {@link Builder}
+     */
+    public Builder sink(ReportSink sink, int retries, Duration retryDelay) {
+      this._sinks.add(retrying(sink, retries, retryDelay, TracingExecutors.sharedScheduler()));
+      return this;
+    }
+
+    /**
+     * Set the executor sinks are called on. Defaults to {@link TracingExecutors#uploadExecutor()}.
+     *
+     * @param executor An {@link Executor} that may block.
+     * @return {@link Builder}
+     */
+    public Builder executor(Executor executor) {
+      this._executor = executor;
+      return this;
+    }
+  }
+
+  public static class SinksFailedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    SinksFailedException(Throwable cause) {
+      super("Every report sink failed", cause);
+    }
+  }
+}
@@ -0,0 +1,374 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.braintreepayments.apollo_tracing_uploader.Uploader;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * An {@link Uploader} that appends each {@link mdg.engine.proto.Reports.FullTracesReport} to a local file as a
+ * length-delimited protobuf message, for {@link com.braintreepayments.apollo_tracing_uploader.tools.TraceFileRelay}
+ * to send on to Apollo from another process.
+ * <p>
+ * Reports are written to a {@value #OPEN_SUFFIX} file, which is synced to disk every {@code syncInterval} and renamed
+ * to {@value #READY_SUFFIX} once it reaches {@code maxFileBytes}, or at the first sync after {@code maxFileAge}. Only
+ * ready files are read by the relay. When ready files pile up past {@code maxPendingBytes}, new reports are dropped.
+ * Syncs are timed by {@link TracingExecutors#sharedScheduler()} and run on {@link TracingExecutors#workerExecutor()}.
+ * <p>
+ * Open files left behind by a failed rotation, or by a process that exited without closing its uploader, are
+ * recovered: cut back to their last whole report and marked ready. This happens at the next sync for this uploader's
+ * own files, and when the first report is written for any file with its {@code filePrefix}, so a prefix must only be
+ * used by one uploader at a time.
+ */
+public class FileTracingUploader implements Uploader, Closeable {
+  public static final String OPEN_SUFFIX = ".pb.open";
+  public static final String READY_SUFFIX = ".pb";
+  private static final Logger logger = LoggerFactory.getLogger(FileTracingUploader.class);
+
+  private final Path directory;
+  private final String filePrefix;
+  private final long maxFileBytes;
+  private final long maxFileAgeMs;
+  private final long maxPendingBytes;
+  private final long syncIntervalMs;
+  private ScheduledFuture<?> syncTask;
+  private FileChannel channel;
+  private Path openFile;
+  private long openedAtMs;
+  private long fileBytes;
+  private boolean dirty;
+  private boolean pendingBytesExceeded;
+  private long fileSequence;
+  private boolean recovered;
+  private final List<Path> orphanedFiles = new ArrayList<>();
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public FileTracingUploader(Path directory,
+                             String filePrefix,
+                             long maxFileBytes,
+                             Duration maxFileAge,
+                             long maxPendingBytes,
+                             Duration syncInterval) {
+    this.directory = directory;
+    this.filePrefix = filePrefix;
+    this.maxFileBytes = maxFileBytes;
+    this.maxFileAgeMs = maxFileAge.toMillis();
+    this.maxPendingBytes = maxPendingBytes;
+    this.syncIntervalMs = syncInterval.toMillis();
+  }
+
+  @Override
+  public void upload(Reports.FullTracesReport report) {
+    uploadAsync(report);
+  }
+
+  @Override
+  public synchronized CompletableFuture<Void> uploadAsync(Reports.FullTracesReport report) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+
+    try {
+      if (channel != null && fileBytes >= maxFileBytes) {
+        rotate();
+      }
+
+      if (pendingBytesExceeded) {
+        throw new IOException("Pending trace files exceed " + maxPendingBytes + " bytes");
+      }
+
+      if (channel == null) {
+        open();
+      }
+
+      write(report);
+      future.complete(null);
+    } catch (IOException e) {
+      logger.error("Exception writing traces to file (dropping report)", e);
+      future.completeExceptionally(e);
+    }
+
+    return future;
+  }
+
+  /**
+   * Sync and close the open file, marking it ready for the relay.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (syncTask != null) {
+      syncTask.cancel(false);
+      syncTask = null;
+    }
+
+    if (channel != null) {
+      rotate();
+    }
+  }
+
+  private void write(Reports.FullTracesReport report) throws IOException {
+    int size = report.getSerializedSize();
+    ByteBuffer buffer = ByteBuffer.allocate(CodedOutputStream.computeUInt32SizeNoTag(size) + size);
+    CodedOutputStream out = CodedOutputStream.newInstance(buffer);
+
+    out.writeUInt32NoTag(size);
+    report.writeTo(out);
+    out.flush();
+    buffer.flip();
+
+    while (buffer.hasRemaining()) {
+      fileBytes += channel.write(buffer);
+    }
+
+    dirty = true;
+  }
+
+  private void open() throws IOException {
+    Files.createDirectories(directory);
+
+    if (!recovered) {
+      recoverOpenFiles();
+      recovered = true;
+    }
+
+    openedAtMs = System.currentTimeMillis();
+    String fileName = String.format("%s-%013d-%06d%s", filePrefix, openedAtMs, fileSequence++, OPEN_SUFFIX);
+
+    openFile = directory.resolve(fileName);
+    channel = FileChannel.open(openFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    fileBytes = 0;
+
+    if (syncTask == null) {
+      syncTask = TracingExecutors.sharedScheduler()
+        .scheduleWithFixedDelay(() -> TracingExecutors.workerExecutor().execute(this::safeSync),
+                                syncIntervalMs,
+                                syncIntervalMs,
+                                TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void rotate() throws IOException {
+    boolean rotated = false;
+
+    try {
+      channel.force(false);
+      channel.close();
+      markReady(openFile);
+      rotated = true;
+    } finally {
+      if (!rotated) {
+        orphanedFiles.add(openFile);
+        closeQuietly(channel);
+      }
+
+      channel = null;
+      dirty = false;
+    }
+
+    pendingBytesExceeded = pendingBytes() > maxPendingBytes;
+  }
+
+  private void recoverOpenFiles() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, filePrefix + "-*" + OPEN_SUFFIX)) {
+      for (Path file : files) {
+        logger.warn("Recovering trace file left open by a previous uploader: " + file);
+        recover(file);
+      }
+    }
+  }
+
+  private void recoverOrphanedFiles() throws IOException {
+    while (!orphanedFiles.isEmpty()) {
+      recover(orphanedFiles.get(0));
+      orphanedFiles.remove(0);
+    }
+  }
+
+  /**
+   * Cut an open file back to its last whole report, which a crash or failed write may have left partly written, and
+   * mark it ready.
+   */
+  private void recover(Path file) throws IOException {
+    if (!Files.exists(file)) {
+      return;
+    }
+
+    try (FileChannel recovering = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      recovering.truncate(completeBytes(Files.readAllBytes(file)));
+      recovering.force(false);
+    }
+
+    if (Files.size(file) == 0) {
+      Files.delete(file);
+    } else {
+      markReady(file);
+    }
+  }
+
+  private static long completeBytes(byte[] bytes) {
+    CodedInputStream in = CodedInputStream.newInstance(bytes);
+    long complete = 0;
+
+    try {
+      while (!in.isAtEnd()) {
+        int size = in.readRawVarint32();
+
+        if (size < 0 || size > bytes.length - in.getTotalBytesRead()) {
+          break;
+        }
+
+        in.skipRawBytes(size);
+        complete = in.getTotalBytesRead();
+      }
+    } catch (IOException e) {
+      // A truncated length prefix; keep what was read before it.
+    }
+
+    return complete;
+  }
+
+  private static void markReady(Path file) throws IOException {
+    String readyName = file.getFileName().toString().replace(OPEN_SUFFIX, READY_SUFFIX);
+    Files.move(file, file.resolveSibling(readyName), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.warn("Exception closing traces file", e);
+    }
+  }
+
+  private long pendingBytes() throws IOException {
+    long total = 0;
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + READY_SUFFIX)) {
+      for (Path file : files) {
+        total += Files.size(file);
+      }
+    }
+
+    return total;
+  }
+
+  private synchronized void safeSync() {
+    try {
+      if (channel != null && System.currentTimeMillis() - openedAtMs >= maxFileAgeMs) {
+        rotate();
+      } else if (channel != null && dirty) {
+        channel.force(false);
+        dirty = false;
+      }
+
+      recoverOrphanedFiles();
+
+      if (pendingBytesExceeded) {
+        pendingBytesExceeded = pendingBytes() > maxPendingBytes;
+      }
+    } catch (IOException e) {
+      logger.error("Exception syncing traces file", e);
+    }
+  }
+
+  public static class Builder {
+    private Path _directory;
+    private String _filePrefix = "traces";
+    private long _maxFileBytes = 8 * 1024 * 1024;
+    private Duration _maxFileAge = Duration.ofSeconds(10);
+    private long _maxPendingBytes = 512 * 1024 * 1024;
+    private Duration _syncInterval = Duration.ofSeconds(1);
+
+    public FileTracingUploader build() {
+      assert _directory != null : "Missing directory(Path)";
+
+      return new FileTracingUploader(_directory,
+                                     _filePrefix,
+                                     _maxFileBytes,
+                                     _maxFileAge,
+                                     _maxPendingBytes,
+                                     _syncInterval);
+    }
+
+    public Builder directory(Path directory) {
+      this._directory = directory;
+      return this;
+    }
+
+    /**
+     * Set the file name prefix, to let several applications share a directory. Defaults to "traces".
+     *
+     * @param filePrefix A file name prefix.
+     * @return {@link Builder}
+     */
+    public Builder filePrefix(String filePrefix) {
+      this._filePrefix = filePrefix;
+      return this;
+    }
+
+    /**
+     * Set the size at which the open file is rotated. Defaults to 8 MiB.
+     *
+     * @param maxFileBytes A size in bytes.
+     * @return {@link Builder}
+     */
+    public Builder maxFileBytes(long maxFileBytes) {
+      this._maxFileBytes = maxFileBytes;
+      return this;
+    }
+
+    /**
+     * Set the age at which the open file is rotated, checked at each sync. Defaults to 10 seconds.
+     *
+     * @param maxFileAge A {@link Duration}.
+     * @return {@link Builder}
+     */
+    public Builder maxFileAge(Duration maxFileAge) {
+      this._maxFileAge = maxFileAge;
+      return this;
+    }
+
+    /**
+     * Set how many bytes of ready files may wait for the relay before new reports are dropped. Defaults to 512 MiB.
+     *
+     * @param maxPendingBytes A size in bytes.
+     * @return {@link Builder}
+     */
+    public Builder maxPendingBytes(long maxPendingBytes) {
+      this._maxPendingBytes = maxPendingBytes;
+      return this;
+    }
+
+    /**
+     * Set how often written reports are synced to disk. Defaults to 1 second.
+     *
+     * @param syncInterval A {@link Duration}.
+     * @return {@link Builder}
+     */
+    public Builder syncInterval(Duration syncInterval) {
+      this._syncInterval = syncInterval;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+/**
+ * The outcome of {@link ScheduledBatchingTraceProducer#flush}.
+ */
+public class FlushResult {
+  private final int uploadedTraceCount;
+  private final int droppedTraceCount;
+  private final boolean deadlineExceeded;
+
+  FlushResult(int uploadedTraceCount, int droppedTraceCount, boolean deadlineExceeded) {
+    this.uploadedTraceCount = uploadedTraceCount;
+    this.droppedTraceCount = droppedTraceCount;
+    this.deadlineExceeded = deadlineExceeded;
+  }
+
+  /**
+   * @return The number of traces whose reports were accepted by the {@link
+   * com.braintreepayments.apollo_tracing_uploader.Uploader}.
+   */
+  public int getUploadedTraceCount() {
+    return uploadedTraceCount;
+  }
+
+  /**
+   * @return The number of traces that were discarded from the queue or whose uploads failed or were cancelled.
+   */
+  public int getDroppedTraceCount() {
+    return droppedTraceCount;
+  }
+
+  /**
+   * @return Whether the flush gave up because the deadline passed.
+   */
+  public boolean isDeadlineExceeded() {
+    return deadlineExceeded;
+  }
+
+  @Override
+  public String toString() {
+    return "FlushResult{uploadedTraceCount=" + uploadedTraceCount
+           + ", droppedTraceCount=" + droppedTraceCount
+           + ", deadlineExceeded=" + deadlineExceeded
+           + "}";
+  }
+}
@@ -1,17 +1,23 @@
 package com.braintreepayments.apollo_tracing_uploader.impl;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.time.Duration;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.braintreepayments.apollo_tracing_uploader.Constants;
+import com.braintreepayments.apollo_tracing_uploader.EncodedReport;
+import com.braintreepayments.apollo_tracing_uploader.PipelinePressure;
+import com.braintreepayments.apollo_tracing_uploader.ReportSink;
+import com.braintreepayments.apollo_tracing_uploader.TracingConfig;
 import com.braintreepayments.apollo_tracing_uploader.Uploader;
 
 import org.slf4j.Logger;
@@ -19,16 +25,26 @@ import org.slf4j.LoggerFactory;
 
 import mdg.engine.proto.Reports;
 
-public class HttpTracingUploader implements Uploader {
+/**
+ * An {@link Uploader} that sends reports to Apollo over HTTP, retrying failed requests after a delay. Each report is
+ * compressed once, and retries resend the same bytes. As a {@link ReportSink}, it sends reports that are already
+ * encoded, for example by a {@link FanOutUploader}.
+ * <p>
+ * Its {@link PipelinePressure} is the higher of the bytes waiting to be sent, relative to {@code maxPendingBytes},
+ * and the recent average request latency, relative to the read timeout.
+ */
+public class HttpTracingUploader implements Uploader, ReportSink, PipelinePressure {
   private static final Logger logger = LoggerFactory.getLogger(HttpTracingUploader.class);
+  private static final long DEFAULT_MAX_PENDING_BYTES = 16 * 1024 * 1024;
 
   private final String apiKey;
   private final URL url;
-  private final int nRetries;
-  private final int retryDelayMs;
-  private final int connectTimeoutMs;
-  private final int readTimeoutMs;
-  private final ScheduledExecutorService executor;
+  private final TracingConfig config;
+  private final ScheduledExecutorService scheduler;
+  private final Executor executor;
+  private final long maxPendingBytes;
+  private final AtomicLong pendingBytes = new AtomicLong();
+  private final AtomicLong averageLatencyNs = new AtomicLong();
 
   public HttpTracingUploader(String apiKey,
                              ScheduledExecutorService executor,
@@ -36,15 +52,59 @@ public class HttpTracingUploader implements Uploader {
                              Duration readTimeout,
                              Duration connectTimeout,
                              int nRetries) {
+    this(apiKey, executor, executor, retryDelay, readTimeout, connectTimeout, nRetries);
+  }
+
+  public HttpTracingUploader(String apiKey,
+                             ScheduledExecutorService scheduler,
+                             Executor executor,
+                             Duration retryDelay,
+                             Duration readTimeout,
+                             Duration connectTimeout,
+                             int nRetries) {
+    this(apiKey,
+         Constants.APOLLO_TRACING_URL,
+         scheduler,
+         executor,
+         configFor(retryDelay, readTimeout, connectTimeout, nRetries),
+         DEFAULT_MAX_PENDING_BYTES);
+  }
+
+  public HttpTracingUploader(String apiKey,
+                             String url,
+                             ScheduledExecutorService scheduler,
+                             Executor executor,
+                             Duration retryDelay,
+                             Duration readTimeout,
+                             Duration connectTimeout,
+                             int nRetries,
+                             long maxPendingBytes) {
+    this(apiKey,
+         url,
+         scheduler,
+         executor,
+         configFor(retryDelay, readTimeout, connectTimeout, nRetries),
+         maxPendingBytes);
+  }
+
+  /**
+   * Create an uploader tuned by a {@link TracingConfig}. Its retries, retry delay and timeouts are read for each
+   * request attempt.
+   */
+  public HttpTracingUploader(String apiKey,
+                             String url,
+                             ScheduledExecutorService scheduler,
+                             Executor executor,
+                             TracingConfig config,
+                             long maxPendingBytes) {
     this.apiKey = apiKey;
-    this.nRetries = nRetries;
-    this.retryDelayMs = (int) retryDelay.toMillis();
-    this.connectTimeoutMs = (int) connectTimeout.toMillis();
-    this.readTimeoutMs = (int) readTimeout.toMillis();
+    this.maxPendingBytes = maxPendingBytes;
+    this.config = config;
+    this.scheduler = scheduler;
     this.executor = executor;
 
     try {
-      this.url = new URL(Constants.APOLLO_TRACING_URL);
+      this.url = new URL(url);
     } catch (MalformedURLException e) {
       throw new RuntimeException(e);
     }
@@ -56,68 +116,185 @@ public class HttpTracingUploader implements Uploader {
 
   @Override
   public void upload(Reports.FullTracesReport report) {
-    CompletableFuture<HttpURLConnection> future =
-      new CompletableFuture<HttpURLConnection>().whenComplete(this::onComplete);
+    uploadAsync(report);
+  }
+
+  @Override
+  public CompletableFuture<Void> uploadAsync(Reports.FullTracesReport report) {
+    CompletableFuture<Void> future = newPendingFuture(report.getSerializedSize());
 
-    executor.submit(() -> tryRequest(future, report, 0));
+    execute(future, () -> {
+      EncodedReport encoded;
+
+      try {
+        encoded = EncodedReport.encode(report);
+      } catch (Throwable e) {
+        future.completeExceptionally(e);
+        return;
+      }
+
+      tryRequest(future, encoded, 0);
+    });
+
+    return future;
+  }
+
+  /**
+   * Send a report that has already been encoded, retrying with the same bytes.
+   */
+  @Override
+  public CompletableFuture<Void> send(EncodedReport report) {
+    CompletableFuture<Void> future = newPendingFuture(report.getUncompressedSize());
+
+    execute(future, () -> tryRequest(future, report, 0));
+
+    return future;
   }
 
-  private void tryRequest(CompletableFuture<HttpURLConnection> future, Reports.FullTracesReport report, int retries) {
+  @Override
+  public double getPressure() {
+    double bytesPressure = (double) pendingBytes.get() / maxPendingBytes;
+    double latencyPressure =
+      (double) averageLatencyNs.get() / TimeUnit.MILLISECONDS.toNanos(config.getReadTimeoutMillis());
+
+    return Math.min(1, Math.max(bytesPressure, latencyPressure));
+  }
+
+  /**
+   * @return The serialized size of reports accepted but not yet sent or given up on.
+   */
+  public long getPendingBytes() {
+    return pendingBytes.get();
+  }
+
+  private CompletableFuture<Void> newPendingFuture(long size) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+
+    pendingBytes.addAndGet(size);
+    future.whenComplete((result, e) -> pendingBytes.addAndGet(-size));
+    future.whenComplete(this::onComplete);
+
+    return future;
+  }
+
+  private void tryRequest(CompletableFuture<Void> future, EncodedReport report, int retries) {
+    if (future.isDone()) {
+      return;
+    }
+
+    long startNs = System.nanoTime();
+
     try {
-      future.complete(doRequest(report));
+      doRequest(report);
+      recordLatency(System.nanoTime() - startNs);
+      future.complete(null);
     } catch (IOException | HttpStatusException e) {
-      if (retries >= nRetries) {
+      recordLatency(System.nanoTime() - startNs);
+
+      if (retries >= config.getRetries()) {
         future.completeExceptionally(new RetriesExceededException(e, retries));
       } else {
         logger.info("Exception uploading traces to Apollo (will retry)", e);
-        executor.schedule(() -> tryRequest(future, report, retries + 1), retryDelayMs, TimeUnit.MILLISECONDS);
+        scheduleRetry(future, report, retries + 1);
       }
+    } catch (Throwable e) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  private void scheduleRetry(CompletableFuture<Void> future, EncodedReport report, int retries) {
+    try {
+      scheduler.schedule(() -> execute(future, () -> tryRequest(future, report, retries)),
+                         config.getRetryDelayMillis(),
+                         TimeUnit.MILLISECONDS);
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
     }
   }
 
-  private HttpURLConnection doRequest(Reports.FullTracesReport report) throws IOException, HttpStatusException {
+  /**
+   * Run a step of an upload on the executor, failing the upload if the executor rejects it, so every future completes
+   * and its bytes stop counting as pending.
+   */
+  private void execute(CompletableFuture<Void> future, Runnable step) {
+    try {
+      executor.execute(step);
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  private static TracingConfig configFor(Duration retryDelay,
+                                         Duration readTimeout,
+                                         Duration connectTimeout,
+                                         int retries) {
+    TracingConfig config = new TracingConfig();
+
+    config.setRetryDelay(retryDelay);
+    config.setReadTimeout(readTimeout);
+    config.setConnectTimeout(connectTimeout);
+    config.setRetries(retries);
+
+    return config;
+  }
+
+  private void recordLatency(long latencyNs) {
+    averageLatencyNs.accumulateAndGet(latencyNs, (average, sample) -> average + (sample - average) / 4);
+  }
+
+  private void doRequest(EncodedReport report) throws IOException, HttpStatusException {
     HttpURLConnection conn = (HttpURLConnection) url.openConnection();
 
-    conn.setConnectTimeout(connectTimeoutMs);
-    conn.setReadTimeout(readTimeoutMs);
+    conn.setConnectTimeout((int) config.getConnectTimeoutMillis());
+    conn.setReadTimeout((int) config.getReadTimeoutMillis());
     conn.setRequestMethod("POST");
     conn.setRequestProperty("Content-Type", "application/octet-stream");
     conn.setRequestProperty("Content-Encoding", "gzip");
     conn.setRequestProperty(Constants.API_KEY_HEADER, apiKey);
     conn.setDoOutput(true);
 
-    GZIPOutputStream reqBody = new GZIPOutputStream(conn.getOutputStream());
-    reqBody.write(report.toByteArray());
-    reqBody.flush();
-    reqBody.close();
+    try (OutputStream reqBody = conn.getOutputStream()) {
+      report.writeTo(reqBody);
+    }
 
     int responseCode = conn.getResponseCode();
 
     if (responseCode != 200) {
       throw new HttpStatusException(responseCode);
     }
-
-    return conn;
   }
 
-  private void onComplete(HttpURLConnection conn, Throwable e) {
-    if (e != null) {
+  private void onComplete(Void result, Throwable e) {
+    if (e instanceof CancellationException) {
+      logger.info("Upload of traces to Apollo was cancelled");
+    } else if (e != null) {
       logger.error("Exception uploading traces to Apollo (giving up)", e);
     }
   }
 
   public static class Builder {
     private String _apiKey;
-    private ScheduledExecutorService _executor = Executors.newScheduledThreadPool(10);
+    private String _url = Constants.APOLLO_TRACING_URL;
+    private ScheduledExecutorService _scheduler;
+    private Executor _executor;
     private Duration _retryDelay = Duration.ofSeconds(1);
     private Duration _readTimeout = Duration.ofSeconds(3);
     private Duration _connectTimeout = Duration.ofMillis(500);
     private int _retries = 2;
+    private long _maxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+    private TracingConfig _config;
 
     public HttpTracingUploader build() {
       assert _apiKey != null : "Missing apiKey(String)";
 
-      return new HttpTracingUploader(_apiKey, _executor, _retryDelay, _readTimeout, _connectTimeout, _retries);
+      return new HttpTracingUploader(_apiKey,
+                                     _url,
+                                     _scheduler != null ? _scheduler : TracingExecutors.sharedScheduler(),
+                                     _executor != null ? _executor : TracingExecutors.uploadExecutor(),
+                                     _config != null
+                                     ? _config
+                                     : configFor(_retryDelay, _readTimeout, _connectTimeout, _retries),
+                                     _maxPendingBytes);
     }
 
     public Builder apiKey(String apikey) {
@@ -125,11 +302,51 @@ public class HttpTracingUploader implements Uploader {
       return this;
     }
 
+    /**
+     * Set the URL reports are sent to, such as a proxy or a test stub. Defaults to Apollo's trace ingress.
+     *
+     * @param url An absolute URL.
+     * @return {@link Builder}
+     */
+    public Builder url(String url) {
+      this._url = url;
+      return this;
+    }
+
+    /**
+     * Use a single executor both for sending requests and for scheduling retries.
+     *
+     * @param executor A {@link ScheduledExecutorService}.
+     * @return {@link Builder}
+     */
     public Builder executor(ScheduledExecutorService executor) {
+      this._scheduler = executor;
       this._executor = executor;
       return this;
     }
 
+    /**
+     * Set the scheduler used to delay retries. Defaults to {@link TracingExecutors#sharedScheduler()}.
+     *
+     * @param scheduler A {@link ScheduledExecutorService}.
+     * @return {@link Builder}
+     */
+    public Builder scheduler(ScheduledExecutorService scheduler) {
+      this._scheduler = scheduler;
+      return this;
+    }
+
+    /**
+     * Set the executor that sends requests to Apollo. Defaults to {@link TracingExecutors#uploadExecutor()}.
+     *
+     * @param uploadExecutor An {@link Executor} that may block.
+     * @return {@link Builder}
+     */
+    public Builder uploadExecutor(Executor uploadExecutor) {
+      this._executor = uploadExecutor;
+      return this;
+    }
+
     public Builder retryDelay(Duration retryDelay) {
       this._retryDelay = retryDelay;
       return this;
@@ -149,6 +366,31 @@ public class HttpTracingUploader implements Uploader {
       this._retries = retries;
       return this;
     }
+
+    /**
+     * Tune the uploader with a {@link TracingConfig} that can be changed while it runs. Its retries, retry delay and
+     * timeouts take the place of {@link #retries}, {@link #retryDelay}, {@link #readTimeout} and
+     * {@link #connectTimeout}.
+     *
+     * @param config A {@link TracingConfig}.
+     * @return {@link Builder}
+     */
+    public Builder config(TracingConfig config) {
+      this._config = config;
+      return this;
+    }
+
+    /**
+     * Set the number of report bytes in flight, including those waiting to retry, at which the uploader reports full
+     * pressure. Reports are never dropped because of it. Defaults to 16 MiB.
+     *
+     * @param maxPendingBytes A size in bytes.
+     * @return {@link Builder}
+     */
+    public Builder maxPendingBytes(long maxPendingBytes) {
+      this._maxPendingBytes = maxPendingBytes;
+      return this;
+    }
   }
 
   public class RetriesExceededException extends Exception {
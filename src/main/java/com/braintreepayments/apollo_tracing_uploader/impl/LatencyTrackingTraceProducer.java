@@ -0,0 +1,55 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.util.function.Supplier;
+
+import com.braintreepayments.apollo_tracing_uploader.TraceProducer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * A {@link TraceProducer} that records every submitted trace in an {@link OperationLatencyTracker} before passing it
+ * on to another producer, so the application can read its own per-operation latency without going through Apollo.
+ */
+public class LatencyTrackingTraceProducer implements TraceProducer {
+  private static final Logger logger = LoggerFactory.getLogger(LatencyTrackingTraceProducer.class);
+  private final TraceProducer delegate;
+  private final OperationLatencyTracker tracker;
+
+  public LatencyTrackingTraceProducer(TraceProducer delegate, OperationLatencyTracker tracker) {
+    this.delegate = delegate;
+    this.tracker = tracker;
+  }
+
+  @Override
+  public void submit(Reports.Trace trace) {
+    try {
+      tracker.record(trace);
+    } catch (Exception e) {
+      logger.error("Error recording trace latency", e);
+    }
+
+    delegate.submit(trace);
+  }
+
+  @Override
+  public void submitDeferred(Supplier<Reports.Trace> trace) {
+    delegate.submitDeferred(() -> {
+      Reports.Trace built = trace.get();
+
+      try {
+        tracker.record(built);
+      } catch (Exception e) {
+        logger.error("Error recording trace latency", e);
+      }
+
+      return built;
+    });
+  }
+
+  public OperationLatencyTracker getTracker() {
+    return tracker;
+  }
+}
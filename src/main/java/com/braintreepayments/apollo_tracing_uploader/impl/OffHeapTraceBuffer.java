@@ -0,0 +1,432 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import com.braintreepayments.apollo_tracing_uploader.PipelinePressure;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * A trace queue that keeps traces serialized in direct memory rather than as objects on the heap, so traces waiting
+ * for the next batch don't survive into the old generation and add to GC pauses.
+ * <p>
+ * Memory is a ring of fixed-size segments allocated once, up front. Each offered trace is serialized into the segment
+ * being written, moving on to the next segment when it doesn't fit, and each trace taken is parsed back out of the
+ * segment being read. A segment is reset for reuse as soon as every trace in it has been taken. When the ring is
+ * full, or a trace is larger than a segment, new traces are rejected. Traces can only be taken in order, so removing
+ * a particular trace, whether directly or through {@link #iterator()}, throws {@link UnsupportedOperationException}.
+ * <p>
+ * Its {@link PipelinePressure} is the share of segments in use.
+ */
+public class OffHeapTraceBuffer extends AbstractQueue<Reports.Trace>
+  implements BlockingQueue<Reports.Trace>, PipelinePressure {
+  private static final int LENGTH_BYTES = Integer.BYTES;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final ByteBuffer[] segments;
+  private final int[] writeOffsets;
+  private final int[] readOffsets;
+  private final int segmentBytes;
+  private final AtomicLong droppedTraceCount = new AtomicLong();
+  private int writeSegment;
+  private int readSegment;
+  private int count;
+  private long usedBytes;
+
+  public OffHeapTraceBuffer(int segmentCount, int segmentBytes) {
+    assert segmentCount >= 2 : "At least 2 segments are needed";
+
+    this.segments = new ByteBuffer[segmentCount];
+    this.writeOffsets = new int[segmentCount];
+    this.readOffsets = new int[segmentCount];
+    this.segmentBytes = segmentBytes;
+
+    for (int i = 0; i < segmentCount; i++) {
+      segments[i] = ByteBuffer.allocateDirect(segmentBytes);
+    }
+  }
+
+  /**
+   * Create a buffer of about {@code maxBytes}, in segments of 1 MiB or less.
+   *
+   * @param maxBytes The total size of the buffer.
+   * @return An {@link OffHeapTraceBuffer}.
+   */
+  public static OffHeapTraceBuffer ofSize(long maxBytes) {
+    int segmentBytes = (int) Math.min(1024 * 1024, Math.max(1, maxBytes / 2));
+
+    return new OffHeapTraceBuffer((int) Math.max(2, maxBytes / segmentBytes), segmentBytes);
+  }
+
+  @Override
+  public boolean offer(Reports.Trace trace) {
+    lock.lock();
+    try {
+      if (write(trace)) {
+        return true;
+      }
+
+      droppedTraceCount.incrementAndGet();
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void put(Reports.Trace trace) throws InterruptedException {
+    rejectOversized(trace);
+
+    lock.lockInterruptibly();
+    try {
+      while (!write(trace)) {
+        notFull.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(Reports.Trace trace, long timeout, TimeUnit unit) throws InterruptedException {
+    long remainingNs = unit.toNanos(timeout);
+
+    lock.lockInterruptibly();
+    try {
+      while (!write(trace)) {
+        if (remainingNs <= 0 || recordSize(trace) > segmentBytes) {
+          droppedTraceCount.incrementAndGet();
+          return false;
+        }
+
+        remainingNs = notFull.awaitNanos(remainingNs);
+      }
+
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Reports.Trace poll() {
+    lock.lock();
+    try {
+      return count == 0 ? null : read();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Reports.Trace take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        notEmpty.await();
+      }
+
+      return read();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Reports.Trace poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long remainingNs = unit.toNanos(timeout);
+
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        if (remainingNs <= 0) {
+          return null;
+        }
+
+        remainingNs = notEmpty.awaitNanos(remainingNs);
+      }
+
+      return read();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Reports.Trace peek() {
+    lock.lock();
+    try {
+      if (count == 0) {
+        return null;
+      }
+
+      skipExhaustedSegment();
+      return parse(readSegment, readOffsets[readSegment]);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int drainTo(Collection<? super Reports.Trace> collection) {
+    return drainTo(collection, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super Reports.Trace> collection, int maxElements) {
+    lock.lock();
+    try {
+      int drained = 0;
+
+      while (drained < maxElements && count > 0) {
+        collection.add(read());
+        drained++;
+      }
+
+      return drained;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return {@link Integer#MAX_VALUE}, since capacity depends on the size of the traces offered.
+   */
+  @Override
+  public int remainingCapacity() {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * Unsupported, as traces can only be taken in order.
+   *
+   * @throws UnsupportedOperationException Always.
+   */
+  @Override
+  public boolean remove(Object trace) {
+    throw new UnsupportedOperationException("Traces can only be taken in order");
+  }
+
+  /**
+   * Unsupported, as traces can only be taken in order.
+   *
+   * @throws UnsupportedOperationException Always.
+   */
+  @Override
+  public boolean removeIf(Predicate<? super Reports.Trace> filter) {
+    throw new UnsupportedOperationException("Traces can only be taken in order");
+  }
+
+  /**
+   * Unsupported, as traces can only be taken in order.
+   *
+   * @throws UnsupportedOperationException Always.
+   */
+  @Override
+  public boolean removeAll(Collection<?> traces) {
+    throw new UnsupportedOperationException("Traces can only be taken in order");
+  }
+
+  /**
+   * Unsupported, as traces can only be taken in order.
+   *
+   * @throws UnsupportedOperationException Always.
+   */
+  @Override
+  public boolean retainAll(Collection<?> traces) {
+    throw new UnsupportedOperationException("Traces can only be taken in order");
+  }
+
+  /**
+   * @return The queued traces, parsed into a read-only snapshot. This is as costly as taking them.
+   */
+  @Override
+  public Iterator<Reports.Trace> iterator() {
+    lock.lock();
+    try {
+      List<Reports.Trace> traces = new ArrayList<>(count);
+      int segment = readSegment;
+      int offset = readOffsets[segment];
+
+      for (int i = 0; i < count; i++) {
+        if (offset == writeOffsets[segment]) {
+          segment = next(segment);
+          offset = 0;
+        }
+
+        traces.add(parse(segment, offset));
+        offset += LENGTH_BYTES + segments[segment].getInt(offset);
+      }
+
+      return Collections.unmodifiableList(traces).iterator();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public double getPressure() {
+    lock.lock();
+    try {
+      if (count == 0) {
+        return 0;
+      }
+
+      int used = (writeSegment - readSegment + segments.length) % segments.length + 1;
+      return (double) used / segments.length;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The serialized size of the queued traces, including their length prefixes.
+   */
+  public long getUsedBytes() {
+    lock.lock();
+    try {
+      return usedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The direct memory held by the buffer.
+   */
+  public long getCapacityBytes() {
+    return (long) segments.length * segmentBytes;
+  }
+
+  /**
+   * @return The number of traces rejected because the buffer was full or they were larger than a segment.
+   */
+  public long getDroppedTraceCount() {
+    return droppedTraceCount.get();
+  }
+
+  private boolean write(Reports.Trace trace) {
+    int size = trace.getSerializedSize();
+    int recordBytes = LENGTH_BYTES + size;
+
+    if (recordBytes > segmentBytes) {
+      return false;
+    }
+
+    if (writeOffsets[writeSegment] + recordBytes > segmentBytes) {
+      int nextSegment = next(writeSegment);
+
+      if (nextSegment == readSegment) {
+        return false;
+      }
+
+      writeSegment = nextSegment;
+      writeOffsets[writeSegment] = 0;
+      readOffsets[writeSegment] = 0;
+    }
+
+    ByteBuffer segment = segments[writeSegment];
+    int offset = writeOffsets[writeSegment];
+    ByteBuffer target = segment.duplicate();
+    target.limit(offset + recordBytes).position(offset + LENGTH_BYTES);
+
+    try {
+      CodedOutputStream out = CodedOutputStream.newInstance(target);
+      trace.writeTo(out);
+      out.flush();
+    } catch (IOException e) {
+      throw new IllegalStateException("Trace doesn't match its serialized size", e);
+    }
+
+    segment.putInt(offset, size);
+    writeOffsets[writeSegment] += recordBytes;
+    usedBytes += recordBytes;
+    count++;
+    notEmpty.signal();
+
+    return true;
+  }
+
+  private Reports.Trace read() {
+    skipExhaustedSegment();
+
+    int offset = readOffsets[readSegment];
+    int recordBytes = LENGTH_BYTES + segments[readSegment].getInt(offset);
+    Reports.Trace trace = parse(readSegment, offset);
+
+    readOffsets[readSegment] += recordBytes;
+    usedBytes -= recordBytes;
+    count--;
+
+    if (count == 0) {
+      writeOffsets[readSegment] = 0;
+      readOffsets[readSegment] = 0;
+      writeSegment = readSegment;
+    }
+
+    notFull.signalAll();
+
+    return trace;
+  }
+
+  private void skipExhaustedSegment() {
+    if (readOffsets[readSegment] == writeOffsets[readSegment]) {
+      writeOffsets[readSegment] = 0;
+      readOffsets[readSegment] = 0;
+      readSegment = next(readSegment);
+    }
+  }
+
+  private Reports.Trace parse(int segment, int offset) {
+    ByteBuffer source = segments[segment].duplicate();
+    int size = source.getInt(offset);
+    source.limit(offset + LENGTH_BYTES + size).position(offset + LENGTH_BYTES);
+
+    try {
+      return Reports.Trace.parseFrom(source);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException("Corrupt trace in off-heap buffer", e);
+    }
+  }
+
+  private int next(int segment) {
+    return (segment + 1) % segments.length;
+  }
+
+  private int recordSize(Reports.Trace trace) {
+    return LENGTH_BYTES + trace.getSerializedSize();
+  }
+
+  private void rejectOversized(Reports.Trace trace) {
+    if (recordSize(trace) > segmentBytes) {
+      throw new IllegalArgumentException("Trace of " + trace.getSerializedSize() + " bytes is larger than a segment");
+    }
+  }
+}
@@ -0,0 +1,312 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+import com.braintreepayments.apollo_tracing_uploader.TraceUtil;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * Keeps rolling latency histograms, request counts and error counts per operation, keyed the same way as
+ * {@link mdg.engine.proto.Reports.FullTracesReport#getTracesPerQueryMap()}.
+ * <p>
+ * The window is split into a fixed number of slots, each holding a {@link DurationHistogram}-shaped array of
+ * counters, so memory is bounded by {@code maxOperations * slots}. Operations seen after {@code maxOperations} is
+ * reached are counted in {@link #getUntrackedCount()} until an idle operation ages out of the window.
+ */
+public class OperationLatencyTracker {
+  private static final int PHASE_COUNT = OperationStats.Phase.values().length;
+
+  private final long slotMillis;
+  private final int slotCount;
+  private final int maxOperations;
+  private final LongSupplier clockMillis;
+  private final long startMillis;
+  private final Map<String, OperationWindow> operations = new ConcurrentHashMap<>();
+  private final AtomicLong untrackedCount = new AtomicLong();
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public OperationLatencyTracker(Duration window, int slotCount, int maxOperations) {
+    this(window, slotCount, maxOperations, System::currentTimeMillis);
+  }
+
+  OperationLatencyTracker(Duration window, int slotCount, int maxOperations, LongSupplier clockMillis) {
+    this.slotMillis = Math.max(1, window.toMillis() / slotCount);
+    this.slotCount = slotCount;
+    this.maxOperations = maxOperations;
+    this.clockMillis = clockMillis;
+    this.startMillis = clockMillis.getAsLong();
+  }
+
+  /**
+   * Record a trace's duration and errors, along with the time spent in each {@link OperationStats.Phase} and the
+   * resource usage that the trace recorded.
+   *
+   * @param trace A {@link mdg.engine.proto.Reports.Trace}.
+   */
+  public void record(Reports.Trace trace) {
+    long[] phaseNs = new long[OperationStats.Phase.values().length];
+
+    phaseNs[OperationStats.Phase.PARSE.ordinal()] = phaseDurationNs(trace.hasParse(), trace.getParse());
+    phaseNs[OperationStats.Phase.VALIDATION.ordinal()] =
+      phaseDurationNs(trace.hasValidation(), trace.getValidation());
+    phaseNs[OperationStats.Phase.EXECUTION.ordinal()] = phaseDurationNs(trace.hasExecution(), trace.getExecution());
+
+    record(TraceUtil.queryKey(trace),
+           trace.getDurationNs(),
+           TraceUtil.hasErrors(trace),
+           phaseNs,
+           trace.hasResourceUsage() ? trace.getResourceUsage() : null);
+  }
+
+  public void record(String queryKey, long durationNs, boolean hasErrors) {
+    record(queryKey, durationNs, hasErrors, null, null);
+  }
+
+  private static long phaseDurationNs(boolean recorded, Reports.Trace.Phase phase) {
+    return recorded ? Math.max(0, phase.getEndTime() - phase.getStartTime()) : -1;
+  }
+
+  private void record(String queryKey,
+                      long durationNs,
+                      boolean hasErrors,
+                      long[] phaseNs,
+                      Reports.Trace.ResourceUsage resourceUsage) {
+    long epoch = currentEpoch();
+    OperationWindow window = operations.get(queryKey);
+
+    if (window == null) {
+      if (operations.size() >= maxOperations && !evictIdle(epoch)) {
+        untrackedCount.incrementAndGet();
+        return;
+      }
+
+      window = operations.computeIfAbsent(queryKey, k -> new OperationWindow(slotCount));
+    }
+
+    window.record(epoch, durationNs, hasErrors, phaseNs, resourceUsage);
+  }
+
+  /**
+   * @param queryKey An operation key, as returned by {@link TraceUtil#queryKey}.
+   * @return Stats for the operation over the current window, if it has been seen within the window.
+   */
+  public Optional<OperationStats> getStats(String queryKey) {
+    long epoch = currentEpoch();
+
+    return Optional.ofNullable(operations.get(queryKey))
+      .filter(window -> window.isActive(epoch, slotCount))
+      .map(window -> window.snapshot(epoch, slotCount, elapsed()));
+  }
+
+  /**
+   * @return Stats for every operation seen within the current window.
+   */
+  public Map<String, OperationStats> getStats() {
+    long epoch = currentEpoch();
+    Duration elapsed = elapsed();
+    Map<String, OperationStats> stats = new HashMap<>();
+
+    operations.forEach((key, window) -> {
+      if (window.isActive(epoch, slotCount)) {
+        stats.put(key, window.snapshot(epoch, slotCount, elapsed));
+      }
+    });
+
+    return stats;
+  }
+
+  public long getUntrackedCount() {
+    return untrackedCount.get();
+  }
+
+  private boolean evictIdle(long epoch) {
+    operations.values().removeIf(window -> !window.isActive(epoch, slotCount));
+    return operations.size() < maxOperations;
+  }
+
+  private long currentEpoch() {
+    return clockMillis.getAsLong() / slotMillis;
+  }
+
+  private Duration elapsed() {
+    long windowMillis = slotMillis * slotCount;
+    return Duration.ofMillis(Math.min(windowMillis, clockMillis.getAsLong() - startMillis));
+  }
+
+  private static class OperationWindow {
+    private final Slot[] slots;
+    private volatile long lastEpoch;
+
+    OperationWindow(int slotCount) {
+      this.slots = new Slot[slotCount];
+
+      for (int i = 0; i < slotCount; i++) {
+        slots[i] = new Slot();
+      }
+    }
+
+    void record(long epoch,
+                long durationNs,
+                boolean hasErrors,
+                long[] phaseNs,
+                Reports.Trace.ResourceUsage resourceUsage) {
+      Slot slot = slots[(int) (epoch % slots.length)];
+
+      if (slot.epoch != epoch) {
+        slot.reset(epoch);
+      }
+
+      slot.buckets.incrementAndGet(DurationHistogram.bucketFor(durationNs));
+
+      if (hasErrors) {
+        slot.errors.incrementAndGet();
+      }
+
+      if (phaseNs != null) {
+        for (int i = 0; i < phaseNs.length; i++) {
+          if (phaseNs[i] >= 0) {
+            slot.phaseNs.addAndGet(i, phaseNs[i]);
+            slot.phaseCounts.incrementAndGet(i);
+          }
+        }
+      }
+
+      if (resourceUsage != null) {
+        slot.cpuTimeNs.addAndGet(resourceUsage.getCpuTimeNs());
+        slot.allocatedBytes.addAndGet(resourceUsage.getAllocatedBytes());
+        slot.resourceUsageCount.incrementAndGet();
+      }
+
+      lastEpoch = epoch;
+    }
+
+    boolean isActive(long epoch, int slotCount) {
+      return epoch - lastEpoch < slotCount;
+    }
+
+    OperationStats snapshot(long epoch, int slotCount, Duration elapsed) {
+      DurationHistogram histogram = new DurationHistogram();
+      long errors = 0;
+      long[] phaseNs = new long[PHASE_COUNT];
+      long[] phaseCounts = new long[PHASE_COUNT];
+      ResourceTotals resources = new ResourceTotals();
+
+      for (Slot slot : slots) {
+        if (epoch - slot.epoch < slotCount) {
+          for (int i = 0; i < DurationHistogram.BUCKET_COUNT; i++) {
+            histogram.add(i, slot.buckets.get(i));
+          }
+          errors += slot.errors.get();
+
+          for (int i = 0; i < PHASE_COUNT; i++) {
+            phaseNs[i] += slot.phaseNs.get(i);
+            phaseCounts[i] += slot.phaseCounts.get(i);
+          }
+
+          resources.cpuTimeNs += slot.cpuTimeNs.get();
+          resources.allocatedBytes += slot.allocatedBytes.get();
+          resources.count += slot.resourceUsageCount.get();
+        }
+      }
+
+      return new OperationStats(histogram, errors, elapsed, phaseNs, phaseCounts, resources);
+    }
+  }
+
+  private static class Slot {
+    private final AtomicIntegerArray buckets = new AtomicIntegerArray(DurationHistogram.BUCKET_COUNT);
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicLongArray phaseNs = new AtomicLongArray(PHASE_COUNT);
+    private final AtomicIntegerArray phaseCounts = new AtomicIntegerArray(PHASE_COUNT);
+    private final AtomicLong cpuTimeNs = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicInteger resourceUsageCount = new AtomicInteger();
+    private volatile long epoch = -1;
+
+    synchronized void reset(long newEpoch) {
+      if (epoch == newEpoch) {
+        return;
+      }
+
+      for (int i = 0; i < DurationHistogram.BUCKET_COUNT; i++) {
+        buckets.set(i, 0);
+      }
+      errors.set(0);
+
+      for (int i = 0; i < PHASE_COUNT; i++) {
+        phaseNs.set(i, 0);
+        phaseCounts.set(i, 0);
+      }
+
+      cpuTimeNs.set(0);
+      allocatedBytes.set(0);
+      resourceUsageCount.set(0);
+
+      epoch = newEpoch;
+    }
+  }
+
+  static class ResourceTotals {
+    long cpuTimeNs;
+    long allocatedBytes;
+    long count;
+  }
+
+  public static class Builder {
+    private Duration _window = Duration.ofMinutes(1);
+    private int _slots = 6;
+    private int _maxOperations = 256;
+
+    public OperationLatencyTracker build() {
+      assert _slots > 0 : "slots(int) must be positive";
+
+      return new OperationLatencyTracker(_window, _slots, _maxOperations);
+    }
+
+    /**
+     * Set the length of the sliding window that stats are computed over. Defaults to one minute.
+     *
+     * @param window A {@link Duration}.
+     * @return {@link Builder}
+     */
+    public Builder window(Duration window) {
+      this._window = window;
+      return this;
+    }
+
+    /**
+     * Set the number of slots the window is divided into. The window advances one slot at a time. Defaults to 6.
+     *
+     * @param slots The number of slots.
+     * @return {@link Builder}
+     */
+    public Builder slots(int slots) {
+      this._slots = slots;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of distinct operations to keep histograms for. Defaults to 256.
+     *
+     * @param maxOperations The maximum number of operations.
+     * @return {@link Builder}
+     */
+    public Builder maxOperations(int maxOperations) {
+      this._maxOperations = maxOperations;
+      return this;
+    }
+  }
+}
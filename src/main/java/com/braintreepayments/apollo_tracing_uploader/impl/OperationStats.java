@@ -0,0 +1,129 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.time.Duration;
+
+/**
+ * A snapshot of latency, throughput and error rate for one operation over the sliding window of an
+ * {@link OperationLatencyTracker}.
+ */
+public class OperationStats {
+  /**
+   * The phases of a request whose time is recorded in a trace.
+   */
+  public enum Phase {
+    PARSE,
+    VALIDATION,
+    EXECUTION
+  }
+
+  private final long requestCount;
+  private final long errorCount;
+  private final double throughputPerSecond;
+  private final Duration p50;
+  private final Duration p95;
+  private final Duration p99;
+  private final long[] phaseNs;
+  private final long[] phaseCounts;
+  private final OperationLatencyTracker.ResourceTotals resources;
+
+  OperationStats(DurationHistogram histogram,
+                 long errorCount,
+                 Duration elapsed,
+                 long[] phaseNs,
+                 long[] phaseCounts,
+                 OperationLatencyTracker.ResourceTotals resources) {
+    this.requestCount = histogram.getCount();
+    this.errorCount = errorCount;
+    this.throughputPerSecond = requestCount * 1000.0 / Math.max(1, elapsed.toMillis());
+    this.p50 = Duration.ofNanos(histogram.percentileNs(0.50));
+    this.p95 = Duration.ofNanos(histogram.percentileNs(0.95));
+    this.p99 = Duration.ofNanos(histogram.percentileNs(0.99));
+    this.phaseNs = phaseNs;
+    this.phaseCounts = phaseCounts;
+    this.resources = resources;
+  }
+
+  public long getRequestCount() {
+    return requestCount;
+  }
+
+  public long getErrorCount() {
+    return errorCount;
+  }
+
+  public double getErrorRate() {
+    return requestCount == 0 ? 0 : (double) errorCount / requestCount;
+  }
+
+  public double getThroughputPerSecond() {
+    return throughputPerSecond;
+  }
+
+  public Duration getP50() {
+    return p50;
+  }
+
+  public Duration getP95() {
+    return p95;
+  }
+
+  public Duration getP99() {
+    return p99;
+  }
+
+  /**
+   * @param phase A {@link Phase}.
+   * @return The number of requests that went through the phase. Requests whose document came from a cache skip
+   * parsing and validation.
+   */
+  public long getPhaseCount(Phase phase) {
+    return phaseCounts[phase.ordinal()];
+  }
+
+  /**
+   * @param phase A {@link Phase}.
+   * @return The mean time spent in the phase by requests that went through it.
+   */
+  public Duration getMeanPhaseTime(Phase phase) {
+    long count = phaseCounts[phase.ordinal()];
+    return Duration.ofNanos(count == 0 ? 0 : phaseNs[phase.ordinal()] / count);
+  }
+
+  /**
+   * @return The number of requests whose resource usage was captured. See
+   * {@link com.braintreepayments.apollo_tracing_uploader.TracingConfig#setCaptureResourceUsage(boolean)}.
+   */
+  public long getResourceUsageCount() {
+    return resources.count;
+  }
+
+  /**
+   * @return The mean CPU time of requests whose resource usage was captured.
+   */
+  public Duration getMeanCpuTime() {
+    return Duration.ofNanos(resources.count == 0 ? 0 : resources.cpuTimeNs / resources.count);
+  }
+
+  /**
+   * @return The mean bytes allocated by requests whose resource usage was captured.
+   */
+  public long getMeanAllocatedBytes() {
+    return resources.count == 0 ? 0 : resources.allocatedBytes / resources.count;
+  }
+
+  @Override
+  public String toString() {
+    return "OperationStats{requestCount=" + requestCount
+           + ", errorRate=" + getErrorRate()
+           + ", throughputPerSecond=" + throughputPerSecond
+           + ", p50=" + p50
+           + ", p95=" + p95
+           + ", p99=" + p99
+           + ", meanParseTime=" + getMeanPhaseTime(Phase.PARSE)
+           + ", meanValidationTime=" + getMeanPhaseTime(Phase.VALIDATION)
+           + ", meanExecutionTime=" + getMeanPhaseTime(Phase.EXECUTION)
+           + ", meanCpuTime=" + getMeanCpuTime()
+           + ", meanAllocatedBytes=" + getMeanAllocatedBytes()
+           + "}";
+  }
+}
@@ -0,0 +1,464 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.time.Duration;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import com.braintreepayments.apollo_tracing_uploader.PipelinePressure;
+import com.braintreepayments.apollo_tracing_uploader.TraceUtil;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * A trace queue with a separately bounded lane for each of traces with errors, slow traces and all other traces, so
+ * the traces most useful for debugging survive when the queue is under the most load.
+ * <p>
+ * Each lane holds up to its own limit, which starts at its capacity, and the queue holds up to the sum of the
+ * capacities. When a lane is full, a trace with errors takes a slot from the slow or normal lane, and a slow trace
+ * takes one from the normal lane, trying the lowest lane first: a free slot if there is one, otherwise the slot of the
+ * lane's oldest trace, which is evicted. A trace with no slot to take is rejected. Once a lane that took slots has a
+ * trace taken from it, the slot goes back to a lane below its capacity. Traces are taken from the highest-priority lane
+ * first, and in arrival order within a lane.
+ * <p>
+ * Its {@link PipelinePressure} is the share of the total capacity in use.
+ */
+public class PriorityLaneTraceQueue extends AbstractQueue<Reports.Trace>
+  implements BlockingQueue<Reports.Trace>, PipelinePressure {
+  public enum Lane {
+    ERROR,
+    SLOW,
+    NORMAL
+  }
+
+  private static final Lane[] LANES = Lane.values();
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final List<ArrayDeque<Reports.Trace>> lanes = new ArrayList<>();
+  private final int[] capacities;
+  private final int[] limits;
+  private final int totalCapacity;
+  private final long slowThresholdNs;
+  private final AtomicLongArray droppedTraceCounts = new AtomicLongArray(LANES.length);
+  private int count;
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public PriorityLaneTraceQueue(int errorCapacity, int slowCapacity, int normalCapacity, Duration slowThreshold) {
+    this.capacities = new int[]{errorCapacity, slowCapacity, normalCapacity};
+    this.limits = capacities.clone();
+    this.totalCapacity = errorCapacity + slowCapacity + normalCapacity;
+    this.slowThresholdNs = slowThreshold.toNanos();
+
+    for (int i = 0; i < LANES.length; i++) {
+      lanes.add(new ArrayDeque<>());
+    }
+  }
+
+  /**
+   * @param trace A {@link mdg.engine.proto.Reports.Trace}.
+   * @return The lane the trace is queued in.
+   */
+  public Lane laneFor(Reports.Trace trace) {
+    if (TraceUtil.hasErrors(trace)) {
+      return Lane.ERROR;
+    }
+
+    return trace.getDurationNs() >= slowThresholdNs ? Lane.SLOW : Lane.NORMAL;
+  }
+
+  @Override
+  public boolean offer(Reports.Trace trace) {
+    Lane lane = laneFor(trace);
+
+    lock.lock();
+    try {
+      if (admit(trace, lane)) {
+        return true;
+      }
+
+      droppedTraceCounts.incrementAndGet(lane.ordinal());
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void put(Reports.Trace trace) throws InterruptedException {
+    Lane lane = laneFor(trace);
+
+    lock.lockInterruptibly();
+    try {
+      while (!admit(trace, lane)) {
+        notFull.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(Reports.Trace trace, long timeout, TimeUnit unit) throws InterruptedException {
+    Lane lane = laneFor(trace);
+    long remainingNs = unit.toNanos(timeout);
+
+    lock.lockInterruptibly();
+    try {
+      while (!admit(trace, lane)) {
+        if (remainingNs <= 0) {
+          droppedTraceCounts.incrementAndGet(lane.ordinal());
+          return false;
+        }
+
+        remainingNs = notFull.awaitNanos(remainingNs);
+      }
+
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Reports.Trace poll() {
+    lock.lock();
+    try {
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Reports.Trace take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        notEmpty.await();
+      }
+
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Reports.Trace poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long remainingNs = unit.toNanos(timeout);
+
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        if (remainingNs <= 0) {
+          return null;
+        }
+
+        remainingNs = notEmpty.awaitNanos(remainingNs);
+      }
+
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Reports.Trace peek() {
+    lock.lock();
+    try {
+      for (ArrayDeque<Reports.Trace> lane : lanes) {
+        if (!lane.isEmpty()) {
+          return lane.peekFirst();
+        }
+      }
+
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int drainTo(Collection<? super Reports.Trace> collection) {
+    return drainTo(collection, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super Reports.Trace> collection, int maxElements) {
+    lock.lock();
+    try {
+      int drained = 0;
+
+      while (drained < maxElements && count > 0) {
+        collection.add(dequeue());
+        drained++;
+      }
+
+      return drained;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int remainingCapacity() {
+    lock.lock();
+    try {
+      return totalCapacity - count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean remove(Object trace) {
+    if (!(trace instanceof Reports.Trace)) {
+      return false;
+    }
+
+    int lane = laneFor((Reports.Trace) trace).ordinal();
+
+    lock.lock();
+    try {
+      if (!lanes.get(lane).removeFirstOccurrence(trace)) {
+        return false;
+      }
+
+      count--;
+      returnSlot(lane);
+      notFull.signalAll();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean removeIf(Predicate<? super Reports.Trace> filter) {
+    lock.lock();
+    try {
+      boolean removed = false;
+
+      for (int lane = 0; lane < LANES.length; lane++) {
+        for (Iterator<Reports.Trace> traces = lanes.get(lane).iterator(); traces.hasNext(); ) {
+          if (filter.test(traces.next())) {
+            traces.remove();
+            count--;
+            returnSlot(lane);
+            removed = true;
+          }
+        }
+      }
+
+      if (removed) {
+        notFull.signalAll();
+      }
+
+      return removed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean removeAll(Collection<?> traces) {
+    return removeIf(traces::contains);
+  }
+
+  @Override
+  public boolean retainAll(Collection<?> traces) {
+    return removeIf(trace -> !traces.contains(trace));
+  }
+
+  /**
+   * @return A snapshot of the queued traces, highest-priority lane first. Remove traces through the queue instead.
+   */
+  @Override
+  public Iterator<Reports.Trace> iterator() {
+    lock.lock();
+    try {
+      List<Reports.Trace> traces = new ArrayList<>(count);
+      lanes.forEach(traces::addAll);
+
+      return Collections.unmodifiableList(traces).iterator();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public double getPressure() {
+    return totalCapacity == 0 ? 1 : (double) size() / totalCapacity;
+  }
+
+  /**
+   * @param lane A {@link Lane}.
+   * @return The number of traces queued in the lane.
+   */
+  public int size(Lane lane) {
+    lock.lock();
+    try {
+      return lanes.get(lane.ordinal()).size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param lane A {@link Lane}.
+   * @return The number of the lane's traces that were rejected, or evicted to make room for higher-priority ones.
+   */
+  public long getDroppedTraceCount(Lane lane) {
+    return droppedTraceCounts.get(lane.ordinal());
+  }
+
+  private boolean admit(Reports.Trace trace, Lane lane) {
+    int own = lane.ordinal();
+
+    if (lanes.get(own).size() < limits[own]) {
+      enqueue(trace, own);
+      return true;
+    }
+
+    for (int lender = LANES.length - 1; lender > own; lender--) {
+      if (lanes.get(lender).size() < limits[lender]) {
+        moveSlot(lender, own);
+        enqueue(trace, own);
+        return true;
+      }
+    }
+
+    for (int victim = LANES.length - 1; victim > own; victim--) {
+      ArrayDeque<Reports.Trace> victimLane = lanes.get(victim);
+
+      if (!victimLane.isEmpty()) {
+        victimLane.pollFirst();
+        count--;
+        droppedTraceCounts.incrementAndGet(victim);
+        moveSlot(victim, own);
+        enqueue(trace, own);
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private void moveSlot(int from, int to) {
+    limits[from]--;
+    limits[to]++;
+  }
+
+  private void enqueue(Reports.Trace trace, int lane) {
+    lanes.get(lane).addLast(trace);
+    count++;
+    notEmpty.signal();
+  }
+
+  private Reports.Trace dequeue() {
+    for (int lane = 0; lane < LANES.length; lane++) {
+      if (!lanes.get(lane).isEmpty()) {
+        count--;
+        returnSlot(lane);
+        notFull.signalAll();
+        return lanes.get(lane).pollFirst();
+      }
+    }
+
+    return null;
+  }
+
+  private void returnSlot(int lane) {
+    if (limits[lane] <= capacities[lane]) {
+      return;
+    }
+
+    for (int lender = LANES.length - 1; lender > lane; lender--) {
+      if (limits[lender] < capacities[lender]) {
+        moveSlot(lane, lender);
+        return;
+      }
+    }
+  }
+
+  public static class Builder {
+    private int _errorCapacity = 1024;
+    private int _slowCapacity = 1024;
+    private int _normalCapacity = 2048;
+    private Duration _slowThreshold = Duration.ofSeconds(1);
+
+    public PriorityLaneTraceQueue build() {
+      return new PriorityLaneTraceQueue(_errorCapacity, _slowCapacity, _normalCapacity, _slowThreshold);
+    }
+
+    /**
+     * Set how many traces with errors the queue reserves room for. Defaults to 1024.
+     *
+     * @param errorCapacity A number of traces.
+     * @return {@link Builder}
+     */
+    public Builder errorCapacity(int errorCapacity) {
+      this._errorCapacity = errorCapacity;
+      return this;
+    }
+
+    /**
+     * Set how many slow traces the queue reserves room for. Defaults to 1024.
+     *
+     * @param slowCapacity A number of traces.
+     * @return {@link Builder}
+     */
+    public Builder slowCapacity(int slowCapacity) {
+      this._slowCapacity = slowCapacity;
+      return this;
+    }
+
+    /**
+     * Set how many other traces the queue holds. Defaults to 2048.
+     *
+     * @param normalCapacity A number of traces.
+     * @return {@link Builder}
+     */
+    public Builder normalCapacity(int normalCapacity) {
+      this._normalCapacity = normalCapacity;
+      return this;
+    }
+
+    /**
+     * Set the duration at which a trace without errors counts as slow. Defaults to 1 second.
+     *
+     * @param slowThreshold A {@link Duration}.
+     * @return {@link Builder}
+     */
+    public Builder slowThreshold(Duration slowThreshold) {
+      this._slowThreshold = slowThreshold;
+      return this;
+    }
+  }
+}
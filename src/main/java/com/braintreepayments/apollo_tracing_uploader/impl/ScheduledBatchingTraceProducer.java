@@ -2,17 +2,30 @@ package com.braintreepayments.apollo_tracing_uploader.impl;
 
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
-import java.util.stream.IntStream;
+import java.util.function.Supplier;
 
 import com.braintreepayments.apollo_tracing_uploader.FullTracesReportBuilder;
+import com.braintreepayments.apollo_tracing_uploader.PipelinePressure;
 import com.braintreepayments.apollo_tracing_uploader.TraceProducer;
+import com.braintreepayments.apollo_tracing_uploader.TracingConfig;
 import com.braintreepayments.apollo_tracing_uploader.Uploader;
 
 import org.slf4j.Logger;
@@ -25,13 +38,36 @@ import mdg.engine.proto.Reports;
  * collect traces into a {@link mdg.engine.proto.Reports.FullTracesReport} protobuf message and pass it to a
  * {@link Uploader}.
  * <p>
+ * By default, batching windows are timed by {@link TracingExecutors#sharedScheduler()}, so any number of producers
+ * share one thread, and each window's report is built and handed to the uploader on
+ * {@link TracingExecutors#workerExecutor()}, so a slow uploader doesn't hold up other producers. Setting
+ * {@link Builder#threadPoolSize(int)} gives the producer a dedicated pool for both instead. Workers are scheduled when
+ * the first trace is submitted, so an idle producer starts no threads.
+ * <p>
  * {@link ScheduledBatchingTraceProducer#shutdown} should be called at application shutdown to prevent dropped metrics.
+ * Use {@link ScheduledBatchingTraceProducer#flush(Duration)} to bound how long that takes.
+ * <p>
+ * Traces passed to {@link #submitDeferred} are built straight away on {@link TracingExecutors#workerExecutor()}, or on
+ * the producer's own pool when it has one, and then queued like any other trace, so the queue's admission rules and
+ * budgets apply to them as built. Up to 1024 traces may wait to be built at once; further deferred traces are
+ * dropped.
+ * <p>
+ * Its {@link PipelinePressure} is the occupancy of the queue, so a full queue reports a pressure of 1. Queues that
+ * report their own pressure, such as {@link ByteBudgetTraceQueue}, are taken into account.
  */
-public class ScheduledBatchingTraceProducer extends AbstractTraceProducer {
+public class ScheduledBatchingTraceProducer extends AbstractTraceProducer implements PipelinePressure {
+  private static final Duration SHUTDOWN_DEADLINE = Duration.ofSeconds(30);
   private final Logger logger = LoggerFactory.getLogger(ScheduledBatchingTraceProducer.class);
-  private final int threadPoolSize;
   private final BlockingQueue<Reports.Trace> queue;
   private final ScheduledExecutorService executor;
+  private final Executor workExecutor;
+  private final boolean ownsExecutor;
+  private final TracingConfig config;
+  private final DeferredTraceAssembler assembler;
+  private final Set<Worker> workers = new HashSet<>();
+  private volatile boolean started;
+  private boolean stopped;
+  private final Map<CompletableFuture<Void>, Integer> pendingUploads = new ConcurrentHashMap<>();
 
   public static Builder newBuilder() {
     return new Builder();
@@ -42,36 +78,224 @@ public class ScheduledBatchingTraceProducer extends AbstractTraceProducer {
                                         int threadPoolSize,
                                         Duration batchingWindow,
                                         BlockingQueue<Reports.Trace> queue) {
+    this(customizeReportHeader,
+         uploader,
+         Executors.newScheduledThreadPool(threadPoolSize),
+         true,
+         configFor(threadPoolSize, batchingWindow),
+         queue);
+  }
+
+  public ScheduledBatchingTraceProducer(Consumer<Reports.ReportHeader.Builder> customizeReportHeader,
+                                        Uploader uploader,
+                                        ScheduledExecutorService executor,
+                                        int workerCount,
+                                        Duration batchingWindow,
+                                        BlockingQueue<Reports.Trace> queue) {
+    this(customizeReportHeader, uploader, executor, false, configFor(workerCount, batchingWindow), queue);
+  }
+
+  /**
+   * Create a producer tuned by a {@link TracingConfig}. Its batching window, worker count and queue capacity are read
+   * at the end of each window, and the queue should be large enough for the highest capacity that may be configured.
+   */
+  public ScheduledBatchingTraceProducer(Consumer<Reports.ReportHeader.Builder> customizeReportHeader,
+                                        Uploader uploader,
+                                        ScheduledExecutorService executor,
+                                        TracingConfig config,
+                                        BlockingQueue<Reports.Trace> queue) {
+    this(customizeReportHeader, uploader, executor, false, config, queue);
+  }
+
+  private ScheduledBatchingTraceProducer(Consumer<Reports.ReportHeader.Builder> customizeReportHeader,
+                                         Uploader uploader,
+                                         ScheduledExecutorService executor,
+                                         boolean ownsExecutor,
+                                         TracingConfig config,
+                                         BlockingQueue<Reports.Trace> queue) {
     super(customizeReportHeader, uploader);
 
-    this.threadPoolSize = threadPoolSize;
     this.queue = queue;
-    this.executor = Executors.newScheduledThreadPool(threadPoolSize);
-
-    onEachWorker(() -> executor
-      .scheduleAtFixedRate(this::safePerform, 0, batchingWindow.toMillis(), TimeUnit.MILLISECONDS));
+    this.executor = executor;
+    this.workExecutor = executor == TracingExecutors.sharedScheduler() ? TracingExecutors.workerExecutor() : null;
+    this.ownsExecutor = ownsExecutor;
+    this.config = config;
+    this.assembler = new DeferredTraceAssembler(ownsExecutor ? executor : TracingExecutors.workerExecutor(),
+                                                DeferredTraceAssembler.DEFAULT_MAX_PENDING,
+                                                this::submit);
   }
 
   @Override
   public void submit(Reports.Trace trace) {
+    if (!started) {
+      startWorkers();
+    }
+
     try {
+      if (queue.size() >= config.getMaxQueuedTraces()) {
+        throw new IllegalStateException("Queue full");
+      }
+
       queue.add(trace);
     } catch (Exception e) {
       logger.error("Error submitting to queue", e);
     }
   }
 
+  /**
+   * Build a trace off the calling thread, then {@link #submit} it.
+   */
+  @Override
+  public void submitDeferred(Supplier<Reports.Trace> trace) {
+    if (!assembler.assemble(trace)) {
+      logger.error("Error submitting to queue", new IllegalStateException("Too many traces waiting to be built"));
+    }
+  }
+
+  @Override
+  public double getPressure() {
+    long size = (long) queue.size() + assembler.getPendingCount();
+    long capacity = capacity();
+    double pressure = capacity == 0 ? 1 : Math.min(1, (double) size / capacity);
+
+    if (queue instanceof PipelinePressure) {
+      pressure = Math.max(pressure, ((PipelinePressure) queue).getPressure());
+    }
+
+    return pressure;
+  }
+
+  /**
+   * Wait for deferred traces being built, then upload every queued trace and wait for those uploads, along with any
+   * already in flight, to finish. Once the deadline passes, traces still queued are discarded and unfinished uploads
+   * are cancelled, including their retries.
+   *
+   * @param deadline How long to wait before giving up.
+   * @return A {@link CompletableFuture} with the number of traces uploaded and dropped.
+   */
+  public CompletableFuture<FlushResult> flush(Duration deadline) {
+    long deadlineNs = System.nanoTime() + deadline.toNanos();
+    CompletableFuture<Void> assembled = assembler.pending();
+
+    if (assembled.isDone()) {
+      return drain(deadlineNs);
+    }
+
+    CompletableFuture<Void> ready = new CompletableFuture<>();
+    ScheduledFuture<?> timeout = TracingExecutors.sharedScheduler()
+      .schedule(() -> ready.complete(null), Math.max(0, deadlineNs - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+    assembled.whenComplete((result, e) -> {
+      timeout.cancel(false);
+      ready.complete(null);
+    });
+
+    return ready.thenComposeAsync(result -> drain(deadlineNs), TracingExecutors.workerExecutor());
+  }
+
+  private CompletableFuture<FlushResult> drain(long deadlineNs) {
+    Map<CompletableFuture<Void>, Integer> uploads = new HashMap<>(pendingUploads);
+    int discardedTraces = 0;
+
+    while (!queue.isEmpty()) {
+      List<Reports.Trace> traces = new ArrayList<>();
+      queue.drainTo(traces);
+
+      if (System.nanoTime() - deadlineNs >= 0) {
+        discardedTraces += traces.size();
+      } else if (!traces.isEmpty()) {
+        uploads.put(upload(traces), traces.size());
+      }
+    }
+
+    ScheduledFuture<?> timeout = TracingExecutors.sharedScheduler()
+      .schedule(() -> uploads.keySet().forEach(upload -> upload.cancel(false)),
+                Math.max(0, deadlineNs - System.nanoTime()),
+                TimeUnit.NANOSECONDS);
+
+    int discarded = discardedTraces;
+
+    return CompletableFuture.allOf(uploads.keySet().toArray(new CompletableFuture<?>[0]))
+      .handle((result, e) -> {
+        timeout.cancel(false);
+        return toFlushResult(uploads, discarded);
+      });
+  }
+
   public void shutdown() {
-    onEachWorker(() -> executor.submit(this::flushQueue));
+    synchronized (this) {
+      stopped = true;
+      workers.forEach(Worker::cancel);
+      workers.clear();
+    }
+
+    FlushResult result = flush(SHUTDOWN_DEADLINE).join();
+
+    if (result.getDroppedTraceCount() > 0) {
+      logger.warn("Dropped traces during shutdown: {}", result);
+    }
+
+    if (!ownsExecutor) {
+      return;
+    }
+
     executor.shutdown();
 
     try {
-      executor.awaitTermination(30, TimeUnit.SECONDS);
+      executor.awaitTermination(SHUTDOWN_DEADLINE.getSeconds(), TimeUnit.SECONDS);
     } catch (InterruptedException e) {
       logger.error("Interrupted during shutdown", e);
     }
   }
 
+  private static TracingConfig configFor(int workerCount, Duration batchingWindow) {
+    TracingConfig config = new TracingConfig();
+
+    config.setWorkerCount(workerCount);
+    config.setBatchingWindow(batchingWindow);
+    config.setMaxQueuedTraces(Integer.MAX_VALUE);
+
+    return config;
+  }
+
+  private long capacity() {
+    return Math.min((long) queue.size() + queue.remainingCapacity(), config.getMaxQueuedTraces());
+  }
+
+  private synchronized void startWorkers() {
+    if (started) {
+      return;
+    }
+
+    started = true;
+    adjustWorkers();
+  }
+
+  private synchronized void adjustWorkers() {
+    if (stopped) {
+      return;
+    }
+
+    int workerCount = config.getWorkerCount();
+
+    if (ownsExecutor && executor instanceof ScheduledThreadPoolExecutor) {
+      ((ScheduledThreadPoolExecutor) executor).setCorePoolSize(workerCount);
+    }
+
+    while (workers.size() < workerCount) {
+      Worker worker = new Worker();
+      workers.add(worker);
+      worker.schedule();
+    }
+
+    Iterator<Worker> surplus = workers.iterator();
+
+    while (workers.size() > workerCount) {
+      surplus.next().cancel();
+      surplus.remove();
+    }
+  }
+
   private void safePerform() {
     try {
       perform();
@@ -88,28 +312,149 @@ public class ScheduledBatchingTraceProducer extends AbstractTraceProducer {
       return;
     }
 
-    uploader.upload(reportBuilder.build(traces, customizeReportHeader));
+    upload(traces);
   }
 
-  private void flushQueue() {
-    while (!queue.isEmpty()) {
+  private CompletableFuture<Void> upload(List<Reports.Trace> traces) {
+    CompletableFuture<Void> upload;
+
+    try {
+      upload = uploader.uploadAsync(reportBuilder.build(traces, customizeReportHeader));
+    } catch (Exception e) {
+      logger.error("Error during upload", e);
+      upload = new CompletableFuture<>();
+      upload.completeExceptionally(e);
+    }
+
+    CompletableFuture<Void> pending = upload;
+    pendingUploads.put(pending, traces.size());
+    pending.whenComplete((result, e) -> pendingUploads.remove(pending));
+
+    return pending;
+  }
+
+  /**
+   * Drains the queue once per batching window, rescheduling itself so that changes to the window and worker count
+   * take effect at the end of the current window. On the shared scheduler, the drain itself runs on the worker
+   * executor.
+   */
+  private class Worker implements Runnable {
+    private ScheduledFuture<?> next;
+
+    @Override
+    public void run() {
+      if (workExecutor != null) {
+        workExecutor.execute(this::performAndReschedule);
+      } else {
+        performAndReschedule();
+      }
+    }
+
+    private void performAndReschedule() {
       safePerform();
+
+      synchronized (ScheduledBatchingTraceProducer.this) {
+        if (workers.contains(this)) {
+          adjustWorkers();
+        }
+
+        if (workers.contains(this)) {
+          schedule();
+        }
+      }
+    }
+
+    void schedule() {
+      next = executor.schedule(this, config.getBatchingWindowMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    void cancel() {
+      if (next != null) {
+        next.cancel(false);
+      }
     }
   }
 
-  private void onEachWorker(Runnable runnable) {
-    IntStream.range(0, threadPoolSize).forEach(i -> runnable.run());
+  private FlushResult toFlushResult(Map<CompletableFuture<Void>, Integer> uploads, int discardedTraces) {
+    int uploaded = 0;
+    int dropped = discardedTraces;
+    boolean cancelled = false;
+
+    for (Map.Entry<CompletableFuture<Void>, Integer> entry : uploads.entrySet()) {
+      if (entry.getKey().isCompletedExceptionally()) {
+        dropped += entry.getValue();
+        cancelled |= entry.getKey().isCancelled();
+      } else {
+        uploaded += entry.getValue();
+      }
+    }
+
+    return new FlushResult(uploaded, dropped, discardedTraces > 0 || cancelled);
   }
 
   public static class Builder {
     private Consumer<Reports.ReportHeader.Builder> _customizeReportHeader;
     private Uploader _uploader;
-    private int _threadPoolSize = 10;
+    private ScheduledExecutorService _executor;
+    private Integer _threadPoolSize;
     private Duration _batchingWindow = Duration.ofSeconds(10);
-    private BlockingQueue<Reports.Trace> _queue = new ArrayBlockingQueue<>(4096);
+    private BlockingQueue<Reports.Trace> _queue;
+    private Long _maxQueuedBytes;
+    private Long _offHeapBytes;
+    private TracingConfig _config;
 
     public ScheduledBatchingTraceProducer build() {
-      return new ScheduledBatchingTraceProducer(_customizeReportHeader, _uploader, _threadPoolSize, _batchingWindow, _queue);
+      if (_config != null) {
+        return buildWithConfig();
+      }
+
+      BlockingQueue<Reports.Trace> queue = defaultQueue(() -> new ArrayBlockingQueue<>(4096));
+
+      if (_executor == null && _threadPoolSize != null) {
+        return new ScheduledBatchingTraceProducer(_customizeReportHeader,
+                                                  _uploader,
+                                                  _threadPoolSize,
+                                                  _batchingWindow,
+                                                  queue);
+      }
+
+      return new ScheduledBatchingTraceProducer(_customizeReportHeader,
+                                                _uploader,
+                                                _executor != null ? _executor : TracingExecutors.sharedScheduler(),
+                                                _threadPoolSize != null ? _threadPoolSize : 1,
+                                                _batchingWindow,
+                                                queue);
+    }
+
+    private ScheduledBatchingTraceProducer buildWithConfig() {
+      BlockingQueue<Reports.Trace> queue = defaultQueue(LinkedBlockingQueue::new);
+
+      if (_executor == null && _threadPoolSize != null) {
+        return new ScheduledBatchingTraceProducer(_customizeReportHeader,
+                                                  _uploader,
+                                                  Executors.newScheduledThreadPool(_config.getWorkerCount()),
+                                                  true,
+                                                  _config,
+                                                  queue);
+      }
+
+      return new ScheduledBatchingTraceProducer(_customizeReportHeader,
+                                                _uploader,
+                                                _executor != null ? _executor : TracingExecutors.sharedScheduler(),
+                                                _config,
+                                                queue);
+    }
+
+    private BlockingQueue<Reports.Trace> defaultQueue(Supplier<BlockingQueue<Reports.Trace>> countBounded) {
+      if (_queue != null) {
+        return _queue;
+      }
+
+      if (_offHeapBytes != null) {
+        return OffHeapTraceBuffer.ofSize(_offHeapBytes);
+      }
+
+      return _maxQueuedBytes != null ? new ByteBudgetTraceQueue(_maxQueuedBytes) : countBounded.get();
     }
 
     public Builder customizeHeader(Consumer<Reports.ReportHeader.Builder> customizeReportHeader) {
@@ -122,19 +467,84 @@ public class ScheduledBatchingTraceProducer extends AbstractTraceProducer {
       return this;
     }
 
+    /**
+     * Set the number of workers draining the queue. Unless an {@link #executor} is also given, the producer creates
+     * and owns a thread pool of this size instead of using {@link TracingExecutors#sharedScheduler()}.
+     *
+     * @param threadPoolSize The number of workers.
+     * @return {@link Builder}
+     */
     public Builder threadPoolSize(int threadPoolSize) {
       this._threadPoolSize = threadPoolSize;
       return this;
     }
 
+    /**
+     * Run batching on the given scheduler. It is not shut down by {@link ScheduledBatchingTraceProducer#shutdown()}.
+     *
+     * @param executor A {@link ScheduledExecutorService}.
+     * @return {@link Builder}
+     */
+    public Builder executor(ScheduledExecutorService executor) {
+      this._executor = executor;
+      return this;
+    }
+
     public Builder batchingWindow(Duration batchingWindow) {
       this._batchingWindow = batchingWindow;
       return this;
     }
 
+    /**
+     * Set the queue traces wait in until the next batch. Defaults to an {@link ArrayBlockingQueue} of 4096 traces. Use
+     * a {@link PriorityLaneTraceQueue} to keep traces with errors and slow traces when it fills up, or a
+     * {@link ByteBudgetTraceQueue} to bound it by size, or an {@link OffHeapTraceBuffer} to keep traces off the heap.
+     *
+     * @param queue A {@link BlockingQueue}.
+     * @return {@link Builder}
+     */
     public Builder queue(BlockingQueue<Reports.Trace> queue) {
       this._queue = queue;
       return this;
     }
+
+    /**
+     * Bound the default queue by the serialized size of the traces it holds instead of by their number, using a
+     * {@link ByteBudgetTraceQueue}. Deferred traces are held to it once built. Ignored if a {@link #queue} is given.
+     *
+     * @param maxQueuedBytes The budget, in serialized bytes.
+     * @return {@link Builder}
+     */
+    public Builder maxQueuedBytes(long maxQueuedBytes) {
+      this._maxQueuedBytes = maxQueuedBytes;
+      return this;
+    }
+
+    /**
+     * Keep queued traces serialized in direct memory using an {@link OffHeapTraceBuffer}, in segments of up to 1 MiB.
+     * Deferred traces are serialized into it as soon as they're built, so requests' traces don't stay on the heap for
+     * the rest of the batching window. Traces larger than a segment are dropped. Ignored if a {@link #queue} is given; takes the place of
+     * {@link #maxQueuedBytes}.
+     *
+     * @param offHeapBytes The direct memory to allocate, in bytes.
+     * @return {@link Builder}
+     */
+    public Builder offHeapBytes(long offHeapBytes) {
+      this._offHeapBytes = offHeapBytes;
+      return this;
+    }
+
+    /**
+     * Tune the producer with a {@link TracingConfig} that can be changed while it runs. Its batching window, worker
+     * count and queue capacity take the place of {@link #batchingWindow}, {@link #threadPoolSize} and the capacity of
+     * the default queue, which becomes unbounded so the configured capacity can be raised.
+     *
+     * @param config A {@link TracingConfig}.
+     * @return {@link Builder}
+     */
+    public Builder config(TracingConfig config) {
+      this._config = config;
+      return this;
+    }
   }
 }
@@ -0,0 +1,310 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import com.braintreepayments.apollo_tracing_uploader.TraceProducer;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * A {@link TraceProducer} that keeps the slowest traces seen over a sliding window before passing every trace on to
+ * another producer, so they can be inspected locally without waiting for them to show up in Apollo.
+ * <p>
+ * The window is split into a fixed number of slots, each holding up to {@code maxTraces} traces, so at most
+ * {@code maxTraces * slots} traces are retained. Slots are updated with compare-and-set, and a trace faster than
+ * everything already kept in its slot is rejected after a single comparison.
+ */
+public class SlowTraceRecorder implements TraceProducer {
+  private static final Logger logger = LoggerFactory.getLogger(SlowTraceRecorder.class);
+  private static final Comparator<Reports.Trace> SLOWEST_FIRST =
+    Comparator.comparingLong(Reports.Trace::getDurationNs).reversed();
+
+  private final TraceProducer delegate;
+  private final int maxTraces;
+  private final long slotMillis;
+  private final LongSupplier clockMillis;
+  private final AtomicReferenceArray<Slot> slots;
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public SlowTraceRecorder(TraceProducer delegate, int maxTraces, Duration window, int slotCount) {
+    this(delegate, maxTraces, window, slotCount, System::currentTimeMillis);
+  }
+
+  SlowTraceRecorder(TraceProducer delegate, int maxTraces, Duration window, int slotCount, LongSupplier clockMillis) {
+    this.delegate = delegate;
+    this.maxTraces = maxTraces;
+    this.slotMillis = Math.max(1, window.toMillis() / slotCount);
+    this.clockMillis = clockMillis;
+    this.slots = new AtomicReferenceArray<>(slotCount);
+
+    for (int i = 0; i < slotCount; i++) {
+      slots.set(i, new Slot(-1, maxTraces));
+    }
+  }
+
+  @Override
+  public void submit(Reports.Trace trace) {
+    safeRecord(trace);
+    delegate.submit(trace);
+  }
+
+  @Override
+  public void submitDeferred(Supplier<Reports.Trace> trace) {
+    delegate.submitDeferred(() -> {
+      Reports.Trace built = trace.get();
+      safeRecord(built);
+      return built;
+    });
+  }
+
+  public void record(Reports.Trace trace) {
+    long epoch = currentEpoch();
+    Slot slot = slotFor(epoch);
+
+    if (trace.getDurationNs() > slot.thresholdNs) {
+      slot.offer(trace);
+    }
+  }
+
+  /**
+   * @return Up to {@code maxTraces} of the slowest traces seen within the window, slowest first.
+   */
+  public List<Reports.Trace> getSlowestTraces() {
+    long epoch = currentEpoch();
+    List<Reports.Trace> traces = new ArrayList<>();
+
+    for (int i = 0; i < slots.length(); i++) {
+      Slot slot = slots.get(i);
+
+      if (epoch - slot.epoch < slots.length()) {
+        slot.collect(traces);
+      }
+    }
+
+    traces.sort(SLOWEST_FIRST);
+
+    return traces.size() > maxTraces ? new ArrayList<>(traces.subList(0, maxTraces)) : traces;
+  }
+
+  /**
+   * Write the slowest traces as length-delimited {@link mdg.engine.proto.Reports.Trace} messages, slowest first.
+   *
+   * @param out The stream to write to. It's not closed.
+   * @throws IOException If writing fails.
+   */
+  public void writeDelimitedTo(OutputStream out) throws IOException {
+    for (Reports.Trace trace : getSlowestTraces()) {
+      trace.writeDelimitedTo(out);
+    }
+  }
+
+  /**
+   * @return The slowest traces as a JSON array, slowest first, with each trace's timing, errors and node tree.
+   */
+  public String toJson() {
+    JsonArray traces = new JsonArray();
+    getSlowestTraces().forEach(trace -> traces.add(toJson(trace)));
+
+    return traces.toString();
+  }
+
+  private void safeRecord(Reports.Trace trace) {
+    try {
+      record(trace);
+    } catch (Exception e) {
+      logger.error("Error recording slow trace", e);
+    }
+  }
+
+  private Slot slotFor(long epoch) {
+    int index = (int) (epoch % slots.length());
+
+    while (true) {
+      Slot slot = slots.get(index);
+
+      if (slot.epoch == epoch) {
+        return slot;
+      }
+
+      if (slot.epoch > epoch) {
+        return new Slot(epoch, maxTraces);
+      }
+
+      slots.compareAndSet(index, slot, new Slot(epoch, maxTraces));
+    }
+  }
+
+  private long currentEpoch() {
+    return clockMillis.getAsLong() / slotMillis;
+  }
+
+  private static JsonObject toJson(Reports.Trace trace) {
+    JsonObject json = new JsonObject();
+
+    json.addProperty("signature", trace.getSignature());
+    json.addProperty("operationName", trace.getDetails().getOperationName());
+    json.addProperty("clientName", trace.getClientName());
+    json.addProperty("clientVersion", trace.getClientVersion());
+    json.addProperty("startTime", Instant.ofEpochSecond(trace.getStartTime().getSeconds(),
+                                                        trace.getStartTime().getNanos()).toString());
+    json.addProperty("durationNs", trace.getDurationNs());
+    json.add("root", toJson(trace.getRoot()));
+
+    return json;
+  }
+
+  private static JsonObject toJson(Reports.Trace.Node node) {
+    JsonObject json = new JsonObject();
+
+    if (node.getIdCase() == Reports.Trace.Node.IdCase.RESPONSE_NAME) {
+      json.addProperty("responseName", node.getResponseName());
+    } else if (node.getIdCase() == Reports.Trace.Node.IdCase.INDEX) {
+      json.addProperty("index", node.getIndex());
+    }
+
+    if (!node.getOriginalFieldName().isEmpty()) {
+      json.addProperty("type", node.getType());
+      json.addProperty("parentType", node.getParentType());
+      json.addProperty("startTime", node.getStartTime());
+      json.addProperty("endTime", node.getEndTime());
+    }
+
+    if (node.getErrorCount() > 0) {
+      JsonArray errors = new JsonArray();
+      node.getErrorList().forEach(error -> errors.add(new JsonPrimitive(error.getMessage())));
+      json.add("errors", errors);
+    }
+
+    if (node.getChildCount() > 0) {
+      JsonArray children = new JsonArray();
+      node.getChildList().forEach(child -> children.add(toJson(child)));
+      json.add("children", children);
+    }
+
+    return json;
+  }
+
+  private static class Slot {
+    private final long epoch;
+    private final AtomicReferenceArray<Reports.Trace> traces;
+    private volatile long thresholdNs = Long.MIN_VALUE;
+
+    Slot(long epoch, int maxTraces) {
+      this.epoch = epoch;
+      this.traces = new AtomicReferenceArray<>(maxTraces);
+    }
+
+    void offer(Reports.Trace trace) {
+      while (true) {
+        int fastestIndex = 0;
+        Reports.Trace fastest = null;
+
+        for (int i = 0; i < traces.length(); i++) {
+          Reports.Trace kept = traces.get(i);
+
+          if (kept == null) {
+            fastestIndex = i;
+            fastest = null;
+            break;
+          }
+
+          if (fastest == null || kept.getDurationNs() < fastest.getDurationNs()) {
+            fastestIndex = i;
+            fastest = kept;
+          }
+        }
+
+        if (fastest != null && trace.getDurationNs() <= fastest.getDurationNs()) {
+          thresholdNs = fastest.getDurationNs();
+          return;
+        }
+
+        if (traces.compareAndSet(fastestIndex, fastest, trace)) {
+          return;
+        }
+      }
+    }
+
+    void collect(List<Reports.Trace> into) {
+      for (int i = 0; i < traces.length(); i++) {
+        Reports.Trace trace = traces.get(i);
+
+        if (trace != null) {
+          into.add(trace);
+        }
+      }
+    }
+  }
+
+  public static class Builder {
+    private TraceProducer _delegate;
+    private int _maxTraces = 10;
+    private Duration _window = Duration.ofMinutes(5);
+    private int _slots = 5;
+
+    public SlowTraceRecorder build() {
+      assert _delegate != null : "Missing delegate(TraceProducer)";
+      assert _maxTraces > 0 : "maxTraces(int) must be positive";
+      assert _slots > 0 : "slots(int) must be positive";
+
+      return new SlowTraceRecorder(_delegate, _maxTraces, _window, _slots);
+    }
+
+    public Builder delegate(TraceProducer delegate) {
+      this._delegate = delegate;
+      return this;
+    }
+
+    /**
+     * Set how many of the slowest traces to keep. Defaults to 10.
+     *
+     * @param maxTraces A number of traces.
+     * @return {@link Builder}
+     */
+    public Builder maxTraces(int maxTraces) {
+      this._maxTraces = maxTraces;
+      return this;
+    }
+
+    /**
+     * Set how long a slow trace is kept for. Defaults to five minutes.
+     *
+     * @param window A {@link Duration}.
+     * @return {@link Builder}
+     */
+    public Builder window(Duration window) {
+      this._window = window;
+      return this;
+    }
+
+    /**
+     * Set how many slots the window is split into. More slots expire old traces more smoothly, at the cost of
+     * retaining up to {@code maxTraces} traces per slot. Defaults to 5.
+     *
+     * @param slots A number of slots.
+     * @return {@link Builder}
+     */
+    public Builder slots(int slots) {
+      this._slots = slots;
+      return this;
+    }
+  }
+}
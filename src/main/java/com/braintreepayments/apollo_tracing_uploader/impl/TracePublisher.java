@@ -0,0 +1,271 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+import com.braintreepayments.apollo_tracing_uploader.TraceProducer;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * A {@link TraceProducer} that publishes submitted traces as a Reactive Streams {@link Publisher}, so custom pipelines
+ * can be built from ordinary operators instead of their own queues and threads. On Java 9 and later,
+ * {@code org.reactivestreams.FlowAdapters} (reactive-streams 1.0.3) turns it into a
+ * {@code java.util.concurrent.Flow.Publisher}.
+ * <p>
+ * Traces are kept in a single ring buffer of {@code bufferSize} traces that every subscriber reads from with its own
+ * cursor, so subscribers share each trace rather than copying it. Subscribers only receive traces they've requested,
+ * and only those submitted after they subscribed. Submitting never blocks: a subscriber that falls more than
+ * {@code bufferSize} traces behind skips the oldest ones, which are counted in {@link #getDroppedTraceCount()}.
+ * <p>
+ * Traces are delivered on {@code executor}, one task at a time per subscriber. Deferred traces are built on
+ * {@link TracingExecutors#workerExecutor()}, and only while there are subscribers.
+ */
+public class TracePublisher implements TraceProducer, Publisher<Reports.Trace> {
+  private static final Logger logger = LoggerFactory.getLogger(TracePublisher.class);
+
+  private final AtomicReferenceArray<Entry> ring;
+  private final int mask;
+  private final Executor executor;
+  private final List<TraceSubscription> subscriptions = new CopyOnWriteArrayList<>();
+  private final AtomicLong droppedTraceCount = new AtomicLong();
+  private final DeferredTraceAssembler assembler;
+  private volatile long head;
+  private volatile boolean closed;
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public TracePublisher(int bufferSize, Executor executor) {
+    int capacity = Integer.highestOneBit(Math.max(1, bufferSize - 1)) << 1;
+
+    this.ring = new AtomicReferenceArray<>(capacity);
+    this.mask = capacity - 1;
+    this.executor = executor;
+    this.assembler = new DeferredTraceAssembler(TracingExecutors.workerExecutor(),
+                                                DeferredTraceAssembler.DEFAULT_MAX_PENDING,
+                                                this::submit);
+  }
+
+  @Override
+  public void submit(Reports.Trace trace) {
+    if (closed || subscriptions.isEmpty()) {
+      return;
+    }
+
+    synchronized (this) {
+      long sequence = head;
+      ring.set((int) (sequence & mask), new Entry(sequence, trace));
+      head = sequence + 1;
+    }
+
+    for (TraceSubscription subscription : subscriptions) {
+      if (subscription.requested.get() > 0) {
+        subscription.schedule();
+      }
+    }
+  }
+
+  @Override
+  public void submitDeferred(Supplier<Reports.Trace> trace) {
+    if (closed || subscriptions.isEmpty()) {
+      return;
+    }
+
+    if (!assembler.assemble(trace)) {
+      droppedTraceCount.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super Reports.Trace> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("subscriber");
+    }
+
+    TraceSubscription subscription = new TraceSubscription(subscriber, head);
+    subscriptions.add(subscription);
+    subscriber.onSubscribe(subscription);
+
+    if (closed) {
+      subscription.schedule();
+    }
+  }
+
+  /**
+   * Stop accepting traces. Each subscriber completes once it has been sent the traces it was still owed.
+   */
+  public void close() {
+    closed = true;
+    subscriptions.forEach(TraceSubscription::schedule);
+  }
+
+  public int getSubscriberCount() {
+    return subscriptions.size();
+  }
+
+  /**
+   * @return The number of traces skipped by subscribers that fell too far behind, counted once per subscriber, and of
+   * deferred traces dropped because too many were waiting to be built.
+   */
+  public long getDroppedTraceCount() {
+    return droppedTraceCount.get();
+  }
+
+  private static class Entry {
+    private final long sequence;
+    private final Reports.Trace trace;
+
+    Entry(long sequence, Reports.Trace trace) {
+      this.sequence = sequence;
+      this.trace = trace;
+    }
+  }
+
+  private class TraceSubscription implements Subscription, Runnable {
+    private final Subscriber<? super Reports.Trace> subscriber;
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger pendingRuns = new AtomicInteger();
+    private volatile boolean cancelled;
+    private volatile Throwable invalidRequest;
+    private long cursor;
+
+    TraceSubscription(Subscriber<? super Reports.Trace> subscriber, long cursor) {
+      this.subscriber = subscriber;
+      this.cursor = cursor;
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        invalidRequest = new IllegalArgumentException("Requested " + n + " traces; must be positive");
+      } else {
+        requested.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+      }
+
+      schedule();
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      subscriptions.remove(this);
+    }
+
+    void schedule() {
+      if (pendingRuns.getAndIncrement() == 0) {
+        executor.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      int missed = 1;
+
+      do {
+        try {
+          drain();
+        } catch (Throwable e) {
+          logger.error("Trace subscriber failed; cancelling its subscription", e);
+          cancel();
+        }
+
+        missed = pendingRuns.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    private void drain() {
+      if (cancelled) {
+        return;
+      }
+
+      if (invalidRequest != null) {
+        cancel();
+        subscriber.onError(invalidRequest);
+        return;
+      }
+
+      long demand = requested.get();
+      long emitted = 0;
+
+      while (emitted < demand && !cancelled) {
+        long available = head;
+
+        if (cursor >= available) {
+          break;
+        }
+
+        if (available - cursor > ring.length()) {
+          droppedTraceCount.addAndGet(available - ring.length() - cursor);
+          cursor = available - ring.length();
+        }
+
+        Entry entry = ring.get((int) (cursor & mask));
+
+        if (entry.sequence != cursor) {
+          continue;
+        }
+
+        subscriber.onNext(entry.trace);
+        cursor++;
+        emitted++;
+      }
+
+      if (emitted > 0 && demand != Long.MAX_VALUE) {
+        requested.addAndGet(-emitted);
+      }
+
+      if (closed && !cancelled && cursor >= head) {
+        cancel();
+        subscriber.onComplete();
+      }
+    }
+  }
+
+  public static class Builder {
+    private int _bufferSize = 1024;
+    private Executor _executor = ForkJoinPool.commonPool();
+
+    public TracePublisher build() {
+      assert _bufferSize > 0 : "bufferSize(int) must be positive";
+
+      return new TracePublisher(_bufferSize, _executor);
+    }
+
+    /**
+     * Set how many traces a subscriber may fall behind before it starts skipping the oldest. Rounded up to a power of
+     * two. Defaults to 1024.
+     *
+     * @param bufferSize A number of traces.
+     * @return {@link Builder}
+     */
+    public Builder bufferSize(int bufferSize) {
+      this._bufferSize = bufferSize;
+      return this;
+    }
+
+    /**
+     * Set the executor that traces are delivered on. Defaults to {@link ForkJoinPool#commonPool()}.
+     *
+     * @param executor An {@link Executor}.
+     * @return {@link Builder}
+     */
+    public Builder executor(Executor executor) {
+      this._executor = executor;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executors shared by every {@link ScheduledBatchingTraceProducer} and {@link HttpTracingUploader} that isn't given
+ * its own. Each one is created on first use, and threads are only started once work is submitted.
+ * <p>
+ * The scheduler only times work: tasks scheduled on it hand anything that builds, encodes or writes reports to the
+ * worker executor, so one slow sink or disk can't delay every producer's windows.
+ * <p>
+ * These executors are owned by the library and should not be shut down by callers.
+ */
+public final class TracingExecutors {
+  private static final Logger logger = LoggerFactory.getLogger(TracingExecutors.class);
+  private static final int UPLOAD_POOL_SIZE = 10;
+  private static final int WORKER_POOL_SIZE = 10;
+
+  private TracingExecutors() {
+  }
+
+  /**
+   * @return A single-threaded scheduler for batching windows and retry delays. Tasks run on it should not block, and
+   * should pass any real work to {@link #workerExecutor()} or {@link #uploadExecutor()}.
+   */
+  public static ScheduledExecutorService sharedScheduler() {
+    return SchedulerHolder.INSTANCE;
+  }
+
+  /**
+   * @return A bounded pool of daemon threads, which exit when idle, for building reports, assembling traces, encoding
+   * and file writes. Tasks run on it may block.
+   */
+  public static ExecutorService workerExecutor() {
+    return WorkerExecutorHolder.INSTANCE;
+  }
+
+  /**
+   * @return An executor for blocking upload work. On JDK 21 and later this runs each task on a virtual thread;
+   * otherwise it is a bounded pool of daemon threads that exit when idle.
+   */
+  public static ExecutorService uploadExecutor() {
+    return UploadExecutorHolder.INSTANCE;
+  }
+
+  /**
+   * @param prefix The name of the threads, which are numbered from 1.
+   * @return A {@link ThreadFactory} for daemon threads, so executors that are never shut down don't keep the JVM alive.
+   */
+  public static ThreadFactory daemonThreadFactory(String prefix) {
+    AtomicInteger count = new AtomicInteger();
+
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  static ThreadPoolExecutor newBoundedPool(int size, String prefix) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(size,
+                                                         size,
+                                                         60,
+                                                         TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<>(),
+                                                         daemonThreadFactory(prefix));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static ExecutorService newUploadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      logger.debug("Virtual threads unavailable, using a platform thread pool for uploads");
+    }
+
+    return newBoundedPool(UPLOAD_POOL_SIZE, "apollo-tracing-upload");
+  }
+
+  private static class SchedulerHolder {
+    private static final ScheduledExecutorService INSTANCE = newScheduler();
+
+    private static ScheduledExecutorService newScheduler() {
+      ScheduledThreadPoolExecutor scheduler =
+        new ScheduledThreadPoolExecutor(1, daemonThreadFactory("apollo-tracing-scheduler"));
+      scheduler.setRemoveOnCancelPolicy(true);
+      return scheduler;
+    }
+  }
+
+  private static class WorkerExecutorHolder {
+    private static final ExecutorService INSTANCE = newBoundedPool(WORKER_POOL_SIZE, "apollo-tracing-worker");
+  }
+
+  private static class UploadExecutorHolder {
+    private static final ExecutorService INSTANCE = newUploadExecutor();
+  }
+}
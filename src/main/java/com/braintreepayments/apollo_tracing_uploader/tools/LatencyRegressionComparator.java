@@ -0,0 +1,561 @@
+package com.braintreepayments.apollo_tracing_uploader.tools;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.braintreepayments.apollo_tracing_uploader.TraceUtil;
+import com.braintreepayments.apollo_tracing_uploader.impl.DurationHistogram;
+import com.braintreepayments.apollo_tracing_uploader.impl.FileTracingUploader;
+import com.google.protobuf.CodedInputStream;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * Compares two captures of traces, such as load test output from before and after a deploy, and ranks the operations
+ * and fields that got significantly slower.
+ * <p>
+ * Captures are length-delimited {@link mdg.engine.proto.Reports.FullTracesReport}s, as written by a
+ * {@link FileTracingUploader}, or {@link TraceCorpus} files of {@link mdg.engine.proto.Reports.Trace}s. Each capture
+ * is reduced to a {@link DurationHistogram} of trace durations per operation and of resolver durations per field
+ * ({@code ParentType.fieldName}), so memory depends on the number of distinct operations and fields rather than the
+ * size of the capture. Files are read by one thread each while a pool of threads parses the messages read, with a
+ * bounded number of messages in between.
+ * <p>
+ * An operation or field is a regression when it has at least {@code minSamples} timings in both captures, a one-sided
+ * Mann-Whitney U test says the candidate is slower with a p-value under {@code significance} divided by the number of
+ * comparisons made, and the probability that a candidate timing is slower than a baseline one is at least
+ * {@code minEffect}. The test runs on the histogram buckets, which are 10% wide, so timings in the same bucket count as
+ * ties. Regressions are ranked by that probability. Resolver calls left out of a trace to keep it within its limits
+ * are not counted.
+ * <p>
+ * To run it standalone: {@code LatencyRegressionComparator [--corpus] <baseline> <candidate>}, where each capture is a
+ * comma-separated list of files or directories. It exits with status 2 when there are regressions, so it can gate a
+ * CI build.
+ */
+public class LatencyRegressionComparator {
+  public static final int REGRESSION_EXIT_STATUS = 2;
+  private static final byte[] END = new byte[0];
+
+  private final Format format;
+  private final int threads;
+  private final long minSamples;
+  private final double significance;
+  private final double minEffect;
+
+  /**
+   * The kind of messages in a capture's files.
+   */
+  public enum Format {
+    REPORTS,
+    CORPUS
+  }
+
+  /**
+   * What a {@link Regression} measures.
+   */
+  public enum Kind {
+    OPERATION,
+    FIELD
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public LatencyRegressionComparator(Format format,
+                                     int threads,
+                                     long minSamples,
+                                     double significance,
+                                     double minEffect) {
+    this.format = format;
+    this.threads = threads;
+    this.minSamples = minSamples;
+    this.significance = significance;
+    this.minEffect = minEffect;
+  }
+
+  public static void main(String[] args) throws IOException {
+    boolean corpus = args.length > 0 && args[0].equals("--corpus");
+    int first = corpus ? 1 : 0;
+
+    if (args.length - first != 2) {
+      System.err.println("Usage: LatencyRegressionComparator [--corpus] <baseline> <candidate>");
+      System.exit(1);
+    }
+
+    LatencyRegressionComparator comparator = LatencyRegressionComparator.newBuilder()
+      .format(corpus ? Format.CORPUS : Format.REPORTS)
+      .build();
+
+    Distributions baseline = comparator.load(files(args[first]));
+    Distributions candidate = comparator.load(files(args[first + 1]));
+    List<Regression> regressions = comparator.compare(baseline, candidate);
+
+    System.out.printf("Compared %d baseline and %d candidate traces: %d regressions%n",
+                      baseline.getTraceCount(),
+                      candidate.getTraceCount(),
+                      regressions.size());
+    regressions.forEach(System.out::println);
+
+    if (!regressions.isEmpty()) {
+      System.exit(REGRESSION_EXIT_STATUS);
+    }
+  }
+
+  /**
+   * Read a capture into latency distributions.
+   *
+   * @param files The capture's files.
+   * @return The capture's {@link Distributions}.
+   * @throws IOException If a file can't be read or parsed.
+   */
+  public Distributions load(List<Path> files) throws IOException {
+    int readers = Math.max(1, Math.min(files.size(), threads));
+    ExecutorService executor = Executors.newFixedThreadPool(threads + readers);
+    BlockingQueue<byte[]> messages = new ArrayBlockingQueue<>(threads * 4);
+    List<Future<Distributions>> parsers = new ArrayList<>();
+    List<Future<?>> reads = new ArrayList<>();
+
+    try {
+      for (int i = 0; i < threads; i++) {
+        parsers.add(executor.submit(() -> parse(messages)));
+      }
+
+      for (Path file : files) {
+        reads.add(executor.submit(() -> {
+          read(file, messages);
+          return null;
+        }));
+      }
+
+      IOException failure = null;
+
+      for (Future<?> read : reads) {
+        failure = await(read, failure);
+      }
+
+      for (int i = 0; i < threads; i++) {
+        messages.put(END);
+      }
+
+      Distributions distributions = new Distributions();
+
+      for (Future<Distributions> parser : parsers) {
+        failure = await(parser, failure);
+
+        if (failure == null) {
+          distributions.merge(parser.get());
+        }
+      }
+
+      if (failure != null) {
+        throw failure;
+      }
+
+      return distributions;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted loading traces");
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Find the operations and fields that are slower in a candidate capture than in a baseline.
+   *
+   * @param baseline The {@link Distributions} from before the change.
+   * @param candidate The {@link Distributions} from after the change.
+   * @return The regressions, most severe first.
+   */
+  public List<Regression> compare(Distributions baseline, Distributions candidate) {
+    List<Regression> tested = new ArrayList<>();
+    test(Kind.OPERATION, baseline.operations, candidate.operations, tested);
+    test(Kind.FIELD, baseline.fields, candidate.fields, tested);
+
+    double threshold = significance / Math.max(1, tested.size());
+    List<Regression> regressions = new ArrayList<>();
+
+    for (Regression comparison : tested) {
+      if (comparison.pValue < threshold && comparison.effect >= minEffect) {
+        regressions.add(comparison);
+      }
+    }
+
+    regressions.sort(Comparator.comparingDouble(Regression::getEffect).reversed());
+
+    return regressions;
+  }
+
+  private void test(Kind kind,
+                    Map<String, DurationHistogram> baseline,
+                    Map<String, DurationHistogram> candidate,
+                    List<Regression> tested) {
+    for (Map.Entry<String, DurationHistogram> entry : candidate.entrySet()) {
+      DurationHistogram before = baseline.get(entry.getKey());
+      DurationHistogram after = entry.getValue();
+
+      if (before != null && before.getCount() >= minSamples && after.getCount() >= minSamples) {
+        tested.add(mannWhitney(kind, entry.getKey(), before, after));
+      }
+    }
+  }
+
+  static Regression mannWhitney(Kind kind, String key, DurationHistogram baseline, DurationHistogram candidate) {
+    double n1 = baseline.getCount();
+    double n2 = candidate.getCount();
+    double n = n1 + n2;
+    double u = 0;
+    double ties = 0;
+    long below = 0;
+
+    for (int i = 0; i < DurationHistogram.BUCKET_COUNT; i++) {
+      long before = baseline.getBucketCount(i);
+      long after = candidate.getBucketCount(i);
+      double tied = before + after;
+
+      u += after * (below + before / 2.0);
+      ties += tied * tied * tied - tied;
+      below += before;
+    }
+
+    double variance = n1 * n2 / 12 * ((n + 1) - ties / (n * (n - 1)));
+    double z = variance > 0 ? (u - n1 * n2 / 2) / Math.sqrt(variance) : 0;
+
+    return new Regression(kind, key, baseline, candidate, u / (n1 * n2), upperTail(z));
+  }
+
+  // Abramowitz and Stegun 7.1.26, accurate to about 1e-7
+  private static double upperTail(double z) {
+    double x = Math.abs(z) / Math.sqrt(2);
+    double t = 1 / (1 + 0.3275911 * x);
+    double erfc = t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027 + t * 1.061405429))))
+      * Math.exp(-x * x);
+
+    return z >= 0 ? erfc / 2 : 1 - erfc / 2;
+  }
+
+  private void read(Path file, BlockingQueue<byte[]> messages) throws IOException, InterruptedException {
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1024 * 1024)) {
+      int firstByte;
+
+      while ((firstByte = in.read()) != -1) {
+        byte[] message = new byte[CodedInputStream.readRawVarint32(firstByte, in)];
+        int read = 0;
+
+        while (read < message.length) {
+          int n = in.read(message, read, message.length - read);
+
+          if (n < 0) {
+            throw new EOFException("Truncated message in " + file);
+          }
+
+          read += n;
+        }
+
+        messages.put(message);
+      }
+    }
+  }
+
+  // Keeps taking messages after a parse error so readers never block on a full queue
+  private Distributions parse(BlockingQueue<byte[]> messages) throws IOException, InterruptedException {
+    Distributions distributions = new Distributions();
+    IOException failure = null;
+    byte[] message;
+
+    while ((message = messages.take()) != END) {
+      if (failure != null) {
+        continue;
+      }
+
+      try {
+        if (format == Format.REPORTS) {
+          Reports.FullTracesReport report = Reports.FullTracesReport.parseFrom(message);
+
+          for (Map.Entry<String, Reports.Traces> perQuery : report.getTracesPerQueryMap().entrySet()) {
+            for (Reports.Trace trace : perQuery.getValue().getTraceList()) {
+              distributions.record(perQuery.getKey(), trace);
+            }
+          }
+        } else {
+          Reports.Trace trace = Reports.Trace.parseFrom(message);
+          distributions.record(TraceUtil.queryKey(trace), trace);
+        }
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+
+    return distributions;
+  }
+
+  private static IOException await(Future<?> task, IOException failure) throws InterruptedException {
+    try {
+      task.get();
+      return failure;
+    } catch (ExecutionException e) {
+      if (failure != null) {
+        return failure;
+      }
+
+      return e.getCause() instanceof IOException
+        ? (IOException) e.getCause()
+        : new IOException("Error loading traces", e.getCause());
+    }
+  }
+
+  private static List<Path> files(String paths) throws IOException {
+    List<Path> files = new ArrayList<>();
+
+    for (String path : paths.split(",")) {
+      Path file = Paths.get(path);
+
+      if (Files.isDirectory(file)) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(file, Files::isRegularFile)) {
+          stream.forEach(files::add);
+        }
+      } else {
+        files.add(file);
+      }
+    }
+
+    Collections.sort(files);
+
+    return files;
+  }
+
+  /**
+   * Latency histograms for one capture, keyed by operation and by field. Instances are not thread-safe.
+   */
+  public static class Distributions {
+    private final Map<String, DurationHistogram> operations = new HashMap<>();
+    private final Map<String, DurationHistogram> fields = new HashMap<>();
+    private long traceCount;
+
+    /**
+     * Add a trace's timings.
+     *
+     * @param queryKey The trace's operation, as returned by {@link TraceUtil#queryKey}.
+     * @param trace A {@link mdg.engine.proto.Reports.Trace}.
+     */
+    public void record(String queryKey, Reports.Trace trace) {
+      operations.computeIfAbsent(queryKey, key -> new DurationHistogram()).record(trace.getDurationNs());
+      record(trace.getRoot());
+      traceCount++;
+    }
+
+    public void merge(Distributions other) {
+      merge(operations, other.operations);
+      merge(fields, other.fields);
+      traceCount += other.traceCount;
+    }
+
+    /**
+     * @return Trace durations, keyed by operation name and signature.
+     */
+    public Map<String, DurationHistogram> getOperations() {
+      return Collections.unmodifiableMap(operations);
+    }
+
+    /**
+     * @return Resolver durations, keyed by {@code ParentType.fieldName}.
+     */
+    public Map<String, DurationHistogram> getFields() {
+      return Collections.unmodifiableMap(fields);
+    }
+
+    public long getTraceCount() {
+      return traceCount;
+    }
+
+    private void record(Reports.Trace.Node node) {
+      if (!node.getParentType().isEmpty() && node.getEndTime() >= node.getStartTime()) {
+        String fieldName = node.getOriginalFieldName().isEmpty()
+          ? node.getResponseName()
+          : node.getOriginalFieldName();
+
+        fields.computeIfAbsent(node.getParentType() + "." + fieldName, key -> new DurationHistogram())
+          .record(node.getEndTime() - node.getStartTime());
+      }
+
+      for (Reports.Trace.Node child : node.getChildList()) {
+        record(child);
+      }
+    }
+
+    private static void merge(Map<String, DurationHistogram> into, Map<String, DurationHistogram> from) {
+      from.forEach((key, histogram) -> into.computeIfAbsent(key, k -> new DurationHistogram()).merge(histogram));
+    }
+  }
+
+  /**
+   * An operation or field that is slower in the candidate capture.
+   */
+  public static class Regression {
+    private final Kind kind;
+    private final String key;
+    private final DurationHistogram baseline;
+    private final DurationHistogram candidate;
+    private final double effect;
+    private final double pValue;
+
+    Regression(Kind kind,
+               String key,
+               DurationHistogram baseline,
+               DurationHistogram candidate,
+               double effect,
+               double pValue) {
+      this.kind = kind;
+      this.key = key;
+      this.baseline = baseline;
+      this.candidate = candidate;
+      this.effect = effect;
+      this.pValue = pValue;
+    }
+
+    public Kind getKind() {
+      return kind;
+    }
+
+    /**
+     * @return The operation's name and signature, or the field's {@code ParentType.fieldName}.
+     */
+    public String getKey() {
+      return key;
+    }
+
+    public DurationHistogram getBaseline() {
+      return baseline;
+    }
+
+    public DurationHistogram getCandidate() {
+      return candidate;
+    }
+
+    /**
+     * @return The probability that a candidate timing is slower than a baseline one, counting ties as half: 0.5 when
+     * nothing changed, and 1 when every candidate timing is slower.
+     */
+    public double getEffect() {
+      return effect;
+    }
+
+    /**
+     * @return The one-sided p-value of the candidate being slower, before correcting for the number of comparisons.
+     */
+    public double getPValue() {
+      return pValue;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s %s: p50 %.2f -> %.2f ms, p95 %.2f -> %.2f ms, P(slower)=%.2f, p=%.2g, n=%d/%d",
+                           kind,
+                           key.replace('\n', ' '),
+                           baseline.percentileNs(0.50) / 1e6,
+                           candidate.percentileNs(0.50) / 1e6,
+                           baseline.percentileNs(0.95) / 1e6,
+                           candidate.percentileNs(0.95) / 1e6,
+                           effect,
+                           pValue,
+                           baseline.getCount(),
+                           candidate.getCount());
+    }
+  }
+
+  public static class Builder {
+    private Format _format = Format.REPORTS;
+    private int _threads = Runtime.getRuntime().availableProcessors();
+    private long _minSamples = 30;
+    private double _significance = 0.01;
+    private double _minEffect = 0.56;
+
+    public LatencyRegressionComparator build() {
+      assert _threads > 0 : "threads(int) must be positive";
+
+      return new LatencyRegressionComparator(_format, _threads, _minSamples, _significance, _minEffect);
+    }
+
+    /**
+     * Set the kind of messages in the files loaded. Defaults to {@link Format#REPORTS}.
+     *
+     * @param format A {@link Format}.
+     * @return {@link Builder}
+     */
+    public Builder format(Format format) {
+      this._format = format;
+      return this;
+    }
+
+    /**
+     * Set the number of threads that parse messages. Defaults to the number of processors.
+     *
+     * @param threads A number of threads.
+     * @return {@link Builder}
+     */
+    public Builder threads(int threads) {
+      this._threads = threads;
+      return this;
+    }
+
+    /**
+     * Set how many timings an operation or field needs in each capture to be compared. Defaults to 30.
+     *
+     * @param minSamples A number of timings.
+     * @return {@link Builder}
+     */
+    public Builder minSamples(long minSamples) {
+      this._minSamples = minSamples;
+      return this;
+    }
+
+    /**
+     * Set the false positive rate across all the comparisons made. Defaults to 0.01.
+     *
+     * @param significance A probability.
+     * @return {@link Builder}
+     */
+    public Builder significance(double significance) {
+      this._significance = significance;
+      return this;
+    }
+
+    /**
+     * Set the smallest slowdown reported, as the probability that a candidate timing is slower than a baseline one.
+     * Defaults to 0.56, a small effect; 0.5 reports any significant slowdown.
+     *
+     * @param minEffect A probability between 0.5 and 1.
+     * @return {@link Builder}
+     */
+    public Builder minEffect(double minEffect) {
+      this._minEffect = minEffect;
+      return this;
+    }
+  }
+}
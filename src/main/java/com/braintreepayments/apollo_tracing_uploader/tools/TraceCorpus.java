@@ -0,0 +1,171 @@
+package com.braintreepayments.apollo_tracing_uploader.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import graphql.language.AstPrinter;
+import graphql.language.AstSignature;
+import graphql.language.Document;
+import graphql.language.OperationDefinition;
+import graphql.parser.InvalidSyntaxException;
+import graphql.parser.Parser;
+import mdg.engine.proto.Reports;
+
+/**
+ * Reads and writes trace corpus files: length-delimited {@link mdg.engine.proto.Reports.Trace} messages captured from
+ * a running service by {@link TraceCorpusRecorder}, to be replayed offline by {@link TraceReplay}.
+ * <p>
+ * Traces are passed through {@link #sanitize} before they're written, which keeps the shape and size of each trace
+ * but drops anything that could identify a user or hold their data.
+ */
+public final class TraceCorpus {
+  private TraceCorpus() {
+  }
+
+  /**
+   * Strip user data from a trace, keeping its node tree, timings and roughly its serialized size. Variable values
+   * become the empty string, as private variables are reported; error messages and JSON are masked character for
+   * character; the raw query, client address and reference, and HTTP details are removed. The signature is
+   * normalized again, which hides any literals left in it, such as when it's a query that failed to parse, and is
+   * removed if it can't be parsed.
+   *
+   * @param trace A {@link mdg.engine.proto.Reports.Trace}.
+   * @return The sanitized trace.
+   */
+  public static Reports.Trace sanitize(Reports.Trace trace) {
+    Reports.Trace.Builder builder = trace.toBuilder()
+      .setSignature(normalizeSignature(trace.getSignature(), trace.getDetails().getOperationName()))
+      .clearClientAddress()
+      .clearClientReferenceId()
+      .clearHttp();
+
+    if (trace.hasDetails()) {
+      Reports.Trace.Details.Builder details = trace.getDetails().toBuilder()
+        .clearRawQuery()
+        .clearVariables();
+
+      for (Map.Entry<String, String> variable : trace.getDetails().getVariablesJsonMap().entrySet()) {
+        details.putVariablesJson(variable.getKey(), "");
+      }
+
+      builder.setDetails(details);
+    }
+
+    if (trace.hasRoot()) {
+      builder.setRoot(sanitize(trace.getRoot()));
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Read every trace in a corpus file.
+   *
+   * @param file A corpus file.
+   * @return The traces, in the order they were written.
+   * @throws IOException If the file can't be read or parsed.
+   */
+  public static List<Reports.Trace> read(Path file) throws IOException {
+    List<Reports.Trace> traces = new ArrayList<>();
+
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+      Reports.Trace trace;
+
+      while ((trace = Reports.Trace.parseDelimitedFrom(in)) != null) {
+        traces.add(trace);
+      }
+    }
+
+    return traces;
+  }
+
+  /**
+   * Open a corpus file for writing, appending to it if it already exists.
+   *
+   * @param file A corpus file.
+   * @return A {@link Writer}.
+   * @throws IOException If the file can't be opened.
+   */
+  public static Writer append(Path file) throws IOException {
+    return new Writer(new BufferedOutputStream(Files.newOutputStream(file,
+                                                                     StandardOpenOption.CREATE,
+                                                                     StandardOpenOption.APPEND)));
+  }
+
+  private static String normalizeSignature(String signature, String operationName) {
+    try {
+      Document document = new Parser().parseDocument(signature);
+      String operation = operationName;
+
+      if (operation.isEmpty()) {
+        List<OperationDefinition> operations = document.getDefinitionsOfType(OperationDefinition.class);
+        operation = operations.size() == 1 ? operations.get(0).getName() : null;
+      }
+
+      return AstPrinter.printAstCompact(new AstSignature().signatureQuery(document, operation));
+    } catch (InvalidSyntaxException e) {
+      return "";
+    }
+  }
+
+  private static Reports.Trace.Node sanitize(Reports.Trace.Node node) {
+    Reports.Trace.Node.Builder builder = node.toBuilder().clearError().clearChild();
+
+    for (Reports.Trace.Error error : node.getErrorList()) {
+      builder.addError(error.toBuilder().setMessage(mask(error.getMessage())).setJson(mask(error.getJson())));
+    }
+
+    for (Reports.Trace.Node child : node.getChildList()) {
+      builder.addChild(sanitize(child));
+    }
+
+    return builder.build();
+  }
+
+  private static String mask(String value) {
+    char[] masked = new char[value.length()];
+    Arrays.fill(masked, 'x');
+
+    return new String(masked);
+  }
+
+  /**
+   * Appends sanitized traces to a corpus file. It's safe to use from several threads.
+   */
+  public static class Writer implements Closeable {
+    private final OutputStream out;
+    private long traceCount;
+
+    Writer(OutputStream out) {
+      this.out = out;
+    }
+
+    public synchronized void write(Reports.Trace trace) throws IOException {
+      sanitize(trace).writeDelimitedTo(out);
+      traceCount++;
+    }
+
+    /**
+     * @return The number of traces written.
+     */
+    public synchronized long getTraceCount() {
+      return traceCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package com.braintreepayments.apollo_tracing_uploader.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.braintreepayments.apollo_tracing_uploader.TraceProducer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * A {@link TraceProducer} that writes a sample of the traces it sees to a {@link TraceCorpus} file before passing every
+ * trace on to another producer, to capture realistic traces from a running service for {@link TraceReplay}.
+ * <p>
+ * Traces are sampled at {@code sampleRate} until {@code maxTraces} have been written, and are sanitized on the way
+ * out. Deferred traces are written by whichever thread assembles them, which keeps file writes off the request thread
+ * for producers that assemble traces in the background. Capture stops at the first write error.
+ */
+public class TraceCorpusRecorder implements TraceProducer, Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(TraceCorpusRecorder.class);
+
+  private final TraceProducer delegate;
+  private final TraceCorpus.Writer writer;
+  private final long maxTraces;
+  private final double sampleRate;
+  private final AtomicLong remaining;
+  private volatile boolean failed;
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public TraceCorpusRecorder(TraceProducer delegate, TraceCorpus.Writer writer, long maxTraces, double sampleRate) {
+    this.delegate = delegate;
+    this.writer = writer;
+    this.maxTraces = maxTraces;
+    this.sampleRate = sampleRate;
+    this.remaining = new AtomicLong(maxTraces);
+  }
+
+  @Override
+  public void submit(Reports.Trace trace) {
+    safeCapture(trace);
+    delegate.submit(trace);
+  }
+
+  @Override
+  public void submitDeferred(Supplier<Reports.Trace> trace) {
+    delegate.submitDeferred(() -> {
+      Reports.Trace built = trace.get();
+      safeCapture(built);
+      return built;
+    });
+  }
+
+  /**
+   * @return The number of traces written to the corpus.
+   */
+  public long getCapturedTraceCount() {
+    return writer.getTraceCount();
+  }
+
+  /**
+   * @return Whether capture has finished, either because {@code maxTraces} were written or writing failed.
+   */
+  public boolean isFinished() {
+    return failed || writer.getTraceCount() >= maxTraces;
+  }
+
+  /**
+   * Close the corpus file. Traces are still passed on to the delegate afterwards, but no longer captured.
+   */
+  @Override
+  public void close() throws IOException {
+    failed = true;
+    writer.close();
+  }
+
+  private void safeCapture(Reports.Trace trace) {
+    if (failed || remaining.get() <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+      return;
+    }
+
+    if (remaining.getAndDecrement() <= 0) {
+      return;
+    }
+
+    try {
+      writer.write(trace);
+    } catch (IOException | RuntimeException e) {
+      failed = true;
+      logger.error("Error writing trace corpus (stopping capture)", e);
+    }
+  }
+
+  public static class Builder {
+    private TraceProducer _delegate;
+    private Path _file;
+    private long _maxTraces = 10_000;
+    private double _sampleRate = 1;
+
+    public TraceCorpusRecorder build() throws IOException {
+      assert _delegate != null : "Missing delegate(TraceProducer)";
+      assert _file != null : "Missing file(Path)";
+
+      return new TraceCorpusRecorder(_delegate, TraceCorpus.append(_file), _maxTraces, _sampleRate);
+    }
+
+    public Builder delegate(TraceProducer delegate) {
+      this._delegate = delegate;
+      return this;
+    }
+
+    /**
+     * Set the corpus file to append to.
+     *
+     * @param file A {@link Path}.
+     * @return {@link Builder}
+     */
+    public Builder file(Path file) {
+      this._file = file;
+      return this;
+    }
+
+    /**
+     * Set how many traces to capture before stopping. Defaults to 10,000.
+     *
+     * @param maxTraces A number of traces.
+     * @return {@link Builder}
+     */
+    public Builder maxTraces(long maxTraces) {
+      this._maxTraces = maxTraces;
+      return this;
+    }
+
+    /**
+     * Set the share of traces to capture, between 0 and 1. Defaults to 1, capturing every trace.
+     *
+     * @param sampleRate A sample rate.
+     * @return {@link Builder}
+     */
+    public Builder sampleRate(double sampleRate) {
+      this._sampleRate = sampleRate;
+      return this;
+    }
+  }
+}
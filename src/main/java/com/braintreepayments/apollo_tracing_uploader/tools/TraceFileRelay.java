@@ -0,0 +1,296 @@
+package com.braintreepayments.apollo_tracing_uploader.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.braintreepayments.apollo_tracing_uploader.FullTracesReportBuilder;
+import com.braintreepayments.apollo_tracing_uploader.Uploader;
+import com.braintreepayments.apollo_tracing_uploader.impl.FileTracingUploader;
+import com.braintreepayments.apollo_tracing_uploader.impl.HttpTracingUploader;
+import com.braintreepayments.apollo_tracing_uploader.impl.TracingExecutors;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * Sends reports written by a {@link FileTracingUploader} on to Apollo, from a separate process.
+ * <p>
+ * Ready files are read in the order they were written, and small reports with the same header are merged into
+ * reports of up to {@code maxReportBytes} before being uploaded. Files are deleted once their traces are uploaded,
+ * and left in place to be retried otherwise, less any reports whose header was uploaded before the failure. A report
+ * may still be sent twice if its upload succeeds but times out. Files that can't be parsed, or that have failed
+ * {@code maxAttempts} times in a row, are renamed with a {@value #BAD_SUFFIX} suffix and skipped, so they don't hold
+ * up newer files.
+ * <p>
+ * To run it standalone: {@code TraceFileRelay <directory> [pollIntervalSeconds]}, with the Apollo API key in the
+ * {@code APOLLO_KEY} environment variable.
+ */
+public class TraceFileRelay implements Closeable {
+  public static final String BAD_SUFFIX = ".bad";
+  public static final int DEFAULT_MAX_ATTEMPTS = 10;
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final Logger logger = LoggerFactory.getLogger(TraceFileRelay.class);
+
+  private final FullTracesReportBuilder reportBuilder = new FullTracesReportBuilder();
+  private final Path directory;
+  private final Uploader uploader;
+  private final long maxReportBytes;
+  private final Duration uploadTimeout;
+  private final int maxAttempts;
+  private final Map<Path, Integer> attempts = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService executor =
+    Executors.newSingleThreadScheduledExecutor(TracingExecutors.daemonThreadFactory("apollo-tracing-relay"));
+
+  public TraceFileRelay(Path directory, Uploader uploader, long maxReportBytes, Duration uploadTimeout) {
+    this(directory, uploader, maxReportBytes, uploadTimeout, DEFAULT_MAX_ATTEMPTS);
+  }
+
+  public TraceFileRelay(Path directory,
+                        Uploader uploader,
+                        long maxReportBytes,
+                        Duration uploadTimeout,
+                        int maxAttempts) {
+    this.directory = directory;
+    this.uploader = uploader;
+    this.maxReportBytes = maxReportBytes;
+    this.uploadTimeout = uploadTimeout;
+    this.maxAttempts = maxAttempts;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    if (args.length < 1 || System.getenv("APOLLO_KEY") == null) {
+      System.err.println("Usage: APOLLO_KEY=<key> TraceFileRelay <directory> [pollIntervalSeconds]");
+      System.exit(1);
+    }
+
+    Duration pollInterval = Duration.ofSeconds(args.length > 1 ? Long.parseLong(args[1]) : 1);
+    Uploader uploader = HttpTracingUploader.newBuilder().apiKey(System.getenv("APOLLO_KEY")).build();
+    TraceFileRelay relay = new TraceFileRelay(Paths.get(args[0]), uploader, 8 * 1024 * 1024, Duration.ofSeconds(30));
+
+    Runtime.getRuntime().addShutdownHook(new Thread(relay::close));
+    relay.start(pollInterval);
+
+    Thread.currentThread().join();
+  }
+
+  public void start(Duration pollInterval) {
+    executor.scheduleWithFixedDelay(this::safeRelay, 0, pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop polling, then relay any files that are still ready.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+
+    try {
+      executor.awaitTermination(uploadTimeout.toMillis(), TimeUnit.MILLISECONDS);
+      relayReadyFiles();
+    } catch (Exception e) {
+      logger.error("Error relaying trace files during shutdown", e);
+    }
+  }
+
+  /**
+   * Upload and delete every ready file in the directory.
+   *
+   * @return The number of files relayed.
+   * @throws IOException If the directory can't be read.
+   * @throws RelayException If an upload fails. Files from the failed batch are kept, less any reports that were
+   * uploaded, unless they have now failed {@code maxAttempts} times.
+   */
+  public int relayReadyFiles() throws IOException, RelayException {
+    List<Path> files = readyFiles();
+    List<TraceFile> batch = new ArrayList<>();
+    long batchBytes = 0;
+    int relayed = 0;
+
+    attempts.keySet().retainAll(files);
+
+    for (Path file : files) {
+      TraceFile traceFile;
+
+      try {
+        traceFile = read(file);
+      } catch (InvalidProtocolBufferException e) {
+        logger.error("Skipping unreadable trace file " + file, e);
+        markBad(file);
+        continue;
+      }
+
+      batch.add(traceFile);
+      batchBytes += traceFile.bytes;
+
+      if (batchBytes >= maxReportBytes) {
+        relayed += send(batch);
+        batch.clear();
+        batchBytes = 0;
+      }
+    }
+
+    return relayed + send(batch);
+  }
+
+  private List<Path> readyFiles() throws IOException {
+    List<Path> files = new ArrayList<>();
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + FileTracingUploader.READY_SUFFIX)) {
+      stream.forEach(files::add);
+    }
+
+    files.sort(Path::compareTo);
+    return files;
+  }
+
+  /**
+   * Parse a whole file before any of it is added to a batch, so a file that turns out to be corrupt adds nothing.
+   */
+  private TraceFile read(Path file) throws IOException {
+    TraceFile traceFile = new TraceFile(file);
+
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+      Reports.FullTracesReport report;
+
+      while ((report = Reports.FullTracesReport.parseDelimitedFrom(in)) != null) {
+        List<Reports.Trace> traces = traceFile.traces.computeIfAbsent(report.getHeader(), header -> new ArrayList<>());
+        report.getTracesPerQueryMap().values().forEach(perQuery -> traces.addAll(perQuery.getTraceList()));
+        traceFile.bytes += report.getSerializedSize();
+      }
+    }
+
+    return traceFile;
+  }
+
+  private int send(List<TraceFile> batch) throws IOException, RelayException {
+    Map<Reports.ReportHeader, List<Reports.Trace>> merged = new LinkedHashMap<>();
+    Set<Reports.ReportHeader> uploaded = new HashSet<>();
+
+    for (TraceFile traceFile : batch) {
+      traceFile.traces.forEach((header, traces) -> merged.computeIfAbsent(header, h -> new ArrayList<>())
+        .addAll(traces));
+    }
+
+    for (Map.Entry<Reports.ReportHeader, List<Reports.Trace>> entry : merged.entrySet()) {
+      Reports.FullTracesReport report =
+        reportBuilder.build(entry.getValue(), header -> header.mergeFrom(entry.getKey()));
+
+      try {
+        uploader.uploadAsync(report).get(uploadTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        uploaded.add(entry.getKey());
+      } catch (ExecutionException | TimeoutException | RuntimeException e) {
+        throw failed(batch, uploaded, e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw failed(batch, uploaded, e);
+      }
+    }
+
+    for (TraceFile traceFile : batch) {
+      Files.delete(traceFile.file);
+      attempts.remove(traceFile.file);
+    }
+
+    return batch.size();
+  }
+
+  /**
+   * Drop the reports that were uploaded from a failed batch's files, so they aren't sent again, and set aside files
+   * that have failed too many times, so they don't hold up newer files.
+   */
+  private RelayException failed(List<TraceFile> batch, Set<Reports.ReportHeader> uploaded, Exception cause)
+    throws IOException {
+    List<Path> files = new ArrayList<>();
+
+    for (TraceFile traceFile : batch) {
+      files.add(traceFile.file);
+
+      boolean partlyUploaded = traceFile.traces.keySet().removeAll(uploaded);
+
+      if (traceFile.traces.isEmpty()) {
+        Files.delete(traceFile.file);
+        attempts.remove(traceFile.file);
+        continue;
+      }
+
+      if (partlyUploaded) {
+        rewrite(traceFile);
+      }
+
+      if (attempts.merge(traceFile.file, 1, Integer::sum) >= maxAttempts) {
+        logger.error("Giving up on trace file " + traceFile.file + " after " + maxAttempts + " failed attempts");
+        markBad(traceFile.file);
+      }
+    }
+
+    return new RelayException(files, cause);
+  }
+
+  private void rewrite(TraceFile traceFile) throws IOException {
+    Path temporary = traceFile.file.resolveSibling(traceFile.file.getFileName() + TEMPORARY_SUFFIX);
+
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+      for (Map.Entry<Reports.ReportHeader, List<Reports.Trace>> entry : traceFile.traces.entrySet()) {
+        reportBuilder.build(entry.getValue(), header -> header.mergeFrom(entry.getKey())).writeDelimitedTo(out);
+      }
+    }
+
+    Files.move(temporary, traceFile.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void markBad(Path file) throws IOException {
+    Files.move(file, file.resolveSibling(file.getFileName() + BAD_SUFFIX));
+    attempts.remove(file);
+  }
+
+  private void safeRelay() {
+    try {
+      relayReadyFiles();
+    } catch (Exception e) {
+      logger.error("Error relaying trace files (will retry)", e);
+    }
+  }
+
+  private static final class TraceFile {
+    private final Path file;
+    private final Map<Reports.ReportHeader, List<Reports.Trace>> traces = new LinkedHashMap<>();
+    private long bytes;
+
+    TraceFile(Path file) {
+      this.file = file;
+    }
+  }
+
+  public static class RelayException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    RelayException(List<Path> files, Throwable cause) {
+      super("Failed to relay trace files " + files, cause);
+    }
+  }
+}
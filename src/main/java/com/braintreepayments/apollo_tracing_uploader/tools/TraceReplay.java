@@ -0,0 +1,362 @@
+package com.braintreepayments.apollo_tracing_uploader.tools;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.braintreepayments.apollo_tracing_uploader.TraceProducer;
+import com.braintreepayments.apollo_tracing_uploader.Uploader;
+import com.braintreepayments.apollo_tracing_uploader.impl.ScheduledBatchingTraceProducer;
+
+import mdg.engine.proto.Reports;
+
+/**
+ * Feeds a {@link TraceCorpus} into a {@link TraceProducer} at a controlled rate and measures the pipeline behind it,
+ * to reproduce production tracing load offline.
+ * <p>
+ * Wrap the pipeline's {@link Uploader} with {@link #measure} so reports and the traces in them are counted, then
+ * {@link #run} the replay. Traces submitted but never uploaded, such as those dropped by a full queue, are reported
+ * as dropped. Corpus traces are submitted in order, starting over from the first once they run out, until
+ * {@code traceCount} have been submitted. Allocation is the total over every thread alive at the end of the run, so
+ * it includes the producer's own threads; it's only measured on JVMs that provide
+ * {@code com.sun.management.ThreadMXBean}, such as HotSpot.
+ * <p>
+ * To run it standalone: {@code TraceReplay <corpus> [tracesPerSecond] [traceCount]}, which replays the corpus
+ * through a {@link ScheduledBatchingTraceProducer} with a queue large enough for every trace, and discards the
+ * reports.
+ */
+public class TraceReplay {
+  private final List<Reports.Trace> traces;
+  private final long traceCount;
+  private final double tracesPerSecond;
+  private final AtomicLong uploadedTraceCount = new AtomicLong();
+  private final AtomicLong reportCount = new AtomicLong();
+  private final AtomicLong reportBytes = new AtomicLong();
+  private final AtomicLong maxReportBytes = new AtomicLong();
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public TraceReplay(List<Reports.Trace> traces, long traceCount, double tracesPerSecond) {
+    if (traces.isEmpty()) {
+      throw new IllegalArgumentException("Empty corpus");
+    }
+
+    this.traces = traces;
+    this.traceCount = traceCount;
+    this.tracesPerSecond = tracesPerSecond;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: TraceReplay <corpus> [tracesPerSecond] [traceCount]");
+      System.exit(1);
+    }
+
+    List<Reports.Trace> traces = TraceCorpus.read(Paths.get(args[0]));
+    TraceReplay replay = TraceReplay.newBuilder()
+      .traces(traces)
+      .tracesPerSecond(args.length > 1 ? Double.parseDouble(args[1]) : 0)
+      .traceCount(args.length > 2 ? Long.parseLong(args[2]) : traces.size())
+      .build();
+
+    ScheduledBatchingTraceProducer producer = ScheduledBatchingTraceProducer.newBuilder()
+      .customizeHeader(header -> header.setService("replay"))
+      .uploader(replay.measure(report -> {
+      }))
+      .queue(new LinkedBlockingQueue<>((int) Math.min(replay.traceCount, Integer.MAX_VALUE)))
+      .build();
+
+    System.out.println(replay.run(producer, () -> producer.flush(Duration.ofSeconds(30)).join()));
+    producer.shutdown();
+  }
+
+  /**
+   * Wrap an uploader so the reports it's given are counted and measured.
+   *
+   * @param uploader The pipeline's {@link Uploader}.
+   * @return An {@link Uploader} to give the pipeline instead.
+   */
+  public Uploader measure(Uploader uploader) {
+    return new Uploader() {
+      @Override
+      public void upload(Reports.FullTracesReport report) {
+        record(report);
+        uploader.upload(report);
+      }
+
+      @Override
+      public CompletableFuture<Void> uploadAsync(Reports.FullTracesReport report) {
+        record(report);
+        return uploader.uploadAsync(report);
+      }
+    };
+  }
+
+  /**
+   * Submit the corpus to a producer, then wait for it to drain.
+   *
+   * @param producer The {@link TraceProducer} at the head of the pipeline.
+   * @param drain Blocks until every submitted trace has been uploaded, e.g. by flushing the producer.
+   * @return The {@link Result} of the replay.
+   */
+  public Result run(TraceProducer producer, Runnable drain) {
+    long uploadedTracesBefore = uploadedTraceCount.get();
+    long reportsBefore = reportCount.get();
+    long reportBytesBefore = reportBytes.get();
+    maxReportBytes.set(0);
+
+    Map<Long, Long> allocatedBefore = allocatedBytesByThread();
+    long intervalNs = tracesPerSecond > 0 ? (long) (1_000_000_000 / tracesPerSecond) : 0;
+    long startNs = System.nanoTime();
+
+    for (long i = 0; i < traceCount; i++) {
+      long delayNs = startNs + i * intervalNs - System.nanoTime();
+
+      if (delayNs > 0) {
+        LockSupport.parkNanos(delayNs);
+      }
+
+      producer.submit(traces.get((int) (i % traces.size())));
+    }
+
+    drain.run();
+
+    Duration elapsed = Duration.ofNanos(System.nanoTime() - startNs);
+
+    return new Result(traceCount,
+                      uploadedTraceCount.get() - uploadedTracesBefore,
+                      elapsed,
+                      allocatedBytesSince(allocatedBefore),
+                      reportCount.get() - reportsBefore,
+                      reportBytes.get() - reportBytesBefore,
+                      maxReportBytes.get());
+  }
+
+  private void record(Reports.FullTracesReport report) {
+    long size = report.getSerializedSize();
+
+    for (Reports.Traces traces : report.getTracesPerQueryMap().values()) {
+      uploadedTraceCount.addAndGet(traces.getTraceCount());
+    }
+
+    reportCount.incrementAndGet();
+    reportBytes.addAndGet(size);
+    maxReportBytes.accumulateAndGet(size, Math::max);
+  }
+
+  private static Map<Long, Long> allocatedBytesByThread() {
+    com.sun.management.ThreadMXBean allocations = allocationBean();
+    Map<Long, Long> allocated = new HashMap<>();
+
+    if (allocations != null) {
+      long[] threadIds = allocations.getAllThreadIds();
+      long[] bytes = allocations.getThreadAllocatedBytes(threadIds);
+
+      for (int i = 0; i < threadIds.length; i++) {
+        if (bytes[i] >= 0) {
+          allocated.put(threadIds[i], bytes[i]);
+        }
+      }
+    }
+
+    return allocated;
+  }
+
+  private static long allocatedBytesSince(Map<Long, Long> before) {
+    if (allocationBean() == null) {
+      return -1;
+    }
+
+    long total = 0;
+
+    for (Map.Entry<Long, Long> thread : allocatedBytesByThread().entrySet()) {
+      total += thread.getValue() - before.getOrDefault(thread.getKey(), 0L);
+    }
+
+    return total;
+  }
+
+  private static com.sun.management.ThreadMXBean allocationBean() {
+    try {
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+      if (threads instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+        return bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled() ? bean : null;
+      }
+    } catch (LinkageError e) {
+      // com.sun.management is not available on this JVM
+    }
+
+    return null;
+  }
+
+  public static class Result {
+    private final long traceCount;
+    private final long uploadedTraceCount;
+    private final Duration elapsed;
+    private final long allocatedBytes;
+    private final long reportCount;
+    private final long reportBytes;
+    private final long maxReportBytes;
+
+    public Result(long traceCount,
+                  Duration elapsed,
+                  long allocatedBytes,
+                  long reportCount,
+                  long reportBytes,
+                  long maxReportBytes) {
+      this(traceCount, traceCount, elapsed, allocatedBytes, reportCount, reportBytes, maxReportBytes);
+    }
+
+    public Result(long traceCount,
+                  long uploadedTraceCount,
+                  Duration elapsed,
+                  long allocatedBytes,
+                  long reportCount,
+                  long reportBytes,
+                  long maxReportBytes) {
+      this.traceCount = traceCount;
+      this.uploadedTraceCount = uploadedTraceCount;
+      this.elapsed = elapsed;
+      this.allocatedBytes = allocatedBytes;
+      this.reportCount = reportCount;
+      this.reportBytes = reportBytes;
+      this.maxReportBytes = maxReportBytes;
+    }
+
+    public long getTraceCount() {
+      return traceCount;
+    }
+
+    /**
+     * @return The number of traces in the reports uploaded.
+     */
+    public long getUploadedTraceCount() {
+      return uploadedTraceCount;
+    }
+
+    /**
+     * @return The number of traces submitted but not uploaded.
+     */
+    public long getDroppedTraceCount() {
+      return Math.max(0, traceCount - uploadedTraceCount);
+    }
+
+    public Duration getElapsed() {
+      return elapsed;
+    }
+
+    public double getTracesPerSecond() {
+      return traceCount / seconds();
+    }
+
+    /**
+     * @return Bytes allocated during the replay, or -1 if allocation can't be measured on this JVM.
+     */
+    public long getAllocatedBytes() {
+      return allocatedBytes;
+    }
+
+    /**
+     * @return Bytes allocated per second, or -1 if allocation can't be measured on this JVM.
+     */
+    public double getAllocationRate() {
+      return allocatedBytes < 0 ? -1 : allocatedBytes / seconds();
+    }
+
+    public long getReportCount() {
+      return reportCount;
+    }
+
+    /**
+     * @return The total serialized size of the reports uploaded, before compression.
+     */
+    public long getReportBytes() {
+      return reportBytes;
+    }
+
+    public double getMeanReportBytes() {
+      return reportCount == 0 ? 0 : (double) reportBytes / reportCount;
+    }
+
+    public long getMaxReportBytes() {
+      return maxReportBytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Replayed %d traces in %d ms (%.0f traces/s, %.1f MiB/s allocated); "
+                             + "%d uploaded, %d dropped; %d reports, %.0f bytes mean, %d bytes max",
+                           traceCount,
+                           elapsed.toMillis(),
+                           getTracesPerSecond(),
+                           getAllocationRate() / (1024 * 1024),
+                           uploadedTraceCount,
+                           getDroppedTraceCount(),
+                           reportCount,
+                           getMeanReportBytes(),
+                           maxReportBytes);
+    }
+
+    private double seconds() {
+      return Math.max(1, elapsed.toNanos()) / 1e9;
+    }
+  }
+
+  public static class Builder {
+    private List<Reports.Trace> _traces;
+    private long _traceCount = -1;
+    private double _tracesPerSecond;
+
+    public TraceReplay build() {
+      assert _traces != null : "Missing traces(List)";
+
+      return new TraceReplay(_traces, _traceCount < 0 ? _traces.size() : _traceCount, _tracesPerSecond);
+    }
+
+    /**
+     * Set the corpus to replay, usually read with {@link TraceCorpus#read}.
+     *
+     * @param traces A list of {@link mdg.engine.proto.Reports.Trace}s.
+     * @return {@link Builder}
+     */
+    public Builder traces(List<Reports.Trace> traces) {
+      this._traces = traces;
+      return this;
+    }
+
+    /**
+     * Set how many traces to submit, cycling through the corpus. Defaults to the size of the corpus.
+     *
+     * @param traceCount A number of traces.
+     * @return {@link Builder}
+     */
+    public Builder traceCount(long traceCount) {
+      this._traceCount = traceCount;
+      return this;
+    }
+
+    /**
+     * Set the rate at which traces are submitted, or 0 to submit them as fast as possible. Defaults to 0.
+     *
+     * @param tracesPerSecond A rate.
+     * @return {@link Builder}
+     */
+    public Builder tracesPerSecond(double tracesPerSecond) {
+      this._tracesPerSecond = tracesPerSecond;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import org.junit.Test;
+
+import graphql.execution.ExecutionStepInfo;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.RuntimeWiring;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FieldMetadataCacheTest {
+  private static final String SCHEMA = "type Query { users: [User!]! } type User { name: String }";
+
+  @Test
+  public void reusesTemplatesForTheSameField() {
+    FieldMetadataCache cache = new FieldMetadataCache();
+    GraphQLSchema schema = schema();
+
+    Reports.Trace.Node template = cache.template(schema, usersStep(schema));
+
+    assertEquals("users", template.getOriginalFieldName());
+    assertEquals("[User!]!", template.getType());
+    assertEquals("Query", template.getParentType());
+    assertSame(template, cache.template(schema, usersStep(schema)));
+  }
+
+  @Test
+  public void discardsTemplatesWhenTheSchemaChanges() {
+    FieldMetadataCache cache = new FieldMetadataCache();
+    GraphQLSchema first = schema();
+    GraphQLSchema second = schema();
+
+    Reports.Trace.Node template = cache.template(first, usersStep(first));
+
+    assertNotSame(template, cache.template(second, usersStep(second)));
+    assertEquals(template, cache.template(second, usersStep(second)));
+  }
+
+  private static GraphQLSchema schema() {
+    return new SchemaGenerator()
+      .makeExecutableSchema(new SchemaParser().parse(SCHEMA), RuntimeWiring.newRuntimeWiring().build());
+  }
+
+  private static ExecutionStepInfo usersStep(GraphQLSchema schema) {
+    GraphQLObjectType query = schema.getQueryType();
+    ExecutionStepInfo root = ExecutionStepInfo.newExecutionStepInfo().type(query).build();
+
+    return ExecutionStepInfo.newExecutionStepInfo()
+      .type(query.getFieldDefinition("users").getType())
+      .fieldDefinition(query.getFieldDefinition("users"))
+      .fieldContainer(query)
+      .parentInfo(root)
+      .build();
+  }
+}
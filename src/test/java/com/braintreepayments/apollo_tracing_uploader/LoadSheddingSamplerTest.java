@@ -0,0 +1,85 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoadSheddingSamplerTest {
+  private AtomicLong clock;
+  private double pressure;
+  private LoadSheddingSampler sampler;
+
+  @Before
+  public void setup() {
+    this.clock = new AtomicLong();
+    this.sampler = new LoadSheddingSampler(Collections.singletonList(() -> pressure),
+                                           () -> true,
+                                           0.5,
+                                           0.01,
+                                           0.25,
+                                           Duration.ofSeconds(1),
+                                           clock::get);
+  }
+
+  @Test
+  public void tracesEverythingWithoutPressure() {
+    pressure = 0.4;
+
+    assertTrue(IntStream.range(0, 1000).allMatch(i -> sampler.get()));
+    assertEquals(1, sampler.getSamplingRate(), 0);
+  }
+
+  @Test
+  public void shedsUnderPressureAndRecoversGradually() {
+    pressure = 1;
+    sampler.get();
+    assertEquals(0.01, sampler.getSamplingRate(), 0.0001);
+
+    pressure = 0.75;
+    tick();
+    assertEquals(0.26, sampler.getSamplingRate(), 0.0001);
+
+    pressure = 0;
+    tick();
+    assertEquals(0.51, sampler.getSamplingRate(), 0.0001);
+    tick();
+    assertEquals(0.76, sampler.getSamplingRate(), 0.0001);
+    tick();
+    assertEquals(1, sampler.getSamplingRate(), 0);
+  }
+
+  @Test
+  public void onlyAdjustsOncePerInterval() {
+    pressure = 1;
+    sampler.get();
+
+    pressure = 0;
+    clock.addAndGet(Duration.ofMillis(500).toNanos());
+    sampler.get();
+
+    assertEquals(0.01, sampler.getSamplingRate(), 0.0001);
+  }
+
+  @Test
+  public void appliesSampleIfWhenNotShedding() {
+    LoadSheddingSampler never = LoadSheddingSampler.newBuilder()
+      .pressure(() -> 0)
+      .sampleIf(() -> false)
+      .build();
+
+    assertFalse(never.get());
+  }
+
+  private void tick() {
+    clock.addAndGet(Duration.ofSeconds(1).toNanos());
+    sampler.get();
+  }
+}
@@ -0,0 +1,73 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.Attribute;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.RuntimeMBeanException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TracingConfigTest {
+  private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+  @Test
+  public void appliesChangesMadeOverJmx() throws Exception {
+    TracingConfig config = new TracingConfig();
+    ObjectName name = register(config, "jmx-changes");
+
+    try {
+      server.setAttribute(name, new Attribute("SamplingRate", 0.25));
+      server.setAttribute(name, new Attribute("Retries", 5));
+
+      assertEquals(0.25, config.getSamplingRate(), 0);
+      assertEquals(5, config.getRetries());
+      assertEquals(config.getBatchingWindowMillis(), server.getAttribute(name, "BatchingWindowMillis"));
+    } finally {
+      server.unregisterMBean(name);
+    }
+  }
+
+  @Test
+  public void rejectsInvalidValuesOverJmx() throws Exception {
+    TracingConfig config = new TracingConfig();
+    ObjectName name = register(config, "jmx-invalid");
+
+    try {
+      server.setAttribute(name, new Attribute("SamplingRate", 2.0));
+      fail("Expected an invalid sampling rate to be rejected");
+    } catch (RuntimeMBeanException e) {
+      assertTrue(e.getCause() instanceof IllegalArgumentException);
+      assertEquals(1, config.getSamplingRate(), 0);
+    } finally {
+      server.unregisterMBean(name);
+    }
+  }
+
+  @Test(expected = InstanceAlreadyExistsException.class)
+  public void rejectsDuplicateNames() throws Exception {
+    ObjectName name = register(new TracingConfig(), "jmx-duplicate");
+
+    try {
+      new TracingConfig().registerMBean("jmx-duplicate");
+    } finally {
+      server.unregisterMBean(name);
+    }
+  }
+
+  private ObjectName register(TracingConfig config, String name) throws Exception {
+    config.registerMBean(name);
+
+    ObjectName objectName = new ObjectName("com.braintreepayments.apollo_tracing_uploader:type=TracingConfig,name="
+                                             + ObjectName.quote(name));
+    assertTrue(server.isRegistered(objectName));
+
+    return objectName;
+  }
+}
@@ -0,0 +1,87 @@
+package com.braintreepayments.apollo_tracing_uploader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import graphql.ExecutionResult;
+import graphql.ExecutionResultImpl;
+import graphql.GraphQLError;
+import graphql.GraphqlErrorBuilder;
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TracingUploadInstrumentationStateTest {
+  @Test
+  public void deduplicatesAndCapsErrors() {
+    List<GraphQLError> errors = new ArrayList<>();
+
+    for (int i = 0; i < 1_000; i++) {
+      errors.add(error("Invalid item", "items", i, "id"));
+    }
+
+    errors.add(error("Invalid name", "items", 3, "name"));
+    errors.add(error("Unavailable", "other"));
+    errors.add(error("Invalid item", "items", 7, "id"));
+
+    Reports.Trace trace = execute(TraceLimits.defaults().withMaxErrors(2), errors);
+    Reports.Trace.Node items = trace.getRoot().getChild(0);
+
+    assertEquals("items", items.getResponseName());
+    assertEquals(2, items.getChildCount());
+
+    Reports.Trace.Error repeated = items.getChild(0).getChild(0).getError(0);
+
+    assertEquals(0, items.getChild(0).getIndex());
+    assertEquals("Invalid item", repeated.getMessage());
+    assertEquals(1_000, repeated.getRepeatCount());
+    assertTrue(repeated.getJson().contains("Invalid item"));
+
+    assertEquals(3, items.getChild(1).getIndex());
+    assertEquals(0, items.getChild(1).getChild(0).getError(0).getRepeatCount());
+    assertEquals(1, trace.getOmittedErrorCount());
+  }
+
+  @Test
+  public void recordsEveryErrorByDefault() {
+    List<GraphQLError> errors = Arrays.asList(error("Invalid item", "items", 0, "id"),
+                                              error("Invalid item", "items", 1, "id"),
+                                              error("Invalid item", "items", 0, "id"));
+
+    Reports.Trace trace = execute(TraceLimits.defaults(), errors);
+    Reports.Trace.Node items = trace.getRoot().getChild(0);
+
+    assertEquals(2, items.getChildCount());
+    assertEquals(2, items.getChild(0).getChild(0).getErrorCount());
+    assertEquals(1, items.getChild(1).getChild(0).getErrorCount());
+    assertEquals(0, items.getChild(0).getChild(0).getError(1).getRepeatCount());
+    assertEquals(0, trace.getOmittedErrorCount());
+  }
+
+  private static Reports.Trace execute(TraceLimits limits, List<GraphQLError> errors) {
+    List<Reports.Trace> traces = new ArrayList<>();
+    TracingUploadInstrumentationState state = new TracingUploadInstrumentationState(traces::add,
+                                                                                    (trace, context) -> ignore(),
+                                                                                    (trace, context) -> ignore(),
+                                                                                    variables -> variables,
+                                                                                    limits,
+                                                                                    false);
+    ExecutionResult result = ExecutionResultImpl.newExecutionResult().errors(errors).build();
+
+    state.beginExecution(null).onCompleted(result, null);
+    state.instrumentExecutionResult(result);
+
+    return traces.get(0);
+  }
+
+  private static void ignore() {
+  }
+
+  private static GraphQLError error(String message, Object... path) {
+    return GraphqlErrorBuilder.newError().message(message).path(Arrays.asList(path)).build();
+  }
+}
@@ -0,0 +1,98 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ByteBudgetTraceQueueTest {
+  @Test
+  public void evictsCheapestTracesToAdmitMoreValuableOnes() {
+    Reports.Trace fast = trace("query {fast}", 1_000, false);
+    Reports.Trace slow = trace("query {slow}", 9_000, false);
+    Reports.Trace failed = trace("query {fail}", 500, true);
+    long budget = Math.max(fast.getSerializedSize(), failed.getSerializedSize()) + slow.getSerializedSize();
+    ByteBudgetTraceQueue queue = new ByteBudgetTraceQueue(budget);
+
+    assertTrue(queue.offer(fast));
+    assertTrue(queue.offer(slow));
+    assertTrue(queue.offer(failed));
+
+    List<Reports.Trace> drained = new ArrayList<>();
+    queue.drainTo(drained);
+
+    assertEquals(2, drained.size());
+    assertEquals(slow, drained.get(0));
+    assertEquals(failed, drained.get(1));
+    assertEquals(1, queue.getDroppedTraceCount());
+    assertEquals(0, queue.getUsedBytes());
+  }
+
+  @Test
+  public void rejectsTracesCheaperThanEverythingQueued() {
+    Reports.Trace slow = trace("query {slow}", 9_000, false);
+    Reports.Trace fast = trace("query {fast}", 1_000, false);
+    ByteBudgetTraceQueue queue = new ByteBudgetTraceQueue(slow.getSerializedSize());
+
+    assertTrue(queue.offer(slow));
+    assertFalse(queue.offer(fast));
+    assertEquals(1, queue.size());
+    assertEquals(slow, queue.poll());
+    assertEquals(1, queue.getDroppedTraceCount());
+  }
+
+  @Test
+  public void neverExceedsBudget() {
+    ByteBudgetTraceQueue queue = new ByteBudgetTraceQueue(1_000);
+
+    for (int i = 0; i < 500; i++) {
+      queue.offer(trace("query {q" + i + "}", i % 37, i % 11 == 0));
+      assertTrue(queue.getUsedBytes() <= 1_000);
+    }
+
+    assertEquals(500, queue.size() + queue.getDroppedTraceCount());
+  }
+
+  @Test
+  public void removesTracesAndReleasesTheirBytes() {
+    Reports.Trace a = trace("query {a}", 1_000, false);
+    Reports.Trace b = trace("query {b}", 2_000, false);
+    Reports.Trace c = trace("query {c}", 3_000, false);
+    ByteBudgetTraceQueue queue = new ByteBudgetTraceQueue(1_000);
+
+    queue.offer(a);
+    queue.offer(b);
+    queue.offer(c);
+
+    assertTrue(queue.remove(b));
+    assertFalse(queue.remove(b));
+    assertEquals(a.getSerializedSize() + c.getSerializedSize(), queue.getUsedBytes());
+
+    assertTrue(queue.removeAll(Collections.singleton(a)));
+    assertTrue(queue.retainAll(Collections.emptyList()));
+    assertEquals(0, queue.size());
+    assertEquals(0, queue.getUsedBytes());
+    assertEquals(0, queue.getDroppedTraceCount());
+  }
+
+  private Reports.Trace trace(String signature, long durationNs, boolean hasErrors) {
+    Reports.Trace.Node.Builder root = Reports.Trace.Node.newBuilder();
+
+    if (hasErrors) {
+      root.addError(Reports.Trace.Error.newBuilder().setMessage("failed"));
+    }
+
+    return Reports.Trace.newBuilder()
+      .setSignature(signature)
+      .setDurationNs(durationNs)
+      .setRoot(root)
+      .build();
+  }
+}
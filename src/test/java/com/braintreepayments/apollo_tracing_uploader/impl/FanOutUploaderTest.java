@@ -0,0 +1,164 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import com.braintreepayments.apollo_tracing_uploader.EncodedReport;
+import com.braintreepayments.apollo_tracing_uploader.ReportSink;
+
+import org.junit.After;
+import org.junit.Test;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FanOutUploaderTest {
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private final Reports.FullTracesReport report = Reports.FullTracesReport.newBuilder()
+    .setHeader(Reports.ReportHeader.newBuilder().setService("service"))
+    .build();
+
+  @After
+  public void teardown() {
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void encodesEachReportOnceForEverySink() throws Exception {
+    List<EncodedReport> first = new ArrayList<>();
+    List<EncodedReport> second = new ArrayList<>();
+    FanOutUploader uploader = FanOutUploader.newBuilder()
+      .sink(recording(first))
+      .sink(recording(second))
+      .executor(Runnable::run)
+      .build();
+
+    uploader.uploadAsync(report).get(5, TimeUnit.SECONDS);
+
+    assertSame(first.get(0), second.get(0));
+    assertEquals(report, Reports.FullTracesReport.parseFrom(new GZIPInputStream(first.get(0).newInputStream())));
+  }
+
+  @Test
+  public void isolatesFailingSinks() throws Exception {
+    List<EncodedReport> delivered = new ArrayList<>();
+    FanOutUploader uploader = FanOutUploader.newBuilder()
+      .sink(failing())
+      .sink(encoded -> {
+        throw new IllegalStateException("broken sink");
+      })
+      .sink(recording(delivered))
+      .executor(Runnable::run)
+      .build();
+
+    uploader.uploadAsync(report).get(5, TimeUnit.SECONDS);
+
+    assertEquals(1, delivered.size());
+  }
+
+  @Test
+  public void failsOnlyWhenEverySinkFails() {
+    FanOutUploader uploader = FanOutUploader.newBuilder()
+      .sink(failing())
+      .sink(failing())
+      .executor(Runnable::run)
+      .build();
+
+    CompletableFuture<Void> upload = uploader.uploadAsync(report);
+
+    assertTrue(upload.isCompletedExceptionally());
+  }
+
+  @Test
+  public void retriesSinksWithTheSameBytes() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    List<EncodedReport> delivered = new ArrayList<>();
+    ReportSink flaky = encoded -> {
+      if (attempts.incrementAndGet() < 3) {
+        return failing().send(encoded);
+      }
+
+      return recording(delivered).send(encoded);
+    };
+    FanOutUploader uploader = FanOutUploader.newBuilder()
+      .sink(FanOutUploader.retrying(flaky, 2, Duration.ofMillis(1), scheduler))
+      .executor(Runnable::run)
+      .build();
+
+    uploader.uploadAsync(report).get(5, TimeUnit.SECONDS);
+
+    assertEquals(3, attempts.get());
+    assertEquals(1, delivered.size());
+  }
+
+  @Test
+  public void cancelsSinkSendsWhenCancelled() {
+    List<CompletableFuture<Void>> sends = new ArrayList<>();
+    ReportSink pending = encoded -> {
+      CompletableFuture<Void> send = new CompletableFuture<>();
+      sends.add(send);
+      return send;
+    };
+    FanOutUploader uploader = FanOutUploader.newBuilder()
+      .sink(pending)
+      .sink(FanOutUploader.retrying(pending, 2, Duration.ofMillis(1), scheduler))
+      .executor(Runnable::run)
+      .build();
+
+    CompletableFuture<Void> upload = uploader.uploadAsync(report);
+    upload.cancel(false);
+
+    assertEquals(2, sends.size());
+    assertTrue(sends.get(0).isCancelled());
+    assertTrue(sends.get(1).isCancelled());
+  }
+
+  @Test
+  public void failsSendsWhoseRetriesAreRejected() throws Exception {
+    ScheduledExecutorService shutDown = Executors.newSingleThreadScheduledExecutor();
+    shutDown.shutdown();
+    FanOutUploader uploader = FanOutUploader.newBuilder()
+      .sink(FanOutUploader.retrying(failing(), 2, Duration.ofMillis(1), scheduler, task -> {
+        throw new RejectedExecutionException("full");
+      }))
+      .sink(FanOutUploader.retrying(failing(), 2, Duration.ofMillis(1), shutDown, Runnable::run))
+      .executor(Runnable::run)
+      .build();
+
+    try {
+      uploader.uploadAsync(report).get(5, TimeUnit.SECONDS);
+      fail("Expected the upload to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof FanOutUploader.SinksFailedException);
+    }
+  }
+
+  private static ReportSink recording(List<EncodedReport> delivered) {
+    return encoded -> {
+      delivered.add(encoded);
+      return CompletableFuture.completedFuture(null);
+    };
+  }
+
+  private static ReportSink failing() {
+    return encoded -> {
+      CompletableFuture<Void> send = new CompletableFuture<>();
+      send.completeExceptionally(new IOException("sink unavailable"));
+      return send;
+    };
+  }
+}
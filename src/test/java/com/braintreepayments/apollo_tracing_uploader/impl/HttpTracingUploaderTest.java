@@ -0,0 +1,157 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.braintreepayments.apollo_tracing_uploader.TracingConfig;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpTracingUploaderTest {
+  private final AtomicInteger requests = new AtomicInteger();
+  private volatile long responseDelayMs;
+  private HttpServer ingress;
+
+  @Before
+  public void setup() throws IOException {
+    ingress = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    ingress.createContext("/api/ingress/traces", exchange -> {
+      requests.incrementAndGet();
+
+      try {
+        Thread.sleep(responseDelayMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      exchange.sendResponseHeaders(500, -1);
+      exchange.close();
+    });
+    ingress.start();
+  }
+
+  @After
+  public void teardown() {
+    ingress.stop(0);
+  }
+
+  @Test
+  public void readsRetriesForEachUpload() throws Exception {
+    TracingConfig config = new TracingConfig();
+    config.setRetries(0);
+    config.setRetryDelay(Duration.ofMillis(1));
+    HttpTracingUploader uploader = newUploader(config);
+
+    assertFailsWith(HttpTracingUploader.RetriesExceededException.class, uploader.uploadAsync(report()));
+    assertEquals(1, requests.getAndSet(0));
+
+    config.setRetries(2);
+
+    assertFailsWith(HttpTracingUploader.RetriesExceededException.class, uploader.uploadAsync(report()));
+    assertEquals(3, requests.get());
+  }
+
+  @Test
+  public void readsReadTimeoutForEachAttempt() throws Exception {
+    TracingConfig config = new TracingConfig();
+    config.setRetries(0);
+    HttpTracingUploader uploader = newUploader(config);
+
+    assertFailsWith(HttpTracingUploader.RetriesExceededException.class, uploader.uploadAsync(report()));
+
+    responseDelayMs = 1_000;
+    config.setReadTimeout(Duration.ofMillis(50));
+
+    try {
+      uploader.uploadAsync(report()).get(5, TimeUnit.SECONDS);
+      fail("Expected upload to time out");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().getCause() instanceof SocketTimeoutException);
+    }
+  }
+
+  @Test
+  public void keepsDurationConstructor() throws Exception {
+    HttpTracingUploader uploader = new HttpTracingUploader("key",
+                                                           ingressUrl(),
+                                                           TracingExecutors.sharedScheduler(),
+                                                           Runnable::run,
+                                                           Duration.ofMillis(1),
+                                                           Duration.ofSeconds(3),
+                                                           Duration.ofMillis(500),
+                                                           1,
+                                                           1024);
+
+    assertFailsWith(HttpTracingUploader.RetriesExceededException.class, uploader.uploadAsync(report()));
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  public void failsUploadWhenExecutorRejectsIt() throws Exception {
+    HttpTracingUploader uploader = HttpTracingUploader.newBuilder()
+      .apiKey("key")
+      .uploadExecutor(task -> {
+        throw new RejectedExecutionException("shut down");
+      })
+      .build();
+
+    assertFailsWith(RejectedExecutionException.class, uploader.uploadAsync(report()));
+    assertEquals(0, uploader.getPendingBytes());
+  }
+
+  @Test
+  public void failsUploadOnUnexpectedException() throws Exception {
+    HttpTracingUploader uploader = HttpTracingUploader.newBuilder()
+      .apiKey("key")
+      .url("file:///dev/null")
+      .uploadExecutor(Runnable::run)
+      .build();
+
+    assertFailsWith(ClassCastException.class, uploader.uploadAsync(report()));
+    assertEquals(0, uploader.getPendingBytes());
+  }
+
+  private HttpTracingUploader newUploader(TracingConfig config) {
+    return HttpTracingUploader.newBuilder()
+      .apiKey("key")
+      .url(ingressUrl())
+      .config(config)
+      .build();
+  }
+
+  private String ingressUrl() {
+    return "http://localhost:" + ingress.getAddress().getPort() + "/api/ingress/traces";
+  }
+
+  static void assertFailsWith(Class<? extends Throwable> cause, CompletableFuture<Void> upload) throws Exception {
+    try {
+      upload.get(5, TimeUnit.SECONDS);
+      fail("Expected upload to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().toString(), cause.isInstance(e.getCause()));
+    }
+  }
+
+  static Reports.FullTracesReport report() {
+    return Reports.FullTracesReport.newBuilder()
+      .setHeader(Reports.ReportHeader.newBuilder().setService("service"))
+      .putTracesPerQuery("# -\nquery {a}", Reports.Traces.newBuilder().addTrace(Reports.Trace.getDefaultInstance()).build())
+      .build();
+  }
+}
@@ -0,0 +1,98 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapTraceBufferTest {
+  @Test
+  public void returnsTracesInOrderAcrossSegments() {
+    Reports.Trace first = trace(0);
+    int recordBytes = Integer.BYTES + first.getSerializedSize();
+    OffHeapTraceBuffer buffer = new OffHeapTraceBuffer(3, recordBytes * 2);
+
+    for (int i = 0; i < 6; i++) {
+      assertTrue(buffer.offer(trace(i)));
+    }
+
+    assertFalse(buffer.offer(trace(6)));
+    assertEquals(1, buffer.getDroppedTraceCount());
+    assertEquals(6, buffer.size());
+    assertEquals(1.0, buffer.getPressure(), 0);
+    assertEquals(trace(0), buffer.peek());
+    assertEquals(6, toList(buffer.iterator()).size());
+
+    List<Reports.Trace> drained = new ArrayList<>();
+    buffer.drainTo(drained, 3);
+
+    assertEquals(trace(0), drained.get(0));
+    assertEquals(trace(2), drained.get(2));
+    assertTrue(buffer.offer(trace(6)));
+    assertTrue(buffer.offer(trace(7)));
+
+    buffer.drainTo(drained);
+
+    assertEquals(8, drained.size());
+
+    for (int i = 0; i < 8; i++) {
+      assertEquals(trace(i), drained.get(i));
+    }
+
+    assertNull(buffer.poll());
+    assertEquals(0, buffer.getUsedBytes());
+    assertEquals(0, buffer.getPressure(), 0);
+  }
+
+  @Test
+  public void reusesSegmentsOnceDrained() {
+    OffHeapTraceBuffer buffer = new OffHeapTraceBuffer(2, 256);
+
+    for (int i = 0; i < 1_000; i++) {
+      assertTrue(buffer.offer(trace(i)));
+      assertTrue(buffer.offer(trace(i + 1)));
+      assertEquals(trace(i), buffer.poll());
+      assertEquals(trace(i + 1), buffer.poll());
+    }
+
+    assertEquals(0, buffer.getDroppedTraceCount());
+  }
+
+  @Test
+  public void rejectsTracesLargerThanASegment() {
+    OffHeapTraceBuffer buffer = new OffHeapTraceBuffer(2, 16);
+
+    assertFalse(buffer.offer(trace(0)));
+    assertEquals(0, buffer.size());
+    assertEquals(1, buffer.getDroppedTraceCount());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void onlyRemovesTracesInOrder() {
+    OffHeapTraceBuffer buffer = new OffHeapTraceBuffer(2, 256);
+    buffer.offer(trace(0));
+
+    buffer.remove(trace(0));
+  }
+
+  private static List<Reports.Trace> toList(Iterator<Reports.Trace> iterator) {
+    List<Reports.Trace> traces = new ArrayList<>();
+    iterator.forEachRemaining(traces::add);
+    return traces;
+  }
+
+  private static Reports.Trace trace(int index) {
+    return Reports.Trace.newBuilder()
+      .setSignature(String.format("query {q%04d}", index))
+      .setDurationNs(1_000 + index)
+      .build();
+  }
+}
@@ -0,0 +1,138 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OperationLatencyTrackerTest {
+  private AtomicLong clock;
+  private OperationLatencyTracker tracker;
+
+  @Before
+  public void setup() {
+    this.clock = new AtomicLong(1_000_000);
+    this.tracker = new OperationLatencyTracker(Duration.ofSeconds(10), 10, 2, clock::get);
+  }
+
+  @Test
+  public void percentilesAndErrorRate() {
+    for (int i = 1; i <= 100; i++) {
+      tracker.record("op", Duration.ofMillis(i).toNanos(), i % 10 == 0);
+    }
+
+    clock.addAndGet(5_000);
+
+    OperationStats stats = tracker.getStats("op").get();
+
+    assertEquals(100, stats.getRequestCount());
+    assertEquals(0.1, stats.getErrorRate(), 0.0001);
+    assertEquals(20, stats.getThroughputPerSecond(), 0.0001);
+    assertWithinBucket(Duration.ofMillis(50), stats.getP50());
+    assertWithinBucket(Duration.ofMillis(95), stats.getP95());
+    assertWithinBucket(Duration.ofMillis(99), stats.getP99());
+  }
+
+  @Test
+  public void recordsTraces() {
+    Reports.Trace trace = Reports.Trace.newBuilder()
+      .setSignature("query {err}")
+      .setDurationNs(Duration.ofMillis(3).toNanos())
+      .setRoot(Reports.Trace.Node.newBuilder()
+                 .addChild(Reports.Trace.Node.newBuilder()
+                             .setResponseName("err")
+                             .addError(Reports.Trace.Error.newBuilder().setMessage("boom"))))
+      .build();
+
+    tracker.record(trace);
+
+    OperationStats stats = tracker.getStats("# -\nquery {err}").get();
+
+    assertEquals(1, stats.getRequestCount());
+    assertEquals(1, stats.getErrorCount());
+  }
+
+  @Test
+  public void recordsPhaseTimes() {
+    Reports.Trace.Builder trace = Reports.Trace.newBuilder()
+      .setSignature("query {a}")
+      .setDurationNs(Duration.ofMillis(10).toNanos())
+      .setExecution(Reports.Trace.Phase.newBuilder().setStartTime(2_000_000).setEndTime(8_000_000));
+
+    tracker.record(trace.build());
+    tracker.record(trace.setParse(Reports.Trace.Phase.newBuilder().setStartTime(0).setEndTime(1_000_000)).build());
+
+    OperationStats stats = tracker.getStats("# -\nquery {a}").get();
+
+    assertEquals(1, stats.getPhaseCount(OperationStats.Phase.PARSE));
+    assertEquals(0, stats.getPhaseCount(OperationStats.Phase.VALIDATION));
+    assertEquals(2, stats.getPhaseCount(OperationStats.Phase.EXECUTION));
+    assertEquals(Duration.ofMillis(1), stats.getMeanPhaseTime(OperationStats.Phase.PARSE));
+    assertEquals(Duration.ofMillis(6), stats.getMeanPhaseTime(OperationStats.Phase.EXECUTION));
+  }
+
+  @Test
+  public void recordsResourceUsage() {
+    Reports.Trace.Builder trace = Reports.Trace.newBuilder().setSignature("query {a}").setDurationNs(1_000_000);
+
+    tracker.record(trace.build());
+    tracker.record(trace.setResourceUsage(Reports.Trace.ResourceUsage.newBuilder()
+                                            .setCpuTimeNs(3_000_000)
+                                            .setAllocatedBytes(1024)).build());
+    tracker.record(trace.setResourceUsage(Reports.Trace.ResourceUsage.newBuilder()
+                                            .setCpuTimeNs(1_000_000)
+                                            .setAllocatedBytes(2048)).build());
+
+    OperationStats stats = tracker.getStats("# -\nquery {a}").get();
+
+    assertEquals(3, stats.getRequestCount());
+    assertEquals(2, stats.getResourceUsageCount());
+    assertEquals(Duration.ofMillis(2), stats.getMeanCpuTime());
+    assertEquals(1536, stats.getMeanAllocatedBytes());
+  }
+
+  @Test
+  public void slidesWindow() {
+    tracker.record("op", 1_000_000, false);
+    clock.addAndGet(6_000);
+    tracker.record("op", 1_000_000, false);
+
+    assertEquals(2, tracker.getStats("op").get().getRequestCount());
+
+    clock.addAndGet(5_000);
+
+    assertEquals(1, tracker.getStats("op").get().getRequestCount());
+
+    clock.addAndGet(10_000);
+
+    assertFalse(tracker.getStats("op").isPresent());
+  }
+
+  @Test
+  public void boundsOperations() {
+    tracker.record("a", 1_000_000, false);
+    tracker.record("b", 1_000_000, false);
+    tracker.record("c", 1_000_000, false);
+
+    assertEquals(2, tracker.getStats().size());
+    assertEquals(1, tracker.getUntrackedCount());
+
+    clock.addAndGet(20_000);
+    tracker.record("c", 1_000_000, false);
+
+    assertEquals(1, tracker.getStats().size());
+    assertTrue(tracker.getStats("c").isPresent());
+  }
+
+  private void assertWithinBucket(Duration expected, Duration actual) {
+    assertTrue(actual + " should be close to " + expected,
+               actual.compareTo(expected) >= 0 && actual.toNanos() <= expected.toNanos() * 1.1);
+  }
+}
@@ -0,0 +1,114 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityLaneTraceQueueTest {
+  private final PriorityLaneTraceQueue queue = new PriorityLaneTraceQueue(1, 1, 2, Duration.ofMillis(100));
+
+  @Test
+  public void classifiesTraces() {
+    assertEquals(PriorityLaneTraceQueue.Lane.ERROR, queue.laneFor(trace("error", 1, true)));
+    assertEquals(PriorityLaneTraceQueue.Lane.SLOW, queue.laneFor(trace("slow", 100_000_000, false)));
+    assertEquals(PriorityLaneTraceQueue.Lane.NORMAL, queue.laneFor(trace("normal", 1, false)));
+  }
+
+  @Test
+  public void evictsNormalTracesBeforeErrorsAndSlowTraces() {
+    assertTrue(queue.offer(trace("normal 1", 1, false)));
+    assertTrue(queue.offer(trace("normal 2", 1, false)));
+    assertFalse(queue.offer(trace("normal 3", 1, false)));
+    assertTrue(queue.offer(trace("error 1", 1, true)));
+    assertTrue(queue.offer(trace("error 2", 1, true)));
+    assertTrue(queue.offer(trace("slow 1", 200_000_000, false)));
+    assertTrue(queue.offer(trace("error 3", 1, true)));
+    assertFalse(queue.offer(trace("slow 2", 200_000_000, false)));
+
+    assertEquals(4, queue.size());
+    assertEquals(3, queue.getDroppedTraceCount(PriorityLaneTraceQueue.Lane.NORMAL));
+    assertEquals(1, queue.getDroppedTraceCount(PriorityLaneTraceQueue.Lane.SLOW));
+    assertEquals(0, queue.getDroppedTraceCount(PriorityLaneTraceQueue.Lane.ERROR));
+    assertEquals(1, queue.getPressure(), 0);
+  }
+
+  @Test
+  public void lanesTakeSlotsFromLowerLanesAndGiveThemBack() {
+    assertTrue(queue.offer(trace("error 1", 1, true)));
+    assertTrue(queue.offer(trace("error 2", 1, true)));
+    assertTrue(queue.offer(trace("error 3", 1, true)));
+    assertFalse(queue.offer(trace("normal 1", 1, false)));
+    assertTrue(queue.offer(trace("slow 1", 200_000_000, false)));
+
+    assertEquals(3, queue.size(PriorityLaneTraceQueue.Lane.ERROR));
+    assertEquals(4, queue.size());
+
+    queue.poll();
+    queue.poll();
+
+    assertTrue(queue.offer(trace("normal 2", 1, false)));
+    assertTrue(queue.offer(trace("normal 3", 1, false)));
+    assertFalse(queue.offer(trace("normal 4", 1, false)));
+    assertTrue(queue.offer(trace("slow 2", 200_000_000, false)));
+
+    assertEquals(4, queue.size());
+    assertEquals(1, queue.size(PriorityLaneTraceQueue.Lane.NORMAL));
+    assertEquals("normal 3", queue.stream().filter(trace -> trace.getSignature().startsWith("normal"))
+      .findFirst().get().getSignature());
+    assertEquals(3, queue.getDroppedTraceCount(PriorityLaneTraceQueue.Lane.NORMAL));
+  }
+
+  @Test
+  public void takesHigherPriorityLanesFirst() {
+    queue.offer(trace("normal", 1, false));
+    queue.offer(trace("slow", 200_000_000, false));
+    queue.offer(trace("error", 1, true));
+
+    List<Reports.Trace> drained = new ArrayList<>();
+    queue.drainTo(drained);
+
+    assertEquals("error", drained.get(0).getSignature());
+    assertEquals("slow", drained.get(1).getSignature());
+    assertEquals("normal", drained.get(2).getSignature());
+    assertEquals(4, queue.remainingCapacity());
+  }
+
+  @Test
+  public void removedTracesGiveBackTheirSlots() {
+    Reports.Trace error = trace("error 1", 1, true);
+
+    assertTrue(queue.offer(error));
+    assertTrue(queue.offer(trace("error 2", 1, true)));
+    assertTrue(queue.remove(error));
+    assertFalse(queue.remove(error));
+
+    assertTrue(queue.offer(trace("normal 1", 1, false)));
+    assertTrue(queue.offer(trace("normal 2", 1, false)));
+    assertEquals(3, queue.size());
+
+    assertTrue(queue.removeIf(trace -> trace.getSignature().startsWith("normal")));
+    assertTrue(queue.retainAll(Collections.emptyList()));
+    assertEquals(0, queue.size());
+    assertEquals(4, queue.remainingCapacity());
+    assertEquals(0, queue.getDroppedTraceCount(PriorityLaneTraceQueue.Lane.NORMAL));
+  }
+
+  private static Reports.Trace trace(String signature, long durationNs, boolean hasErrors) {
+    Reports.Trace.Node.Builder root = Reports.Trace.Node.newBuilder();
+
+    if (hasErrors) {
+      root.addError(Reports.Trace.Error.newBuilder().setMessage("failed"));
+    }
+
+    return Reports.Trace.newBuilder().setSignature(signature).setDurationNs(durationNs).setRoot(root).build();
+  }
+}
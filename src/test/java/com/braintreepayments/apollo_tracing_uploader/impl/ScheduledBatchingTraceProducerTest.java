@@ -0,0 +1,267 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.braintreepayments.apollo_tracing_uploader.TracingConfig;
+import com.braintreepayments.apollo_tracing_uploader.Uploader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+public class ScheduledBatchingTraceProducerTest {
+  private final CountDownLatch workersPaused = new CountDownLatch(1);
+  private ScheduledExecutorService executor;
+
+  @Before
+  public void pauseWorkers() {
+    this.executor = Executors.newSingleThreadScheduledExecutor();
+    executor.submit(() -> {
+      workersPaused.await();
+      return null;
+    });
+  }
+
+  @After
+  public void resumeWorkers() {
+    workersPaused.countDown();
+    executor.shutdown();
+  }
+
+  @Test
+  public void flushUploadsQueuedTraces() {
+    List<Reports.FullTracesReport> uploadedReports = new ArrayList<>();
+    ScheduledBatchingTraceProducer producer = newProducer(uploadedReports::add);
+
+    producer.submit(trace("query {a}"));
+    producer.submit(trace("query {b}"));
+
+    FlushResult result = producer.flush(Duration.ofSeconds(5)).join();
+
+    assertEquals(2, result.getUploadedTraceCount());
+    assertEquals(0, result.getDroppedTraceCount());
+    assertFalse(result.isDeadlineExceeded());
+    assertEquals(1, uploadedReports.size());
+    assertEquals(2, uploadedReports.get(0).getTracesPerQueryCount());
+  }
+
+  @Test
+  public void flushGivesUpAtDeadline() {
+    List<CompletableFuture<Void>> uploads = new ArrayList<>();
+    ScheduledBatchingTraceProducer producer = newProducer(new Uploader() {
+      @Override
+      public void upload(Reports.FullTracesReport report) {
+        uploadAsync(report);
+      }
+
+      @Override
+      public CompletableFuture<Void> uploadAsync(Reports.FullTracesReport report) {
+        CompletableFuture<Void> upload = new CompletableFuture<>();
+        uploads.add(upload);
+        return upload;
+      }
+    });
+
+    producer.submit(trace("query {a}"));
+
+    FlushResult result = producer.flush(Duration.ofMillis(100)).join();
+
+    assertEquals(0, result.getUploadedTraceCount());
+    assertEquals(1, result.getDroppedTraceCount());
+    assertTrue(result.isDeadlineExceeded());
+    assertTrue(uploads.get(0).isCancelled());
+  }
+
+  @Test
+  public void assemblesDeferredTracesOffTheCallingThread() {
+    List<Reports.FullTracesReport> uploadedReports = new ArrayList<>();
+    List<Thread> assemblingThreads = new CopyOnWriteArrayList<>();
+    ScheduledBatchingTraceProducer producer = newProducer(uploadedReports::add);
+
+    producer.submitDeferred(() -> {
+      assemblingThreads.add(Thread.currentThread());
+      return trace("query {a}");
+    });
+
+    FlushResult result = producer.flush(Duration.ofSeconds(5)).join();
+
+    assertEquals(1, result.getUploadedTraceCount());
+    assertEquals(1, assemblingThreads.size());
+    assertNotEquals(Thread.currentThread(), assemblingThreads.get(0));
+    assertEquals(1, uploadedReports.get(0).getTracesPerQueryCount());
+  }
+
+  @Test
+  public void flushWaitsForTracesBeingAssembled() throws Exception {
+    List<Reports.FullTracesReport> uploadedReports = new CopyOnWriteArrayList<>();
+    CountDownLatch assembling = new CountDownLatch(1);
+    CountDownLatch assemble = new CountDownLatch(1);
+    ScheduledBatchingTraceProducer producer = newProducer(uploadedReports::add);
+
+    producer.submitDeferred(() -> {
+      assembling.countDown();
+      await(assemble);
+      return trace("query {a}");
+    });
+
+    assertTrue(assembling.await(5, TimeUnit.SECONDS));
+
+    CompletableFuture<FlushResult> flushed = producer.flush(Duration.ofSeconds(5));
+
+    assertFalse(flushed.isDone());
+
+    assemble.countDown();
+
+    assertEquals(1, flushed.get(5, TimeUnit.SECONDS).getUploadedTraceCount());
+    assertEquals(1, uploadedReports.size());
+  }
+
+  @Test
+  public void deferredTracesCountTowardsTheByteBudget() {
+    List<Reports.FullTracesReport> uploadedReports = new ArrayList<>();
+    ByteBudgetTraceQueue queue = new ByteBudgetTraceQueue(trace("query {a}").getSerializedSize());
+    ScheduledBatchingTraceProducer producer = ScheduledBatchingTraceProducer.newBuilder()
+      .batchingWindow(Duration.ofHours(1))
+      .customizeHeader(header -> header.setService("service"))
+      .uploader(uploadedReports::add)
+      .executor(executor)
+      .queue(queue)
+      .build();
+
+    producer.submitDeferred(() -> trace("query {a}"));
+    producer.submitDeferred(() -> trace("query {b}"));
+    producer.submitDeferred(() -> trace("query {c}"));
+
+    FlushResult result = producer.flush(Duration.ofSeconds(5)).join();
+
+    assertEquals(1, result.getUploadedTraceCount());
+    assertEquals(2, queue.getDroppedTraceCount());
+    assertEquals(1, uploadedReports.get(0).getTracesPerQueryCount());
+  }
+
+  @Test
+  public void holdsDeferredTracesOffHeapUntilTheWindowCloses() throws Exception {
+    List<Reports.FullTracesReport> uploadedReports = new ArrayList<>();
+    OffHeapTraceBuffer buffer = new OffHeapTraceBuffer(2, 1024);
+    ScheduledBatchingTraceProducer producer = ScheduledBatchingTraceProducer.newBuilder()
+      .batchingWindow(Duration.ofHours(1))
+      .customizeHeader(header -> header.setService("service"))
+      .uploader(uploadedReports::add)
+      .executor(executor)
+      .queue(buffer)
+      .build();
+
+    producer.submitDeferred(() -> trace("query {a}"));
+    producer.submitDeferred(() -> trace("query {b}"));
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (buffer.size() < 2 && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+
+    assertEquals(2, buffer.size());
+    assertTrue(buffer.getUsedBytes() > 0);
+    assertTrue(uploadedReports.isEmpty());
+
+    FlushResult result = producer.flush(Duration.ofSeconds(5)).join();
+
+    assertEquals(2, result.getUploadedTraceCount());
+    assertEquals(0, buffer.getUsedBytes());
+    assertEquals(2, uploadedReports.get(0).getTracesPerQueryCount());
+  }
+
+  @Test
+  public void startsWorkersOnFirstSubmit() {
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    ScheduledBatchingTraceProducer producer = ScheduledBatchingTraceProducer.newBuilder()
+      .customizeHeader(header -> header.setService("service"))
+      .uploader(report -> {
+      })
+      .executor(scheduler)
+      .threadPoolSize(2)
+      .build();
+
+    verifyNoInteractions(scheduler);
+
+    producer.submit(trace("query {a}"));
+    producer.submit(trace("query {b}"));
+
+    verify(scheduler, times(2)).schedule(any(Runnable.class), anyLong(), any());
+  }
+
+  @Test
+  public void appliesConfigChangesAtNextWindow() {
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    TracingConfig config = new TracingConfig();
+    List<Reports.FullTracesReport> uploadedReports = new ArrayList<>();
+    ScheduledBatchingTraceProducer producer = ScheduledBatchingTraceProducer.newBuilder()
+      .customizeHeader(header -> header.setService("service"))
+      .uploader(uploadedReports::add)
+      .executor(scheduler)
+      .config(config)
+      .build();
+
+    config.setMaxQueuedTraces(1);
+    producer.submit(trace("query {a}"));
+    producer.submit(trace("query {b}"));
+
+    assertEquals(1, producer.getPressure(), 0);
+
+    ArgumentCaptor<Runnable> worker = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler).schedule(worker.capture(), eq(10_000L), eq(TimeUnit.MILLISECONDS));
+
+    config.setBatchingWindow(Duration.ofMillis(20));
+    config.setWorkerCount(2);
+    worker.getValue().run();
+
+    assertEquals(1, uploadedReports.size());
+    assertEquals(1, uploadedReports.get(0).getTracesPerQueryCount());
+    verify(scheduler, times(2)).schedule(any(Runnable.class), eq(20L), eq(TimeUnit.MILLISECONDS));
+  }
+
+  private ScheduledBatchingTraceProducer newProducer(Uploader uploader) {
+    return ScheduledBatchingTraceProducer.newBuilder()
+      .batchingWindow(Duration.ofHours(1))
+      .customizeHeader(header -> header.setService("service"))
+      .uploader(uploader)
+      .executor(executor)
+      .queue(new ArrayBlockingQueue<>(16))
+      .build();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Reports.Trace trace(String signature) {
+    return Reports.Trace.newBuilder().setSignature(signature).build();
+  }
+}
@@ -0,0 +1,92 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SlowTraceRecorderTest {
+  private final AtomicLong clock = new AtomicLong(1_000_000);
+  private final List<Reports.Trace> submitted = new ArrayList<>();
+  private SlowTraceRecorder recorder;
+
+  @Before
+  public void setup() {
+    this.recorder = new SlowTraceRecorder(submitted::add, 3, Duration.ofSeconds(10), 5, clock::get);
+  }
+
+  @Test
+  public void keepsTheSlowestTraces() {
+    for (long durationNs : new long[]{5, 1, 9, 3, 7, 2}) {
+      recorder.submit(trace(durationNs));
+    }
+
+    assertEquals(6, submitted.size());
+    assertEquals(asList(9, 7, 5), durations(recorder.getSlowestTraces()));
+  }
+
+  @Test
+  public void forgetsTracesOutsideTheWindow() {
+    recorder.submit(trace(9));
+    clock.addAndGet(6_000);
+    recorder.submit(trace(1));
+
+    assertEquals(asList(9, 1), durations(recorder.getSlowestTraces()));
+
+    clock.addAndGet(6_000);
+
+    assertEquals(asList(1), durations(recorder.getSlowestTraces()));
+  }
+
+  @Test
+  public void recordsDeferredTracesOnceBuilt() {
+    recorder.submitDeferred(() -> trace(4));
+
+    assertEquals(1, submitted.size());
+    assertEquals(asList(4), durations(recorder.getSlowestTraces()));
+  }
+
+  @Test
+  public void dumpsAsDelimitedProtobufAndJson() throws IOException {
+    recorder.submit(trace(2));
+    recorder.submit(trace(8));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    recorder.writeDelimitedTo(out);
+    ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+
+    assertEquals(8, Reports.Trace.parseDelimitedFrom(in).getDurationNs());
+    assertEquals(2, Reports.Trace.parseDelimitedFrom(in).getDurationNs());
+    assertTrue(recorder.toJson().startsWith("[{\"signature\":\"query {a}\""));
+  }
+
+  private static Reports.Trace trace(long durationNs) {
+    return Reports.Trace.newBuilder().setSignature("query {a}").setDurationNs(durationNs).build();
+  }
+
+  private static List<Long> durations(List<Reports.Trace> traces) {
+    return traces.stream().map(Reports.Trace::getDurationNs).collect(Collectors.toList());
+  }
+
+  private static List<Long> asList(long... durations) {
+    List<Long> list = new ArrayList<>();
+
+    for (long duration : durations) {
+      list.add(duration);
+    }
+
+    return list;
+  }
+}
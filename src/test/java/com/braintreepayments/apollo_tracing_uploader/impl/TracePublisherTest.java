@@ -0,0 +1,123 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TracePublisherTest {
+  private final TracePublisher publisher = new TracePublisher(4, Runnable::run);
+
+  @Test
+  public void deliversOnlyRequestedTraces() {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    publisher.subscribe(subscriber);
+    subscriber.subscription.request(2);
+
+    for (int i = 0; i < 3; i++) {
+      publisher.submit(trace(i));
+    }
+
+    assertEquals(2, subscriber.traces.size());
+
+    subscriber.subscription.request(5);
+
+    assertEquals(3, subscriber.traces.size());
+    assertEquals(2, subscriber.traces.get(2).getDurationNs());
+  }
+
+  @Test
+  public void sharesTracesBetweenSubscribers() {
+    RecordingSubscriber first = new RecordingSubscriber();
+    RecordingSubscriber second = new RecordingSubscriber();
+    publisher.subscribe(first);
+    publisher.subscribe(second);
+    first.subscription.request(Long.MAX_VALUE);
+    second.subscription.request(Long.MAX_VALUE);
+
+    publisher.submit(trace(1));
+
+    assertSame(first.traces.get(0), second.traces.get(0));
+  }
+
+  @Test
+  public void slowSubscribersSkipTheOldestTraces() {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    publisher.subscribe(subscriber);
+
+    for (int i = 0; i < 10; i++) {
+      publisher.submit(trace(i));
+    }
+
+    subscriber.subscription.request(Long.MAX_VALUE);
+
+    assertEquals(4, subscriber.traces.size());
+    assertEquals(6, subscriber.traces.get(0).getDurationNs());
+    assertEquals(6, publisher.getDroppedTraceCount());
+  }
+
+  @Test
+  public void completesOnceOwedTracesAreSent() {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    publisher.subscribe(subscriber);
+    publisher.submit(trace(1));
+    publisher.close();
+
+    assertEquals(0, subscriber.completions);
+
+    subscriber.subscription.request(1);
+
+    assertEquals(1, subscriber.traces.size());
+    assertEquals(1, subscriber.completions);
+    assertEquals(0, publisher.getSubscriberCount());
+  }
+
+  @Test
+  public void rejectsNonPositiveRequests() {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    publisher.subscribe(subscriber);
+    subscriber.subscription.request(0);
+
+    assertTrue(subscriber.error instanceof IllegalArgumentException);
+    assertEquals(0, publisher.getSubscriberCount());
+  }
+
+  private static Reports.Trace trace(long durationNs) {
+    return Reports.Trace.newBuilder().setSignature("query {a}").setDurationNs(durationNs).build();
+  }
+
+  private static class RecordingSubscriber implements Subscriber<Reports.Trace> {
+    private final List<Reports.Trace> traces = new ArrayList<>();
+    private Subscription subscription;
+    private Throwable error;
+    private int completions;
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(Reports.Trace trace) {
+      traces.add(trace);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      this.error = error;
+    }
+
+    @Override
+    public void onComplete() {
+      completions++;
+    }
+  }
+}
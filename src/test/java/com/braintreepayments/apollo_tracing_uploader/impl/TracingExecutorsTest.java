@@ -0,0 +1,89 @@
+package com.braintreepayments.apollo_tracing_uploader.impl;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.braintreepayments.apollo_tracing_uploader.Uploader;
+
+import org.junit.Test;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TracingExecutorsTest {
+  @Test
+  public void sharedExecutorsUseDaemonThreads() throws Exception {
+    Thread scheduled = TracingExecutors.sharedScheduler().schedule(Thread::currentThread, 0, TimeUnit.MILLISECONDS)
+      .get(5, TimeUnit.SECONDS);
+    Thread worker = TracingExecutors.workerExecutor().submit(Thread::currentThread).get(5, TimeUnit.SECONDS);
+
+    assertTrue(scheduled.isDaemon());
+    assertTrue(scheduled.getName().startsWith("apollo-tracing-scheduler"));
+    assertTrue(worker.isDaemon());
+    assertTrue(worker.getName().startsWith("apollo-tracing-worker"));
+  }
+
+  @Test
+  public void workerExecutorIsBounded() {
+    ThreadPoolExecutor workers = (ThreadPoolExecutor) TracingExecutors.workerExecutor();
+
+    assertEquals(10, workers.getMaximumPoolSize());
+    assertTrue(workers.allowsCoreThreadTimeOut());
+  }
+
+  @Test
+  public void defaultProducerUploadsOffTheScheduler() throws Exception {
+    CompletableFuture<Thread> uploadThread = new CompletableFuture<>();
+    ScheduledBatchingTraceProducer producer = newProducer(report -> uploadThread.complete(Thread.currentThread()));
+
+    producer.submit(Reports.Trace.newBuilder().setSignature("query {a}").build());
+
+    assertTrue(uploadThread.get(5, TimeUnit.SECONDS).getName().startsWith("apollo-tracing-worker"));
+    producer.shutdown();
+  }
+
+  @Test
+  public void blockedUploaderDoesNotStallOtherProducers() throws Exception {
+    CountDownLatch unblock = new CountDownLatch(1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    CompletableFuture<Void> uploaded = new CompletableFuture<>();
+    ScheduledBatchingTraceProducer slow = newProducer(report -> {
+      blocked.countDown();
+      await(unblock);
+    });
+    ScheduledBatchingTraceProducer fast = newProducer(report -> uploaded.complete(null));
+
+    try {
+      slow.submit(Reports.Trace.newBuilder().setSignature("query {a}").build());
+      assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+      fast.submit(Reports.Trace.newBuilder().setSignature("query {b}").build());
+      uploaded.get(5, TimeUnit.SECONDS);
+    } finally {
+      unblock.countDown();
+      slow.shutdown();
+      fast.shutdown();
+    }
+  }
+
+  private static ScheduledBatchingTraceProducer newProducer(Uploader uploader) {
+    return ScheduledBatchingTraceProducer.newBuilder()
+      .customizeHeader(header -> header.setService("service"))
+      .uploader(uploader)
+      .batchingWindow(Duration.ofMillis(20))
+      .build();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.braintreepayments.apollo_tracing_uploader.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.braintreepayments.apollo_tracing_uploader.impl.DurationHistogram;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyRegressionComparatorTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Random random = new Random(42);
+
+  @Test
+  public void ranksSignificantRegressionsFromReportFiles() throws IOException {
+    Path baseline = writeReports("baseline-1.pb", 1.0, 1.0, 300);
+    Path baselineMore = writeReports("baseline-2.pb", 1.0, 1.0, 300);
+    Path candidate = writeReports("candidate.pb", 1.0, 3.0, 600);
+
+    LatencyRegressionComparator comparator = LatencyRegressionComparator.newBuilder().threads(3).build();
+    LatencyRegressionComparator.Distributions before = comparator.load(Arrays.asList(baseline, baselineMore));
+    LatencyRegressionComparator.Distributions after = comparator.load(Collections.singletonList(candidate));
+
+    assertEquals(600, before.getTraceCount());
+    assertEquals(600, before.getFields().get("Query.user").getCount());
+    assertEquals(600, before.getFields().get("User.name").getCount());
+
+    List<LatencyRegressionComparator.Regression> regressions = comparator.compare(before, after);
+
+    assertEquals(2, regressions.size());
+    assertEquals(LatencyRegressionComparator.Kind.FIELD, regressions.get(0).getKind());
+    assertEquals("User.name", regressions.get(0).getKey());
+    assertEquals(LatencyRegressionComparator.Kind.OPERATION, regressions.get(1).getKind());
+    assertEquals("# User\nquery User { user { name } }", regressions.get(1).getKey());
+    assertTrue(regressions.get(0).getEffect() > 0.95);
+    assertTrue(regressions.get(0).getPValue() < 1e-6);
+  }
+
+  @Test
+  public void readsCorpusFiles() throws IOException {
+    Path baseline = folder.getRoot().toPath().resolve("baseline.corpus");
+    Path candidate = folder.getRoot().toPath().resolve("candidate.corpus");
+
+    try (TraceCorpus.Writer before = TraceCorpus.append(baseline);
+         TraceCorpus.Writer after = TraceCorpus.append(candidate)) {
+      for (int i = 0; i < 100; i++) {
+        before.write(trace(1.0, 1.0).toBuilder().setSignature("query User {user {name}}").build());
+        after.write(trace(1.0, 1.0).toBuilder().setSignature("query User {user {name}}").build());
+      }
+    }
+
+    LatencyRegressionComparator comparator = LatencyRegressionComparator.newBuilder()
+      .format(LatencyRegressionComparator.Format.CORPUS)
+      .build();
+    LatencyRegressionComparator.Distributions before = comparator.load(Collections.singletonList(baseline));
+    LatencyRegressionComparator.Distributions after = comparator.load(Collections.singletonList(candidate));
+
+    assertEquals(100, before.getOperations().get("# -\nquery User {user {name}}").getCount());
+    assertEquals(Collections.emptyList(), comparator.compare(before, after));
+  }
+
+  @Test(expected = IOException.class)
+  public void failsOnTruncatedFiles() throws IOException {
+    Path file = writeReports("truncated.pb", 1.0, 1.0, 10);
+    byte[] bytes = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(bytes, bytes.length - 5));
+
+    LatencyRegressionComparator.newBuilder().threads(2).build().load(Collections.singletonList(file));
+  }
+
+  @Test
+  public void mannWhitneyTreatsIdenticalDistributionsAsUnchanged() {
+    DurationHistogram baseline = new DurationHistogram();
+    DurationHistogram candidate = new DurationHistogram();
+
+    for (int i = 1; i <= 100; i++) {
+      baseline.record(i * 100_000L);
+      candidate.record(i * 100_000L);
+    }
+
+    LatencyRegressionComparator.Regression comparison = LatencyRegressionComparator.mannWhitney(
+      LatencyRegressionComparator.Kind.FIELD, "Query.user", baseline, candidate);
+
+    assertEquals(0.5, comparison.getEffect(), 1e-9);
+    assertEquals(0.5, comparison.getPValue(), 1e-6);
+  }
+
+  private Path writeReports(String name, double userMs, double nameMs, int traceCount) throws IOException {
+    Path file = folder.getRoot().toPath().resolve(name);
+
+    try (OutputStream out = Files.newOutputStream(file)) {
+      for (int written = 0; written < traceCount; written += 50) {
+        Reports.Traces.Builder traces = Reports.Traces.newBuilder();
+
+        for (int i = 0; i < 50; i++) {
+          traces.addTrace(trace(userMs, nameMs));
+        }
+
+        Reports.FullTracesReport.newBuilder()
+          .setHeader(Reports.ReportHeader.newBuilder().setService("service"))
+          .putTracesPerQuery("# User\nquery User { user { name } }", traces.build())
+          .build()
+          .writeDelimitedTo(out);
+      }
+    }
+
+    return file;
+  }
+
+  private Reports.Trace trace(double userMs, double nameMs) {
+    long userNs = jitter(userMs);
+    long nameNs = jitter(nameMs);
+
+    return Reports.Trace.newBuilder()
+      .setDurationNs(userNs + nameNs + jitter(5.0))
+      .setRoot(Reports.Trace.Node.newBuilder()
+                 .addChild(Reports.Trace.Node.newBuilder()
+                             .setResponseName("account")
+                             .setOriginalFieldName("user")
+                             .setParentType("Query")
+                             .setStartTime(100_000)
+                             .setEndTime(100_000 + userNs)
+                             .addChild(Reports.Trace.Node.newBuilder()
+                                         .setResponseName("name")
+                                         .setParentType("User")
+                                         .setStartTime(100_000 + userNs)
+                                         .setEndTime(100_000 + userNs + nameNs))))
+      .build();
+  }
+
+  private long jitter(double ms) {
+    return (long) (ms * 1e6 * (0.8 + 0.4 * random.nextDouble()));
+  }
+}
@@ -0,0 +1,95 @@
+package com.braintreepayments.apollo_tracing_uploader.tools;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TraceCorpusTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void sanitizesTracesButKeepsTheirShape() {
+    Reports.Trace trace = trace("secret");
+    Reports.Trace sanitized = TraceCorpus.sanitize(trace);
+
+    assertEquals("", sanitized.getClientAddress());
+    assertEquals("", sanitized.getDetails().getRawQuery());
+    assertEquals("", sanitized.getDetails().getVariablesJsonOrThrow("password"));
+    assertFalse(sanitized.hasHttp());
+
+    Reports.Trace.Error error = sanitized.getRoot().getChild(0).getError(0);
+
+    assertEquals("xxxxxx", error.getMessage());
+    assertEquals(1, error.getLocationCount());
+    assertEquals("query Login($var1:String) {login(password:$var1)}", sanitized.getSignature());
+    assertEquals(trace.getDurationNs(), sanitized.getDurationNs());
+    assertEquals(trace.getRoot().getChild(0).getResponseName(), sanitized.getRoot().getChild(0).getResponseName());
+  }
+
+  @Test
+  public void sanitizesSignatures() {
+    Reports.Trace unnormalized = trace("a").toBuilder().setSignature("query { login(password: \"hunter2\") }").build();
+    Reports.Trace unparsable = trace("a").toBuilder().setSignature("query { login(password: \"hunter2\"").build();
+
+    assertEquals("query {login(password:\"\")}", TraceCorpus.sanitize(unnormalized).getSignature());
+    assertEquals("", TraceCorpus.sanitize(unparsable).getSignature());
+  }
+
+  @Test
+  public void recordsASampleOfTracesToTheCorpus() throws Exception {
+    Path file = temporaryFolder.getRoot().toPath().resolve("corpus.pb");
+    List<Reports.Trace> submitted = new ArrayList<>();
+
+    TraceCorpusRecorder recorder = TraceCorpusRecorder.newBuilder()
+      .delegate(submitted::add)
+      .file(file)
+      .maxTraces(2)
+      .build();
+
+    recorder.submit(trace("a"));
+    recorder.submitDeferred(() -> trace("b"));
+    recorder.submit(trace("c"));
+    recorder.close();
+
+    assertEquals(3, submitted.size());
+    assertEquals("a", submitted.get(0).getRoot().getChild(0).getError(0).getMessage());
+    assertTrue(recorder.isFinished());
+
+    List<Reports.Trace> corpus = TraceCorpus.read(file);
+
+    assertEquals(2, corpus.size());
+    assertEquals("x", corpus.get(0).getRoot().getChild(0).getError(0).getMessage());
+    assertEquals("", corpus.get(1).getDetails().getRawQuery());
+  }
+
+  static Reports.Trace trace(String errorMessage) {
+    return Reports.Trace.newBuilder()
+      .setSignature("query Login($password: String) { login(password: $password) }")
+      .setDurationNs(2_000_000)
+      .setClientAddress("10.0.0.1")
+      .setDetails(Reports.Trace.Details.newBuilder()
+                    .setRawQuery("query Login { login(password: \"hunter2\") }")
+                    .putVariablesJson("password", "\"hunter2\""))
+      .setHttp(Reports.Trace.HTTP.newBuilder().setHost("example.com"))
+      .setRoot(Reports.Trace.Node.newBuilder()
+                 .addChild(Reports.Trace.Node.newBuilder()
+                             .setResponseName("login")
+                             .setType("String")
+                             .setParentType("Query")
+                             .addError(Reports.Trace.Error.newBuilder()
+                                         .setMessage(errorMessage)
+                                         .addLocation(Reports.Trace.Location.newBuilder().setLine(1)))))
+      .build();
+  }
+}
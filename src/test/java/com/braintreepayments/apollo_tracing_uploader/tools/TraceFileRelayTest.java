@@ -0,0 +1,225 @@
+package com.braintreepayments.apollo_tracing_uploader.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.braintreepayments.apollo_tracing_uploader.FullTracesReportBuilder;
+import com.braintreepayments.apollo_tracing_uploader.impl.FileTracingUploader;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TraceFileRelayTest {
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  private Path directory;
+
+  @Before
+  public void setup() {
+    this.directory = temporaryFolder.getRoot().toPath();
+  }
+
+  @Test
+  public void relaysAndMergesReports() throws Exception {
+    FileTracingUploader fileUploader = FileTracingUploader.newBuilder()
+      .directory(directory)
+      .maxFileBytes(1)
+      .build();
+
+    fileUploader.upload(report("query {a}"));
+    fileUploader.upload(report("query {b}"));
+    fileUploader.upload(report("query {a}"));
+    fileUploader.close();
+
+    assertEquals(3, listFiles().size());
+
+    List<Reports.FullTracesReport> uploadedReports = new ArrayList<>();
+    TraceFileRelay relay = new TraceFileRelay(directory, uploadedReports::add, 1024 * 1024, Duration.ofSeconds(1));
+
+    assertEquals(3, relay.relayReadyFiles());
+    assertEquals(1, uploadedReports.size());
+
+    Reports.FullTracesReport merged = uploadedReports.get(0);
+
+    assertEquals("service", merged.getHeader().getService());
+    assertEquals(2, merged.getTracesPerQueryMap().get("# -\nquery {a}").getTraceCount());
+    assertEquals(1, merged.getTracesPerQueryMap().get("# -\nquery {b}").getTraceCount());
+    assertTrue(listFiles().isEmpty());
+  }
+
+  @Test
+  public void keepsFilesWhenUploadFails() throws Exception {
+    FileTracingUploader fileUploader = FileTracingUploader.newBuilder().directory(directory).build();
+
+    fileUploader.upload(report("query {a}"));
+    fileUploader.close();
+
+    TraceFileRelay relay = new TraceFileRelay(directory, report -> {
+      throw new IllegalStateException("unavailable");
+    }, 1024 * 1024, Duration.ofSeconds(1));
+
+    try {
+      relay.relayReadyFiles();
+      fail("Expected a RelayException");
+    } catch (TraceFileRelay.RelayException expected) {
+      assertTrue(expected.getCause() instanceof IllegalStateException);
+    }
+
+    assertEquals(1, listFiles().size());
+  }
+
+  @Test
+  public void setsAsideFilesThatKeepFailing() throws Exception {
+    write("traces-1.pb", report("query {a}"));
+
+    TraceFileRelay relay = new TraceFileRelay(directory, report -> {
+      throw new IllegalStateException("rejected");
+    }, 1024 * 1024, Duration.ofSeconds(1), 2);
+
+    for (int attempt = 0; attempt < 2; attempt++) {
+      try {
+        relay.relayReadyFiles();
+        fail("Expected a RelayException");
+      } catch (TraceFileRelay.RelayException expected) {
+        assertTrue(expected.getCause() instanceof IllegalStateException);
+      }
+    }
+
+    assertEquals(0, relay.relayReadyFiles());
+    assertEquals(Collections.singletonList(directory.resolve("traces-1.pb" + TraceFileRelay.BAD_SUFFIX)), listFiles());
+  }
+
+  @Test
+  public void doesNotResendReportsUploadedBeforeAFailure() throws Exception {
+    write("traces-1.pb", report("query {a}", "a"), report("query {b}", "b"));
+
+    List<String> uploadedServices = new ArrayList<>();
+    AtomicBoolean failing = new AtomicBoolean(true);
+    TraceFileRelay relay = new TraceFileRelay(directory, report -> {
+      uploadedServices.add(report.getHeader().getService());
+
+      if (failing.get() && report.getHeader().getService().equals("b")) {
+        throw new IllegalStateException("unavailable");
+      }
+    }, 1024 * 1024, Duration.ofSeconds(1));
+
+    try {
+      relay.relayReadyFiles();
+      fail("Expected a RelayException");
+    } catch (TraceFileRelay.RelayException expected) {
+      assertEquals(Collections.singletonList(directory.resolve("traces-1.pb")), listFiles());
+    }
+
+    failing.set(false);
+
+    assertEquals(1, relay.relayReadyFiles());
+    assertEquals(Arrays.asList("a", "b", "b"), uploadedServices);
+    assertTrue(listFiles().isEmpty());
+  }
+
+  @Test
+  public void relaysNothingFromCorruptFiles() throws Exception {
+    ByteArrayOutputStream corrupt = new ByteArrayOutputStream();
+    report("query {b}").writeDelimitedTo(corrupt);
+    byte[] truncated = corrupt.toByteArray();
+    corrupt.write(truncated, 0, truncated.length - 3);
+    write("traces-1.pb", report("query {a}"));
+    Files.write(directory.resolve("traces-2.pb"), corrupt.toByteArray());
+
+    List<Reports.FullTracesReport> uploadedReports = new ArrayList<>();
+    TraceFileRelay relay = new TraceFileRelay(directory, uploadedReports::add, 1024 * 1024, Duration.ofSeconds(1));
+
+    assertEquals(1, relay.relayReadyFiles());
+    assertEquals(Collections.singleton("# -\nquery {a}"), uploadedReports.get(0).getTracesPerQueryMap().keySet());
+    assertEquals(Collections.singletonList(directory.resolve("traces-2.pb" + TraceFileRelay.BAD_SUFFIX)), listFiles());
+  }
+
+  @Test
+  public void recoversFilesLeftOpen() throws Exception {
+    ByteArrayOutputStream leftOpen = new ByteArrayOutputStream();
+    report("query {a}").writeDelimitedTo(leftOpen);
+    byte[] partial = leftOpen.toByteArray();
+    leftOpen.write(partial, 0, partial.length - 3);
+    Files.write(directory.resolve("traces-0000000000000-000000" + FileTracingUploader.OPEN_SUFFIX),
+                leftOpen.toByteArray());
+
+    FileTracingUploader fileUploader = FileTracingUploader.newBuilder().directory(directory).build();
+
+    fileUploader.upload(report("query {b}"));
+    fileUploader.close();
+
+    List<Reports.FullTracesReport> uploadedReports = new ArrayList<>();
+    TraceFileRelay relay = new TraceFileRelay(directory, uploadedReports::add, 1024 * 1024, Duration.ofSeconds(1));
+
+    assertEquals(2, relay.relayReadyFiles());
+    assertEquals(1, uploadedReports.get(0).getTracesPerQueryMap().get("# -\nquery {a}").getTraceCount());
+    assertEquals(1, uploadedReports.get(0).getTracesPerQueryMap().get("# -\nquery {b}").getTraceCount());
+    assertTrue(listFiles().isEmpty());
+  }
+
+  @Test
+  public void relaysOnADaemonThread() throws Exception {
+    FileTracingUploader fileUploader = FileTracingUploader.newBuilder().directory(directory).build();
+
+    fileUploader.upload(report("query {a}"));
+    fileUploader.close();
+
+    CompletableFuture<Thread> relayThread = new CompletableFuture<>();
+    TraceFileRelay relay = new TraceFileRelay(directory,
+                                              report -> relayThread.complete(Thread.currentThread()),
+                                              1024 * 1024,
+                                              Duration.ofMillis(500));
+
+    relay.start(Duration.ofMillis(10));
+    Thread thread = relayThread.get(5, TimeUnit.SECONDS);
+    relay.close();
+
+    assertTrue(thread.isDaemon());
+    assertTrue(thread.getName().startsWith("apollo-tracing-relay"));
+  }
+
+  private List<Path> listFiles() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.collect(Collectors.toList());
+    }
+  }
+
+  private void write(String fileName, Reports.FullTracesReport... reports) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    for (Reports.FullTracesReport report : reports) {
+      report.writeDelimitedTo(out);
+    }
+
+    Files.write(directory.resolve(fileName), out.toByteArray());
+  }
+
+  private Reports.FullTracesReport report(String signature) {
+    return report(signature, "service");
+  }
+
+  private Reports.FullTracesReport report(String signature, String service) {
+    Reports.Trace trace = Reports.Trace.newBuilder().setSignature(signature).build();
+    return new FullTracesReportBuilder().build(Collections.singletonList(trace), header -> header.setService(service));
+  }
+}
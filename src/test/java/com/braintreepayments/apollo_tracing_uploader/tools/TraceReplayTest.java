@@ -0,0 +1,80 @@
+package com.braintreepayments.apollo_tracing_uploader.tools;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.braintreepayments.apollo_tracing_uploader.impl.ScheduledBatchingTraceProducer;
+
+import org.junit.Test;
+
+import mdg.engine.proto.Reports;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TraceReplayTest {
+  @Test
+  public void replaysTheCorpusThroughAPipeline() {
+    List<Reports.FullTracesReport> reports = new CopyOnWriteArrayList<>();
+    TraceReplay replay = TraceReplay.newBuilder()
+      .traces(Arrays.asList(TraceCorpusTest.trace("a"), TraceCorpusTest.trace("b")))
+      .traceCount(5)
+      .tracesPerSecond(100)
+      .build();
+
+    ScheduledBatchingTraceProducer producer = ScheduledBatchingTraceProducer.newBuilder()
+      .customizeHeader(header -> header.setService("service"))
+      .uploader(replay.measure(reports::add))
+      .batchingWindow(Duration.ofMinutes(1))
+      .build();
+
+    TraceReplay.Result result = replay.run(producer, () -> producer.flush(Duration.ofSeconds(10)).join());
+    producer.shutdown();
+
+    int uploadedTraces = reports.stream()
+      .flatMap(report -> report.getTracesPerQueryMap().values().stream())
+      .mapToInt(Reports.Traces::getTraceCount)
+      .sum();
+
+    assertEquals(5, uploadedTraces);
+    assertEquals(5, result.getTraceCount());
+    assertEquals(5, result.getUploadedTraceCount());
+    assertEquals(0, result.getDroppedTraceCount());
+    assertEquals(reports.size(), result.getReportCount());
+    assertEquals(reports.get(0).getSerializedSize(), result.getMaxReportBytes());
+    assertTrue(result.getElapsed().toMillis() >= 40);
+    assertTrue(result.getTracesPerSecond() <= 125);
+  }
+
+  @Test
+  public void reportsTracesDroppedByThePipeline() {
+    TraceReplay replay = TraceReplay.newBuilder()
+      .traces(Collections.singletonList(TraceCorpusTest.trace("a")))
+      .traceCount(5)
+      .build();
+
+    ScheduledBatchingTraceProducer producer = ScheduledBatchingTraceProducer.newBuilder()
+      .customizeHeader(header -> header.setService("service"))
+      .uploader(replay.measure(report -> {
+      }))
+      .batchingWindow(Duration.ofMinutes(1))
+      .queue(new ArrayBlockingQueue<>(2))
+      .build();
+
+    TraceReplay.Result result = replay.run(producer, () -> producer.flush(Duration.ofSeconds(10)).join());
+    producer.shutdown();
+
+    assertEquals(5, result.getTraceCount());
+    assertEquals(2, result.getUploadedTraceCount());
+    assertEquals(3, result.getDroppedTraceCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsAnEmptyCorpus() {
+    TraceReplay.newBuilder().traces(Collections.emptyList()).build();
+  }
+}
@@ -7,22 +7,35 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Collectors;
 
+import com.braintreepayments.apollo_tracing_uploader.TracingConfig;
 import com.braintreepayments.apollo_tracing_uploader.TracingUploadInstrumentation;
 import com.braintreepayments.apollo_tracing_uploader.VariablesSanitizer;
+import com.braintreepayments.apollo_tracing_uploader.impl.FlushResult;
+import com.braintreepayments.apollo_tracing_uploader.impl.PriorityLaneTraceQueue;
 import com.braintreepayments.apollo_tracing_uploader.impl.ScheduledBatchingTraceProducer;
 
 import org.junit.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 import graphql.ExecutionInput;
+import graphql.ExecutionResult;
 import graphql.GraphQL;
 import graphql.execution.AbortExecutionException;
 import graphql.kickstart.tools.GraphQLQueryResolver;
 import graphql.kickstart.tools.GraphQLResolver;
 import graphql.kickstart.tools.SchemaParser;
 import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.RuntimeWiring;
+import graphql.schema.idl.SchemaGenerator;
 import mdg.engine.proto.Reports;
 
 import static org.junit.Assert.assertEquals;
@@ -136,6 +149,11 @@ public class EndToEndTest {
     assertEquals("EchoOp", echoTrace.getDetails().getOperationName());
 
     Arrays.asList(echoTrace, inlineEchoTrace).forEach(trace -> {
+      assertTrue(trace.getParse().getEndTime() >= trace.getParse().getStartTime());
+      assertTrue(trace.getValidation().getStartTime() >= trace.getParse().getEndTime());
+      assertTrue(trace.getExecution().getStartTime() >= trace.getValidation().getEndTime());
+      assertTrue(trace.getExecution().getEndTime() <= trace.getDurationNs());
+
       Reports.Trace.Node echoRoot = trace.getRoot();
 
       assertEquals(0, echoRoot.getErrorCount());
@@ -252,6 +270,195 @@ public class EndToEndTest {
     assertEquals(0, uploadedReports.size());
   }
 
+  @Test
+  public void testCustomizersRunOnTheRequestThread() {
+    List<Reports.FullTracesReport> uploadedReports = new CopyOnWriteArrayList<>();
+    List<Thread> customizingThreads = new CopyOnWriteArrayList<>();
+    ScheduledBatchingTraceProducer producer = ScheduledBatchingTraceProducer.newBuilder()
+      .batchingWindow(Duration.ofHours(1))
+      .customizeHeader(header -> header.setService("service"))
+      .uploader(uploadedReports::add)
+      .build();
+
+    GraphQL graphQL = GraphQL.newGraphQL(schema)
+      .instrumentation(TracingUploadInstrumentation.newBuilder()
+                         .producer(producer)
+                         .customizeTraceWithGraphQLContext((trace, context) -> {
+                           customizingThreads.add(Thread.currentThread());
+                           trace.setClientName("client");
+                         })
+                         .build())
+      .build();
+
+    graphQL.execute("{ echo(str: \"hello\") users { id } }");
+    producer.flush(Duration.ofSeconds(5)).join();
+    producer.shutdown();
+
+    Reports.Trace trace = uploadedReports.get(0).getTracesPerQueryMap().values().iterator().next().getTrace(0);
+
+    assertEquals(Collections.singletonList(Thread.currentThread()), customizingThreads);
+    assertEquals("client", trace.getClientName());
+    assertEquals(2, trace.getRoot().getChildCount());
+  }
+
+  @Test
+  public void testSamplingRate() {
+    List<Reports.Trace> traces = new ArrayList<>();
+    TracingConfig config = new TracingConfig();
+
+    GraphQL graphQL = GraphQL.newGraphQL(schema)
+      .instrumentation(TracingUploadInstrumentation.newBuilder()
+                         .producer(traces::add)
+                         .config(config)
+                         .build())
+      .build();
+
+    config.setSamplingRate(0);
+    graphQL.execute("query Unsampled { echo(str: \"hello\") }");
+    config.setSamplingRate(1);
+    graphQL.execute("query Sampled { echo(str: \"hello\") }");
+
+    assertEquals(1, traces.size());
+    assertTrue(traces.get(0).getSignature().contains("Sampled"));
+  }
+
+  @Test
+  public void testPriorityLanesKeepErrorsWhenFull() {
+    List<Reports.FullTracesReport> uploadedReports = new CopyOnWriteArrayList<>();
+
+    ScheduledBatchingTraceProducer producer = ScheduledBatchingTraceProducer.newBuilder()
+      .batchingWindow(Duration.ofHours(1))
+      .customizeHeader(header -> header.setService("service"))
+      .uploader(uploadedReports::add)
+      .queue(new PriorityLaneTraceQueue(0, 0, 2, Duration.ofHours(1)))
+      .build();
+
+    GraphQL graphQL = GraphQL.newGraphQL(schema)
+      .instrumentation(TracingUploadInstrumentation.newBuilder().producer(producer).build())
+      .build();
+
+    for (int i = 0; i < 3; i++) {
+      graphQL.execute("{ echo(str: \"hello\") }");
+    }
+
+    graphQL.execute("{ err }");
+
+    FlushResult result = producer.flush(Duration.ofSeconds(5)).join();
+    producer.shutdown();
+
+    assertEquals(2, result.getUploadedTraceCount());
+    assertTrue(uploadedReports.get(0).getTracesPerQueryMap().containsKey("# -\nquery {err}"));
+  }
+
+  @Test
+  public void testTraceLimits() {
+    List<Reports.FullTracesReport> uploadedReports = new ArrayList<>();
+
+    ScheduledBatchingTraceProducer producer = ScheduledBatchingTraceProducer.newBuilder()
+      .batchingWindow(Duration.ofSeconds(1))
+      .threadPoolSize(1)
+      .customizeHeader(header -> header.setService("service"))
+      .uploader(uploadedReports::add)
+      .build();
+
+    GraphQL listLimitedGraphQL = GraphQL.newGraphQL(schema)
+      .instrumentation(TracingUploadInstrumentation.newBuilder()
+                         .producer(producer)
+                         .maxListItemsPerList(1)
+                         .build())
+      .build();
+
+    GraphQL nodeLimitedGraphQL = GraphQL.newGraphQL(schema)
+      .instrumentation(TracingUploadInstrumentation.newBuilder()
+                         .producer(producer)
+                         .maxNodesPerTrace(1)
+                         .build())
+      .build();
+
+    listLimitedGraphQL.execute("query ListLimited { users { id } }");
+    nodeLimitedGraphQL.execute("query NodeLimited { users { id } }");
+
+    producer.shutdown();
+
+    Map<String, Reports.Traces> tracesPerQuery = uploadedReports.get(0).getTracesPerQueryMap();
+
+    Reports.Trace.Node usersNode = tracesPerQuery.get("# ListLimited\nquery ListLimited {users {id}}")
+      .getTrace(0)
+      .getRoot()
+      .getChild(0);
+
+    assertEquals(1, usersNode.getChildCount());
+    assertEquals(0, usersNode.getChild(0).getIndex());
+    assertEquals(1, usersNode.getElided().getItemCount());
+    assertEquals(1, usersNode.getElided().getNodeCount());
+    assertTrue(usersNode.getElided().getMaxDurationNs() > 0);
+
+    Reports.Trace.Node nodeLimitedRoot = tracesPerQuery.get("# NodeLimited\nquery NodeLimited {users {id}}")
+      .getTrace(0)
+      .getRoot();
+
+    assertEquals(1, nodeLimitedRoot.getChildCount());
+    assertEquals(0, nodeLimitedRoot.getChild(0).getChildCount());
+    assertEquals(0, nodeLimitedRoot.getElided().getItemCount());
+    assertEquals(2, nodeLimitedRoot.getElided().getNodeCount());
+    assertTrue(nodeLimitedRoot.getElided().getTotalDurationNs() >= nodeLimitedRoot.getElided().getMaxDurationNs());
+  }
+
+  @Test
+  public void testResourceUsage() {
+    List<Reports.Trace> traces = new ArrayList<>();
+    TracingConfig config = new TracingConfig();
+
+    GraphQL graphQL = GraphQL.newGraphQL(schema)
+      .instrumentation(TracingUploadInstrumentation.newBuilder()
+                         .producer(traces::add)
+                         .config(config)
+                         .build())
+      .build();
+
+    graphQL.execute("query Uncaptured { users { id } }");
+    config.setCaptureResourceUsage(true);
+    graphQL.execute("query Captured { users { id } }");
+
+    assertFalse(traces.get(0).hasResourceUsage());
+    assertTrue(traces.get(1).hasResourceUsage());
+    assertTrue(traces.get(1).getResourceUsage().getCpuTimeNs() > 0);
+  }
+
+  @Test
+  public void testResourceUsageLeftOutForAsyncFetchers() {
+    List<Reports.Trace> traces = new CopyOnWriteArrayList<>();
+    TracingConfig config = new TracingConfig();
+    config.setCaptureResourceUsage(true);
+
+    RuntimeWiring wiring = RuntimeWiring.newRuntimeWiring()
+      .type("Query", type -> type
+        .dataFetcher("sync", env -> "sync")
+        .dataFetcher("async", env -> CompletableFuture.supplyAsync(() -> {
+          LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+          return "async";
+        })))
+      .build();
+    GraphQLSchema asyncSchema = new SchemaGenerator().makeExecutableSchema(
+      new graphql.schema.idl.SchemaParser().parse("type Query { sync: String async: String }"),
+      wiring);
+
+    GraphQL graphQL = GraphQL.newGraphQL(asyncSchema)
+      .instrumentation(TracingUploadInstrumentation.newBuilder()
+                         .producer(traces::add)
+                         .config(config)
+                         .build())
+      .build();
+
+    Map<String, Object> data = graphQL.execute("{ sync async }").getData();
+    graphQL.execute("{ sync }");
+
+    assertEquals("async", data.get("async"));
+    assertEquals(2, traces.size());
+    assertFalse(traces.get(0).hasResourceUsage());
+    assertTrue(traces.get(1).hasResourceUsage());
+  }
+
   private ExecutionInput getExecutionInput(String operation, String query, Map<String, Object> variables) {
     //noinspection deprecation
     return ExecutionInput.newExecutionInput()
@@ -263,6 +470,60 @@ public class EndToEndTest {
       .build();
   }
 
+  @Test
+  public void testSubscriptionEvents() {
+    List<Reports.Trace> traces = new CopyOnWriteArrayList<>();
+    RuntimeWiring wiring = RuntimeWiring.newRuntimeWiring()
+      .type("Query", type -> type.dataFetcher("unused", env -> true))
+      .type("Subscription", type -> type.dataFetcher("ticks", env -> new RangePublisher(3)))
+      .type("Tick", type -> type.dataFetcher("label", env -> {
+        Thread.sleep(2);
+        return "tick " + env.<Integer>getSource();
+      }))
+      .build();
+    GraphQLSchema subscriptionSchema = new SchemaGenerator().makeExecutableSchema(
+      new graphql.schema.idl.SchemaParser().parse("type Query { unused: Boolean }\n"
+                                                  + "type Subscription { ticks: Tick }\n"
+                                                  + "type Tick { label: String }"),
+      wiring);
+
+    GraphQL graphQL = GraphQL.newGraphQL(subscriptionSchema)
+      .instrumentation(TracingUploadInstrumentation.newBuilder().producer(traces::add).build())
+      .build();
+
+    ExecutionResult result = graphQL.execute("subscription Ticks { ticks { label } }");
+    List<ExecutionResult> events = new ArrayList<>();
+    Publisher<ExecutionResult> publisher = result.getData();
+
+    publisher.subscribe(new CollectingSubscriber<>(events));
+
+    assertEquals(3, events.size());
+    assertEquals(4, traces.size());
+
+    Reports.Trace subscribeTrace = traces.get(0);
+
+    assertEquals(0, subscribeTrace.getSubscriptionEvent());
+    assertEquals("ticks", subscribeTrace.getRoot().getChild(0).getResponseName());
+    assertEquals(0, subscribeTrace.getRoot().getChild(0).getChildCount());
+
+    for (int i = 1; i <= 3; i++) {
+      Reports.Trace eventTrace = traces.get(i);
+      Reports.Trace.Node ticks = eventTrace.getRoot().getChild(0);
+      Reports.Trace.Node label = ticks.getChild(0);
+
+      assertEquals(i, eventTrace.getSubscriptionEvent());
+      assertEquals(subscribeTrace.getSignature(), eventTrace.getSignature());
+      assertEquals("Ticks", eventTrace.getDetails().getOperationName());
+      assertFalse(eventTrace.hasParse());
+      assertEquals("ticks", ticks.getResponseName());
+      assertEquals("Subscription", ticks.getParentType());
+      assertEquals("label", label.getResponseName());
+      assertEquals("Tick", label.getParentType());
+      assertTrue(label.getEndTime() - label.getStartTime() >= TimeUnit.MILLISECONDS.toNanos(2));
+      assertTrue(eventTrace.getDurationNs() >= label.getEndTime());
+    }
+  }
+
   private static class MinimalQueryResolver implements GraphQLQueryResolver {
     public String getEcho(String str) throws InterruptedException {
       Thread.sleep(1);
@@ -294,4 +555,152 @@ public class EndToEndTest {
       }
     }
   }
+
+  @Test
+  public void testOverlappingSubscriptionEvents() throws Exception {
+    int eventCount = 8;
+    List<Reports.Trace> traces = new CopyOnWriteArrayList<>();
+    RuntimeWiring wiring = RuntimeWiring.newRuntimeWiring()
+      .type("Query", type -> type.dataFetcher("unused", env -> true))
+      .type("Subscription", type -> type.dataFetcher("ticks", env -> new ConcurrentPublisher(eventCount)))
+      .type("Tick", type -> type.dataFetcher("items", env -> Collections.nCopies(env.<Integer>getSource(), 0)))
+      .type("Item", type -> type.dataFetcher("label", env -> CompletableFuture.supplyAsync(() -> {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        return "item";
+      })))
+      .build();
+    GraphQLSchema subscriptionSchema = new SchemaGenerator().makeExecutableSchema(
+      new graphql.schema.idl.SchemaParser().parse("type Query { unused: Boolean }\n"
+                                                  + "type Subscription { ticks: Tick }\n"
+                                                  + "type Tick { items: [Item] }\n"
+                                                  + "type Item { label: String }"),
+      wiring);
+
+    GraphQL graphQL = GraphQL.newGraphQL(subscriptionSchema)
+      .instrumentation(TracingUploadInstrumentation.newBuilder().producer(traces::add).build())
+      .build();
+
+    ExecutionResult result = graphQL.execute("subscription Ticks { ticks { items { label } } }");
+    List<ExecutionResult> events = new CopyOnWriteArrayList<>();
+    Publisher<ExecutionResult> publisher = result.getData();
+
+    publisher.subscribe(new CollectingSubscriber<>(events));
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (traces.size() < eventCount + 1 && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+
+    assertEquals(eventCount + 1, traces.size());
+    assertEquals(0, traces.get(0).getRoot().getChild(0).getChildCount());
+
+    List<Integer> itemCounts = traces.subList(1, traces.size()).stream()
+      .map(eventTrace -> eventTrace.getRoot().getChild(0).getChild(0))
+      .peek(items -> assertEquals("items", items.getResponseName()))
+      .peek(items -> items.getChildList().forEach(item -> assertEquals(1, item.getChildCount())))
+      .map(Reports.Trace.Node::getChildCount)
+      .sorted()
+      .collect(Collectors.toList());
+
+    assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8), itemCounts);
+  }
+
+  private static class RangePublisher implements Publisher<Object> {
+    private final int count;
+
+    RangePublisher(int count) {
+      this.count = count;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Object> subscriber) {
+      subscriber.onSubscribe(new Subscription() {
+        private int next = 1;
+
+        @Override
+        public void request(long n) {
+          for (long i = 0; i < n && next <= count; i++) {
+            subscriber.onNext(next++);
+          }
+
+          if (next > count) {
+            next = Integer.MAX_VALUE;
+            subscriber.onComplete();
+          }
+        }
+
+        @Override
+        public void cancel() {
+          next = Integer.MAX_VALUE;
+        }
+      });
+    }
+  }
+
+  /**
+   * Emits 1 to {@code count} from as many threads at once, so events overlap.
+   */
+  private static class ConcurrentPublisher implements Publisher<Object> {
+    private final int count;
+
+    ConcurrentPublisher(int count) {
+      this.count = count;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Object> subscriber) {
+      CountDownLatch start = new CountDownLatch(1);
+
+      for (int i = 1; i <= count; i++) {
+        int next = i;
+        new Thread(() -> {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+
+          subscriber.onNext(next);
+        }).start();
+      }
+
+      subscriber.onSubscribe(new Subscription() {
+        @Override
+        public void request(long n) {
+          start.countDown();
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+    }
+  }
+
+  private static class CollectingSubscriber<T> implements Subscriber<T> {
+    private final List<T> items;
+
+    CollectingSubscriber(List<T> items) {
+      this.items = items;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+      subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(T item) {
+      items.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      throw new AssertionError(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+    }
+  }
 }